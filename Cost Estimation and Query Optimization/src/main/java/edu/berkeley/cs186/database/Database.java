@@ -4,6 +4,7 @@ import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -11,19 +12,32 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
 import java.util.LinkedList;
 
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.concurrency.LockManager;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.index.BPlusTree;
 import edu.berkeley.cs186.database.index.BPlusTreeException;
+import edu.berkeley.cs186.database.io.BufferPool;
 import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.PageException;
+import edu.berkeley.cs186.database.io.ReplacementPolicy;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.RecordId;
 import edu.berkeley.cs186.database.table.RecordIterator;
+import edu.berkeley.cs186.database.table.RecordViewIterator;
+import edu.berkeley.cs186.database.table.ScanPredicate;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.table.stats.TableStats;
@@ -31,12 +45,123 @@ import edu.berkeley.cs186.database.io.PageAllocator.PageIterator;
 
 
 public class Database {
-  private Map<String, Table> tableLookup;
-  private Map<String, BPlusTree> indexLookup;
+  // Opens a table or index found on disk.
+  private interface Opener<T> {
+    T open() throws DatabaseException;
+  }
+
+  /**
+   * A table or index in the catalog. Tables and indices found on disk when
+   * the database is created are registered unopened and opened on first
+   * access, so that a database with many files starts up immediately.
+   */
+  private static class CatalogEntry<T> {
+    private Opener<T> opener;
+    private volatile T value;
+
+    CatalogEntry(T value) {
+      this.value = value;
+    }
+
+    CatalogEntry(Opener<T> opener) {
+      this.opener = opener;
+    }
+
+    T get() throws DatabaseException {
+      T v = this.value;
+      if (v != null) {
+        return v;
+      }
+      synchronized (this) {
+        if (this.value == null) {
+          this.value = this.opener.open();
+          this.opener = null;
+        }
+        return this.value;
+      }
+    }
+
+    // The value if it has been opened, and null otherwise.
+    T getIfOpen() {
+      return this.value;
+    }
+  }
+
+  /**
+   * Collects the entries of one index during Transaction#bulkLoad and feeds
+   * them to the index in sorted runs of at most BULK_LOAD_RUN_SIZE entries.
+   * The first run is bulk loaded if the index is empty, and later runs are
+   * inserted in key order. Once a run fails, e.g. because a key is already in
+   * the index, the failure is kept and later entries are dropped, so that the
+   * load of the table itself is not interrupted halfway through a page.
+   */
+  private static class IndexLoader {
+    private final BPlusTree index;
+    private final int column;
+    private final List<Pair<DataBox, RecordId>> run = new ArrayList<Pair<DataBox, RecordId>>();
+    private DatabaseException failure;
+
+    IndexLoader(BPlusTree index, int column) {
+      this.index = index;
+      this.column = column;
+    }
+
+    void add(Record record, RecordId rid) {
+      if (this.failure != null) {
+        return;
+      }
+      this.run.add(new Pair<DataBox, RecordId>(record.getValues().get(this.column), rid));
+      if (this.run.size() == BULK_LOAD_RUN_SIZE) {
+        flush();
+      }
+    }
+
+    // Feeds the entries collected so far to the index.
+    void flush() {
+      if (this.failure == null && !this.run.isEmpty()) {
+        this.run.sort((a, b) -> a.getFirst().compareTo(b.getFirst()));
+        try {
+          if (!this.index.scanAll().hasNext()) {
+            this.index.bulkLoad(this.run.iterator());
+          } else {
+            for (Pair<DataBox, RecordId> entry : this.run) {
+              this.index.put(entry.getFirst(), entry.getSecond());
+            }
+          }
+        } catch (BPlusTreeException e) {
+          this.failure = new DatabaseException(e.getMessage());
+        } catch (RuntimeException e) {
+          this.failure = new DatabaseException(e);
+        }
+      }
+      this.run.clear();
+    }
+
+    // The first failure of a run, or null if every run was fed to the index.
+    DatabaseException getFailure() {
+      return this.failure;
+    }
+  }
+
+  // How long the compactor sleeps once no table has pages left to free.
+  private static final long COMPACTOR_IDLE_MILLIS = 1000;
+
+  // The number of entries per index Transaction#bulkLoad collects before it
+  // sorts them and feeds them to the index.
+  private static final int BULK_LOAD_RUN_SIZE = 1 << 16;
+
+  private Map<String, CatalogEntry<Table>> tableLookup;
+  private Map<String, CatalogEntry<BPlusTree>> indexLookup;
   private long numTransactions;
   private String fileDir;
   private LockManager lockMan;
   private int numMemoryPages;
+  private BufferPool bufferPool;
+
+  // The background compactor, or null if it is not running.
+  private Thread compactor;
+  private volatile boolean compactorRunning = false;
+  private volatile int compactRate;
 
   /**
    * Creates a new database.
@@ -58,11 +183,60 @@ public class Database {
    * @throws DatabaseException
    */
   public Database(String fileDir, int numMemoryPages) throws DatabaseException {
+    this(fileDir, numMemoryPages, BufferPool.DEFAULT_NUM_FRAMES);
+  }
+
+  /**
+   * Creates a new database.
+   *
+   * @param fileDir the directory to put the table files in
+   * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
+   * @param numBufferFrames the number of page frames in the buffer pool shared by all tables and indices
+   * @throws DatabaseException
+   */
+  public Database(String fileDir, int numMemoryPages, int numBufferFrames) throws DatabaseException {
+    this(fileDir, numMemoryPages, numBufferFrames, ReplacementPolicy.Type.LRU);
+  }
+
+  /**
+   * Creates a new database.
+   *
+   * @param fileDir the directory to put the table files in
+   * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
+   * @param numBufferFrames the number of page frames in the buffer pool shared by all tables and indices
+   * @param policyType the page replacement policy of the buffer pool
+   * @throws DatabaseException
+   */
+  public Database(String fileDir, int numMemoryPages, int numBufferFrames,
+                  ReplacementPolicy.Type policyType) throws DatabaseException {
+    this(fileDir, numMemoryPages, numBufferFrames, policyType, PageAllocator.Backend.MMAP);
+  }
+
+  /**
+   * Creates a new database whose tables and indices move their pages between
+   * their files and memory with backend; see BufferPool#setBackend.
+   *
+   * The buffer pool's background writer is not started; a database that
+   * wants dirty pages written back ahead of eviction starts it with
+   * getBufferPool().startBackgroundWriter(BufferPool.DEFAULT_WRITE_RATE),
+   * and close stops it along with the read-ahead threads.
+   *
+   * @param fileDir the directory to put the table files in
+   * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
+   * @param numBufferFrames the number of page frames in the buffer pool shared by all tables and indices
+   * @param policyType the page replacement policy of the buffer pool
+   * @param backend the storage backend of every table and index
+   * @throws DatabaseException
+   */
+  public Database(String fileDir, int numMemoryPages, int numBufferFrames,
+                  ReplacementPolicy.Type policyType, PageAllocator.Backend backend) throws DatabaseException {
     this.numMemoryPages = numMemoryPages;
+    this.bufferPool = new BufferPool(numBufferFrames, policyType);
+    this.bufferPool.setBackend(backend);
     this.fileDir = fileDir;
     numTransactions = 0;
-    tableLookup = new ConcurrentHashMap<String, Table>();
-    indexLookup = new ConcurrentHashMap<String, BPlusTree>();
+    tableLookup = new ConcurrentHashMap<String, CatalogEntry<Table>>();
+    indexLookup = new ConcurrentHashMap<String, CatalogEntry<BPlusTree>>();
 
     File dir = new File(fileDir);
     lockMan = new LockManager();
@@ -73,18 +247,63 @@ public class Database {
 
     File[] files = dir.listFiles();
 
+    // Register every table and index without opening it; see CatalogEntry.
     for (File f : files) {
       String fName = f.getName();
+      final String path = f.toPath().toString();
       if (fName.endsWith(Table.FILENAME_EXTENSION)) {
         int lastIndex = fName.lastIndexOf(Table.FILENAME_EXTENSION);
-        String tableName = fName.substring(0, lastIndex);
-        tableLookup.put(tableName, new Table(tableName, f.toPath().toString()));
+        final String tableName = fName.substring(0, lastIndex);
+        tableLookup.put(tableName, new CatalogEntry<Table>(
+            () -> new Table(tableName, path, this.bufferPool)));
       } else if (fName.endsWith(BPlusTree.FILENAME_EXTENSION)) {
         int lastIndex = fName.lastIndexOf(BPlusTree.FILENAME_EXTENSION);
         String indexName = fName.substring(0, lastIndex);
-        Path path = Paths.get(f.toPath().toString(), indexName + BPlusTree.FILENAME_EXTENSION);
-        indexLookup.put(indexName, new BPlusTree(path.toString()));
+        indexLookup.put(indexName, new CatalogEntry<BPlusTree>(
+            () -> new BPlusTree(path, this.bufferPool)));
+      }
+    }
+  }
+
+  /**
+   * Opens every table and index that has not been opened yet, using
+   * numThreads threads, and returns once all of them are open. Calling this
+   * right after creating the database trades a longer startup for no
+   * first-access latency later.
+   *
+   * @param numThreads the number of tables and indices to open at once
+   * @throws DatabaseException if a table or index could not be opened
+   */
+  public void openAll(int numThreads) throws DatabaseException {
+    if (numThreads <= 0) {
+      throw new DatabaseException("Invalid number of threads " + numThreads);
+    }
+    List<CatalogEntry<?>> entries = new ArrayList<CatalogEntry<?>>();
+    entries.addAll(this.tableLookup.values());
+    entries.addAll(this.indexLookup.values());
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (CatalogEntry<?> entry : entries) {
+        if (entry.getIfOpen() == null) {
+          futures.add(executor.submit(() -> entry.get()));
+        }
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatabaseException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof DatabaseException) {
+        throw (DatabaseException) cause;
       }
+      throw new DatabaseException(e);
+    } finally {
+      executor.shutdownNow();
     }
   }
 
@@ -97,12 +316,41 @@ public class Database {
    * @throws DatabaseException
    */
   public synchronized void createTable(Schema s, String tableName) throws DatabaseException {
+    createTable(s, tableName, Page.pageSize);
+  }
+
+  /**
+   * Create a new table in this database whose pages are pageSize bytes.
+   *
+   * @param s the table schema
+   * @param tableName the name of the table
+   * @param pageSize the page size of the table's file; see Page#isValidPageSize
+   * @throws DatabaseException
+   */
+  public synchronized void createTable(Schema s, String tableName, int pageSize) throws DatabaseException {
+    createTable(s, tableName, pageSize, Table.PageFormat.BITMAP);
+  }
+
+  /**
+   * Create a new table in this database whose pages are pageSize bytes and
+   * laid out in the given format.
+   *
+   * @param s the table schema
+   * @param tableName the name of the table
+   * @param pageSize the page size of the table's file; see Page#isValidPageSize
+   * @param format the format of the table's data pages
+   * @throws DatabaseException
+   */
+  public synchronized void createTable(Schema s, String tableName, int pageSize,
+                                       Table.PageFormat format) throws DatabaseException {
     if (this.tableLookup.containsKey(tableName)) {
       throw new DatabaseException("Table name already exists");
     }
+    checkPageSize(s, pageSize, format);
 
     Path path = Paths.get(fileDir, tableName + Table.FILENAME_EXTENSION);
-    this.tableLookup.put(tableName, new Table(tableName, s, path.toString()));
+    this.tableLookup.put(tableName, new CatalogEntry<Table>(
+        new Table(tableName, s, path.toString(), this.bufferPool, pageSize, format)));
   }
 
   /**
@@ -114,9 +362,42 @@ public class Database {
    * @throws DatabaseException
    */
   public synchronized void createTableWithIndices(Schema s, String tableName, List<String> indexColumns) throws DatabaseException {
+    createTableWithIndices(s, tableName, indexColumns, Page.pageSize);
+  }
+
+  /**
+   * Create a new table in this database with an index on each of the given column names. The
+   * table and its indices are stored on pages of pageSize bytes, and the indices get the largest
+   * order that fits on such a page.
+   *
+   * @param s the table schema
+   * @param tableName the name of the table
+   * @param indexColumns the list of unique columnNames on the maintain an index on
+   * @param pageSize the page size of the table's and the indices' files
+   * @throws DatabaseException
+   */
+  public synchronized void createTableWithIndices(Schema s, String tableName, List<String> indexColumns,
+                                                  int pageSize) throws DatabaseException {
+    createTableWithIndices(s, tableName, indexColumns, pageSize, Table.PageFormat.BITMAP);
+  }
+
+  /**
+   * Create a new table in this database with an index on each of the given column names. The
+   * table's data pages are laid out in the given format.
+   *
+   * @param s the table schema
+   * @param tableName the name of the table
+   * @param indexColumns the list of unique columnNames on the maintain an index on
+   * @param pageSize the page size of the table's and the indices' files
+   * @param format the format of the table's data pages
+   * @throws DatabaseException
+   */
+  public synchronized void createTableWithIndices(Schema s, String tableName, List<String> indexColumns,
+                                                  int pageSize, Table.PageFormat format) throws DatabaseException {
     if (this.tableLookup.containsKey(tableName)) {
       throw new DatabaseException("Table name already exists");
     }
+    checkPageSize(s, pageSize, format);
 
     List<String> schemaColNames = s.getFieldNames();
     List<Type> schemaColType = s.getFieldTypes();
@@ -136,21 +417,42 @@ public class Database {
     }
 
     Path path = Paths.get(fileDir, tableName + Table.FILENAME_EXTENSION);
-    this.tableLookup.put(tableName, new Table(tableName, s, path.toString()));
+    this.tableLookup.put(tableName, new CatalogEntry<Table>(
+        new Table(tableName, s, path.toString(), this.bufferPool, pageSize, format)));
     for (int i : schemaColIndex) {
       String colName = schemaColNames.get(i);
       Type colType = schemaColType.get(i);
       String indexName = tableName + "," + colName;
       Path p = Paths.get(this.fileDir, indexName + BPlusTree.FILENAME_EXTENSION);
       try {
-      this.indexLookup.put(indexName, new BPlusTree(p.toString(), colType,
-                           BPlusTree.maxOrder(Page.pageSize, colType)));
+      this.indexLookup.put(indexName, new CatalogEntry<BPlusTree>(new BPlusTree(p.toString(), colType,
+                           BPlusTree.maxOrder(pageSize, colType), this.bufferPool, pageSize)));
       } catch (BPlusTreeException e) {
         throw new DatabaseException(e.getMessage());
       }
     }
   }
 
+  /**
+   * Builds a Bloom filter of the values of columnName of the table tableName
+   * with Table#addBloomFilter. From then on, Transaction#contains and
+   * Transaction#lookupKey answer most keys the column does not hold without
+   * reading the column's index or the table.
+   *
+   * @throws DatabaseException if there is no such table or column
+   */
+  public void createBloomFilter(String tableName, String columnName) throws DatabaseException {
+    Table table = getTable(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table: " + tableName + " does not exist");
+    }
+    int column = table.getSchema().getFieldNames().indexOf(columnName);
+    if (column == -1) {
+      throw new DatabaseException("Column desired for Bloom filter does not exist");
+    }
+    table.addBloomFilter(column);
+  }
+
   /**
    * Delete a table in this database.
    *
@@ -162,15 +464,33 @@ public class Database {
       return false;
     }
 
-    this.tableLookup.get(tableName).close();
-    this.tableLookup.remove(tableName);
+    Table table = this.tableLookup.remove(tableName).getIfOpen();
+    if (table != null) {
+      table.close();
+    }
 
     File f = new File(fileDir + tableName + Table.FILENAME_EXTENSION);
     f.delete();
+    File[] filterFiles = new File(fileDir).listFiles(
+        (dir, name) -> name.startsWith(tableName + ",") && name.endsWith(Table.BLOOM_FILTER_EXTENSION));
+    if (filterFiles != null) {
+      for (File filterFile : filterFiles) {
+        filterFile.delete();
+      }
+    }
 
     return true;
   }
 
+  private static void checkPageSize(Schema s, int pageSize, Table.PageFormat format) throws DatabaseException {
+    if (!Page.isValidPageSize(pageSize)) {
+      throw new DatabaseException("Invalid page size " + pageSize);
+    }
+    if (format.getCapacity(s, pageSize) == 0) {
+      throw new DatabaseException("Records of the schema do not fit on a page of " + pageSize + " bytes");
+    }
+  }
+
   /**
    * Delete all tables from this database.
    */
@@ -185,16 +505,173 @@ public class Database {
   /**
    * Close this database.
    */
-  public synchronized void close() {
-    for (Table t : this.tableLookup.values()) {
-      t.close();
+  public void close() {
+    // The compactor may be waiting for the lock, so it is stopped first.
+    stopCompactor();
+    synchronized (this) {
+      for (CatalogEntry<Table> entry : this.tableLookup.values()) {
+        Table t = entry.getIfOpen();
+        if (t != null) {
+          t.close();
+        }
+      }
+      for (CatalogEntry<BPlusTree> entry : this.indexLookup.values()) {
+        BPlusTree index = entry.getIfOpen();
+        if (index != null) {
+          index.close();
+        }
+      }
+
+      this.tableLookup.clear();
+      this.indexLookup.clear();
+      this.bufferPool.close();
     }
+  }
 
-    this.tableLookup.clear();
+  /**
+   * Compacts the table tableName with Table#compact, freeing at most maxPages
+   * of its data pages, and points the entries of its indices at the new
+   * record ids of the records that moved.
+   *
+   * @return the number of pages freed
+   * @throws DatabaseException if there is no such table, or an index could
+   * not be updated, in which case compaction stops and the index entry of the
+   * record that moved last still holds its old record id
+   */
+  public int compactTable(String tableName, int maxPages) throws DatabaseException {
+    Table table = getTable(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table: " + tableName + " does not exist");
+    }
+    List<String> colNames = table.getSchema().getFieldNames();
+    BPlusTree[] indices = new BPlusTree[colNames.size()];
+    for (int i = 0; i < colNames.size(); i++) {
+      CatalogEntry<BPlusTree> entry = this.indexLookup.get(tableName + "," + colNames.get(i));
+      if (entry != null) {
+        indices[i] = entry.get();
+      }
+    }
+    return table.compact(maxPages, (record, from, to) -> {
+      for (int i = 0; i < indices.length; i++) {
+        if (indices[i] != null) {
+          DataBox key = record.getValues().get(i);
+          indices[i].remove(key);
+          try {
+            indices[i].put(key, to);
+          } catch (BPlusTreeException | RuntimeException e) {
+            // The key is not left out of the index: it keeps pointing at from.
+            try {
+              indices[i].put(key, from);
+            } catch (BPlusTreeException | RuntimeException suppressed) {
+              e.addSuppressed(suppressed);
+            }
+            if (e instanceof RuntimeException) {
+              throw (RuntimeException) e;
+            }
+            throw new DatabaseException(e.getMessage());
+          }
+        }
+      }
+    });
   }
 
-  public Table getTable(String tableName) {
-    return tableLookup.get(tableName);
+  /**
+   * Starts a daemon thread which compacts the open tables of the database
+   * (see compactTable) one freed page at a time, at most pagesPerSecond pages
+   * per second. If the compactor is already running, only its rate is
+   * changed. A scan may see a record twice or not at all if the record moves
+   * under it (see Table#compact), so the compactor is meant for quiet
+   * periods.
+   *
+   * @param pagesPerSecond the maximum number of pages to free per second
+   */
+  public synchronized void startCompactor(int pagesPerSecond) {
+    if (pagesPerSecond <= 0) {
+      throw new IllegalArgumentException("The compaction rate must be positive.");
+    }
+    this.compactRate = pagesPerSecond;
+    if (this.compactor != null) {
+      return;
+    }
+    this.compactorRunning = true;
+    this.compactor = new Thread(this::runCompactor, "database-compactor");
+    this.compactor.setDaemon(true);
+    this.compactor.start();
+  }
+
+  /**
+   * Stops the compactor, if it is running, and waits for it to exit.
+   */
+  public void stopCompactor() {
+    Thread t;
+    synchronized (this) {
+      t = this.compactor;
+      this.compactor = null;
+      this.compactorRunning = false;
+    }
+    if (t == null) {
+      return;
+    }
+    t.interrupt();
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public boolean isCompactorRunning() {
+    return this.compactorRunning;
+  }
+
+  private void runCompactor() {
+    while (this.compactorRunning) {
+      boolean freedAny = false;
+      for (Map.Entry<String, CatalogEntry<Table>> entry : this.tableLookup.entrySet()) {
+        // A table that has not been opened has not changed since it was
+        // last compacted.
+        if (entry.getValue().getIfOpen() == null) {
+          continue;
+        }
+        while (this.compactorRunning) {
+          long start = System.nanoTime();
+          try {
+            if (compactTable(entry.getKey(), 1) == 0) {
+              break;
+            }
+          } catch (DatabaseException | PageException e) {
+            // The table was deleted or closed under us.
+            break;
+          }
+          freedAny = true;
+          long remaining = 1000000000L / this.compactRate - (System.nanoTime() - start);
+          if (remaining > 0) {
+            LockSupport.parkNanos(remaining);
+          }
+        }
+      }
+      if (!freedAny && this.compactorRunning) {
+        try {
+          Thread.sleep(COMPACTOR_IDLE_MILLIS);
+        } catch (InterruptedException e) {
+          // stopCompactor interrupts us to exit promptly.
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the table named tableName, opening it if it has not been opened
+   * yet, or null if there is no such table
+   * @throws DatabaseException if the table could not be opened
+   */
+  public Table getTable(String tableName) throws DatabaseException {
+    CatalogEntry<Table> entry = tableLookup.get(tableName);
+    return entry == null ? null : entry.get();
+  }
+
+  public BufferPool getBufferPool() {
+    return this.bufferPool;
   }
 
   /**
@@ -305,7 +782,7 @@ public class Database {
       }
 
       Path path = Paths.get(Database.this.fileDir, "temp", tempTableName + Table.FILENAME_EXTENSION);
-      this.tempTables.put(tempTableName, new Table(tempTableName, schema, path.toString()));
+      this.tempTables.put(tempTableName, new Table(tempTableName, schema, path.toString(), Database.this.bufferPool));
       return tempTableName;
     }
 
@@ -332,7 +809,7 @@ public class Database {
       }
 
       Path path = Paths.get(Database.this.fileDir, "temp", tempTableName + Table.FILENAME_EXTENSION);
-      this.tempTables.put(tempTableName, new Table(tempTableName, schema, path.toString()));
+      this.tempTables.put(tempTableName, new Table(tempTableName, schema, path.toString(), Database.this.bufferPool));
     }
 
 
@@ -364,13 +841,48 @@ public class Database {
       return new RecordIterator(tab, index.scanGreaterEqual(startValue));
     }
 
+    /**
+     * Returns an iterator over the records of tableName whose value of
+     * columnName is key. A key that the Bloom filter of the column (see
+     * Database#createBloomFilter) rules out is answered without reading the
+     * index or the table. A column with a Bloom filter but no index is
+     * scanned for the key; like every table scan, the scan holds no page pins
+     * between calls (see RecordViewIterator), so the iterator may be
+     * abandoned after the first match.
+     *
+     * @throws DatabaseException if the column has neither an index nor a
+     * Bloom filter
+     */
     public Iterator<Record> lookupKey(String tableName, String columnName, DataBox key) throws DatabaseException {
       Table tab = getTable(tableName);
+      int column = resolveColumnIndex(tab, columnName);
+      if (column != -1 && !tab.mightContain(column, key)) {
+        return Collections.<Record>emptyIterator();
+      }
+      if (column != -1 && tab.hasBloomFilter(column) && !indexExists(tableName, columnName)) {
+        List<ScanPredicate> predicates = new ArrayList<ScanPredicate>();
+        predicates.add(new ScanPredicate(column, QueryPlan.PredicateOperator.EQUALS, key));
+        return tab.iterator(predicates, null);
+      }
       BPlusTree index = resolveIndexFromName(tableName, columnName);
       return new RecordIterator(tab, index.scanEqual(key));
     }
 
+    /**
+     * @return whether some record of tableName has key in columnName; see
+     * lookupKey for how the Bloom filter of the column is used
+     * @throws DatabaseException if the column has neither an index nor a
+     * Bloom filter
+     */
     public boolean contains(String tableName, String columnName, DataBox key) throws DatabaseException {
+      Table tab = getTable(tableName);
+      int column = resolveColumnIndex(tab, columnName);
+      if (column != -1 && !tab.mightContain(column, key)) {
+        return false;
+      }
+      if (column != -1 && tab.hasBloomFilter(column) && !indexExists(tableName, columnName)) {
+        return tab.containsValue(column, key);
+      }
       BPlusTree index = resolveIndexFromName(tableName, columnName);
       return index.get(key).isPresent();
     }
@@ -383,27 +895,86 @@ public class Database {
     private RecordId runAddRecord(String tableName, List<DataBox> values) throws DatabaseException {
       assert(this.active);
       Table tab = getTable(tableName);
-      RecordId rid = tab.addRecord(values);
-      Schema s = tab.getSchema();
-      List<String> colNames = s.getFieldNames();
-
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          try {
-            resolveIndexFromName(tableName, col).put(values.get(i), rid);
-          } catch (BPlusTreeException e) {
-            throw new DatabaseException(e.getMessage());
+      // The table is locked until its indices are updated, so that the
+      // compactor does not move the record in between; see compactTable.
+      synchronized (tab) {
+        RecordId rid = tab.addRecord(values);
+        Schema s = tab.getSchema();
+        List<String> colNames = s.getFieldNames();
+
+        for (int i = 0; i < colNames.size(); i++) {
+          String col = colNames.get(i);
+          if (indexExists(tableName, col)) {
+            try {
+              resolveIndexFromName(tableName, col).put(values.get(i), rid);
+            } catch (BPlusTreeException e) {
+              throw new DatabaseException(e.getMessage());
+            }
           }
         }
-      }
 
-      //find(tableName, "string");
+        //find(tableName, "string");
 
-      return rid;
+        return rid;
+      }
     }
 
 
+    /**
+     * Loads the records of values into the table tableName with
+     * Table#bulkLoad and returns the number of records loaded. The entries
+     * of the table's indices are not inserted record by record: they are
+     * collected during the load and inserted in sorted runs of bounded size,
+     * the first one with BPlusTree#bulkLoad if the index was empty.
+     *
+     * @throws DatabaseException if the table does not exist, a record does
+     * not match its schema, or a key is already in an index. If loading the
+     * records fails, a failure to insert the entries of the records loaded
+     * before it is attached to the exception as a suppressed exception.
+     */
+    public long bulkLoad(String tableName, Iterator<List<DataBox>> values) throws DatabaseException {
+      assert(this.active);
+      Table tab = getTable(tableName);
+      List<String> colNames = tab.getSchema().getFieldNames();
+
+      List<IndexLoader> loaders = new ArrayList<IndexLoader>();
+      for (int i = 0; i < colNames.size(); i++) {
+        if (indexExists(tableName, colNames.get(i))) {
+          loaders.add(new IndexLoader(resolveIndexFromName(tableName, colNames.get(i)), i));
+        }
+      }
+
+      long numLoaded;
+      synchronized (tab) {
+        try {
+          numLoaded = tab.bulkLoad(values, (record, rid) -> {
+            for (IndexLoader loader : loaders) {
+              loader.add(record, rid);
+            }
+          });
+        } catch (DatabaseException | RuntimeException e) {
+          // The records loaded before the failure are in the table, so their
+          // entries still belong in the indices.
+          for (IndexLoader loader : loaders) {
+            loader.flush();
+            if (loader.getFailure() != null) {
+              e.addSuppressed(loader.getFailure());
+            }
+          }
+          throw e;
+        }
+        for (IndexLoader loader : loaders) {
+          loader.flush();
+        }
+      }
+      for (IndexLoader loader : loaders) {
+        if (loader.getFailure() != null) {
+          throw loader.getFailure();
+        }
+      }
+      return numLoaded;
+    }
+
     public int getNumMemoryPages() throws DatabaseException {
       assert(this.active);
 
@@ -422,13 +993,15 @@ public class Database {
       Table tab = getTable(tableName);
       Schema s = tab.getSchema();
 
-      Record rec = tab.deleteRecord(rid);
-      List<DataBox> values = rec.getValues();
-      List<String> colNames = s.getFieldNames();
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          resolveIndexFromName(tableName, col).remove(values.get(i));
+      synchronized (tab) {
+        Record rec = tab.deleteRecord(rid);
+        List<DataBox> values = rec.getValues();
+        List<String> colNames = s.getFieldNames();
+        for (int i = 0; i < colNames.size(); i++) {
+          String col = colNames.get(i);
+          if (indexExists(tableName, col)) {
+            resolveIndexFromName(tableName, col).remove(values.get(i));
+          }
         }
       }
 
@@ -445,6 +1018,49 @@ public class Database {
       return getTable(tableName).iterator();
     }
 
+    /**
+     * @return an iterator over the records of tableName projected onto
+     * columns; see Table#getRecord(RecordId, int[])
+     */
+    public RecordIterator getRecordIterator(String tableName, int[] columns) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).iterator(columns);
+    }
+
+    /**
+     * @return an iterator over the records of tableName that satisfy every one
+     * of predicates, projected onto columns; see Table#iterator(List, int[])
+     */
+    public Iterator<Record> getRecordIterator(String tableName, List<ScanPredicate> predicates,
+                                              int[] columns) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).iterator(predicates, columns);
+    }
+
+    /**
+     * @return an iterator over the records of tableName that satisfy every one
+     * of predicates, in batches; see Table#batchIterator
+     */
+    public Iterator<RecordBatch> getRecordBatchIterator(String tableName, List<ScanPredicate> predicates,
+                                                        int[] columns) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).batchIterator(predicates, columns);
+    }
+
+    /**
+     * @return an iterator over the records of tableName as RecordViews; see
+     * Table#viewIterator
+     */
+    public RecordViewIterator getRecordViewIterator(String tableName) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).viewIterator();
+    }
+
+    public RecordViewIterator getRecordViewIterator(String tableName, int[] columns) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).viewIterator(columns);
+    }
+
     public RecordId updateRecord(String tableName, List<DataBox> values, RecordId rid)  throws DatabaseException {
         return runUpdateRecord(tableName, values, rid);
     }
@@ -483,20 +1099,22 @@ public class Database {
       Table tab = getTable(tableName);
       Schema s = tab.getSchema();
 
-      Record rec = tab.updateRecord(values, rid);
-
-      List<DataBox> oldValues = rec.getValues();
-      List<String> colNames = s.getFieldNames();
-
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          BPlusTree tree = resolveIndexFromName(tableName, col);
-          tree.remove(oldValues.get(i));
-          try {
-            tree.put(values.get(i), rid);
-          } catch (BPlusTreeException e) {
-            throw new DatabaseException(e.getMessage());
+      synchronized (tab) {
+        Record rec = tab.updateRecord(values, rid);
+
+        List<DataBox> oldValues = rec.getValues();
+        List<String> colNames = s.getFieldNames();
+
+        for (int i = 0; i < colNames.size(); i++) {
+          String col = colNames.get(i);
+          if (indexExists(tableName, col)) {
+            BPlusTree tree = resolveIndexFromName(tableName, col);
+            tree.remove(oldValues.get(i));
+            try {
+              tree.put(values.get(i), rid);
+            } catch (BPlusTreeException e) {
+              throw new DatabaseException(e.getMessage());
+            }
           }
         }
       }
@@ -515,6 +1133,15 @@ public class Database {
       return getTable(tableName).getNumDataPages();
     }
 
+    /**
+     * @return the number of data pages of the table tableName that a scan
+     * with predicates reads; see Table#getNumDataPagesToScan
+     */
+    public int getNumDataPagesToScan(String tableName, List<ScanPredicate> predicates) throws DatabaseException {
+      assert(this.active);
+      return getTable(tableName).getNumDataPagesToScan(predicates);
+    }
+
     public int getNumEntriesPerPage(String tableName) throws DatabaseException {
       assert(this.active);
       return getTable(tableName).getNumRecordsPerPage();
@@ -579,12 +1206,24 @@ public class Database {
         columnName = columnName.split("\\.")[1];
       }
       String indexName = tableName + "," + columnName;
-      if (Database.this.indexLookup.containsKey(indexName)) {
-        return Database.this.indexLookup.get(indexName);
+      CatalogEntry<BPlusTree> entry = Database.this.indexLookup.get(indexName);
+      if (entry != null) {
+        return entry.get();
       }
       throw new DatabaseException("Index does not exist");
     }
 
+    /**
+     * @return the index of columnName, with or without a table prefix, in
+     * the schema of tab, or -1 if tab has no such column
+     */
+    private int resolveColumnIndex(Table tab, String columnName) {
+      if (columnName.contains(".")) {
+        columnName = columnName.split("\\.")[1];
+      }
+      return tab.getSchema().getFieldNames().indexOf(columnName);
+    }
+
     private Table getTable(String tableName) throws DatabaseException {
       if (this.tempTables.containsKey(tableName)) {
         return this.tempTables.get(tableName);
@@ -594,11 +1233,12 @@ public class Database {
         tableName = aliasMaps.get(tableName);
       }
 
-      if (!Database.this.tableLookup.containsKey(tableName)) {
+      CatalogEntry<Table> entry = Database.this.tableLookup.get(tableName);
+      if (entry == null) {
         throw new DatabaseException("Table: " + tableName + "does not exist");
       }
 
-      return Database.this.tableLookup.get(tableName);
+      return entry.get();
     }
 
 
@@ -72,8 +72,9 @@ public abstract class DataBox implements Comparable<DataBox> {
       case STRING: {
         byte[] bytes = new byte[type.getSizeInBytes()];
         buf.get(bytes);
-        String s = new String(bytes, Charset.forName("UTF-8"));
-        return new StringDataBox(s, type.getSizeInBytes());
+        // The bytes were written by toBytes, so they are already padded and
+        // need not be checked again.
+        return new StringDataBox(new String(bytes, Charset.forName("UTF-8")));
       }
       default: {
         String err = String.format("Unhandled TypeId %s.",
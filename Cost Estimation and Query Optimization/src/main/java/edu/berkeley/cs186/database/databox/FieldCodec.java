@@ -0,0 +1,123 @@
+package edu.berkeley.cs186.database.databox;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A FieldCodec reads and writes the values of one type in the format of
+ * DataBox#toBytes, at an absolute offset of a buffer. Unlike DataBox.fromBytes
+ * and DataBox#toBytes, a codec does not dispatch on the type of every value or
+ * allocate a byte array for it, and it leaves the position of the buffer
+ * alone. Get the codec of a type once with forType and keep it.
+ */
+public abstract class FieldCodec {
+  protected final int size;
+
+  private FieldCodec(int size) {
+    this.size = size;
+  }
+
+  /**
+   * @return the codec of the values of type t
+   */
+  public static FieldCodec forType(Type t) {
+    switch (t.getTypeId()) {
+      case BOOL: return new BoolCodec();
+      case INT: return new IntCodec();
+      case FLOAT: return new FloatCodec();
+      case STRING: return new StringCodec(t.getSizeInBytes());
+      default: {
+        String err = String.format("Unhandled TypeId %s.", t.getTypeId().toString());
+        throw new IllegalArgumentException(err);
+      }
+    }
+  }
+
+  /**
+   * @return the number of bytes a value takes
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return the value whose bytes start at offset of buf
+   */
+  public abstract DataBox decode(ByteBuffer buf, int offset);
+
+  /**
+   * Writes the bytes of value, which must be of the codec's type, at offset of
+   * buf.
+   */
+  public abstract void encode(ByteBuffer buf, int offset, DataBox value);
+
+  private static final class BoolCodec extends FieldCodec {
+    BoolCodec() {
+      super(1);
+    }
+
+    public DataBox decode(ByteBuffer buf, int offset) {
+      byte b = buf.get(offset);
+      assert (b == 0 || b == 1);
+      return new BoolDataBox(b == 1);
+    }
+
+    public void encode(ByteBuffer buf, int offset, DataBox value) {
+      buf.put(offset, value.getBool() ? (byte) 1 : (byte) 0);
+    }
+  }
+
+  private static final class IntCodec extends FieldCodec {
+    IntCodec() {
+      super(Integer.BYTES);
+    }
+
+    public DataBox decode(ByteBuffer buf, int offset) {
+      return new IntDataBox(buf.getInt(offset));
+    }
+
+    public void encode(ByteBuffer buf, int offset, DataBox value) {
+      buf.putInt(offset, value.getInt());
+    }
+  }
+
+  private static final class FloatCodec extends FieldCodec {
+    FloatCodec() {
+      super(Float.BYTES);
+    }
+
+    public DataBox decode(ByteBuffer buf, int offset) {
+      return new FloatDataBox(buf.getFloat(offset));
+    }
+
+    public void encode(ByteBuffer buf, int offset, DataBox value) {
+      buf.putFloat(offset, value.getFloat());
+    }
+  }
+
+  // Strings consist of ALLOWABLE_CHARACTERS, all of which are single bytes in
+  // UTF-8, so a string is copied a byte per character.
+  private static final class StringCodec extends FieldCodec {
+    StringCodec(int size) {
+      super(size);
+    }
+
+    public DataBox decode(ByteBuffer buf, int offset) {
+      char[] chars = new char[size];
+      for (int i = 0; i < size; ++i) {
+        chars[i] = (char) (buf.get(offset + i) & 0xFF);
+      }
+      return new StringDataBox(new String(chars));
+    }
+
+    public void encode(ByteBuffer buf, int offset, DataBox value) {
+      String s = value.getString();
+      int n = Math.min(s.length(), size);
+      for (int i = 0; i < n; ++i) {
+        buf.put(offset + i, (byte) s.charAt(i));
+      }
+      for (int i = n; i < size; ++i) {
+        buf.put(offset + i, (byte) ' ');
+      }
+    }
+  }
+}
@@ -47,6 +47,12 @@ public class StringDataBox extends DataBox {
     assert(this.s.length() == m);
   }
 
+  // Construct a string from s, which must already be padded to its width and
+  // consist of legal characters, e.g. because it was read from a page.
+  StringDataBox(String s) {
+    this.s = s;
+  }
+
   @Override
   public Type type() {
     return Type.stringType(s.length());
@@ -1,6 +1,5 @@
 package edu.berkeley.cs186.database.index;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -230,8 +229,7 @@ abstract class BPlusNode {
    */
   public static BPlusNode fromBytes(BPlusTreeMetadata metadata, int pageNum) {
     Page p = metadata.getAllocator().fetchPage(pageNum);
-    ByteBuffer buf = p.getByteBuffer();
-    byte b = buf.get();
+    byte b = p.readByte(0);
     if (b == 1) {
       return LeafNode.fromBytes(metadata, pageNum);
     } else if (b == 0) {
@@ -1,7 +1,9 @@
 package edu.berkeley.cs186.database.index;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -10,6 +12,7 @@ import java.util.Optional;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.BufferPool;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageAllocator;
 import edu.berkeley.cs186.database.table.RecordId;
@@ -53,6 +56,9 @@ public class BPlusTree {
     public static final String FILENAME_PREFIX = "db";
     public static final String FILENAME_EXTENSION = ".index";
 
+    // The number of leaf pages bulkLoad allocates at a time.
+    private static final int BULK_LOAD_BATCH_SIZE = 64;
+
     private BPlusTreeMetadata metadata;
     private Page headerPage;
     private BPlusNode root;
@@ -82,6 +88,28 @@ public class BPlusTree {
      */
     public BPlusTree(String filename, Type keySchema, int order)
         throws BPlusTreeException {
+      this(filename, keySchema, order,
+           new BufferPool(BufferPool.DEFAULT_NUM_FRAMES));
+    }
+
+    /**
+     * Construct a new B+ tree like BPlusTree(filename, keySchema, order) whose
+     * pages are cached in `bufferPool`.
+     */
+    public BPlusTree(String filename, Type keySchema, int order,
+                     BufferPool bufferPool) throws BPlusTreeException {
+      this(filename, keySchema, order, bufferPool, Page.pageSize);
+    }
+
+    /**
+     * Construct a new B+ tree like BPlusTree(filename, keySchema, order,
+     * bufferPool) whose nodes are stored on pages of `pageSize` bytes. Larger
+     * pages allow a larger order (see maxOrder) and so a shallower tree. The
+     * page size is recorded in the file, so reloading the tree later uses it
+     * as well.
+     */
+    public BPlusTree(String filename, Type keySchema, int order,
+                     BufferPool bufferPool, int pageSize) throws BPlusTreeException {
 
       // Sanity checks.
       if (order < 0) {
@@ -91,7 +119,7 @@ public class BPlusTree {
         throw new BPlusTreeException(msg);
       }
 
-      int maxOrder = BPlusTree.maxOrder(Page.pageSize, keySchema);
+      int maxOrder = BPlusTree.maxOrder(pageSize, keySchema);
       if (order > maxOrder) {
         String msg = String.format(
             "You cannot construct a B+ tree with order %d greater than the " +
@@ -101,13 +129,15 @@ public class BPlusTree {
       }
 
       // Initialize the page allocator.
-      PageAllocator allocator = new PageAllocator(filename, true /* wipe */);
+      PageAllocator allocator =
+        new PageAllocator(filename, true /* wipe */, bufferPool, pageSize);
       this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
 
-      // Allocate the header page.
+      // Allocate the header page. The header page is rewritten every time the
+      // root changes, so we keep it pinned for the lifetime of the tree.
       int headerPageNum = allocator.allocPage();
       assert(headerPageNum == 0);
-      this.headerPage = allocator.fetchPage(headerPageNum);
+      this.headerPage = allocator.pinPage(headerPageNum);
 
       // Construct the root.
       List<DataBox> keys = new ArrayList<>();
@@ -121,10 +151,21 @@ public class BPlusTree {
 
     /** Read a B+ tree that was previously serialized to filename. */
     public BPlusTree(String filename) {
+      this(filename, new BufferPool(BufferPool.DEFAULT_NUM_FRAMES));
+    }
+
+    /**
+     * Read a B+ tree that was previously serialized to filename and cache its
+     * pages in `bufferPool`.
+     */
+    public BPlusTree(String filename, BufferPool bufferPool) {
       // Initialize the page allocator and fetch the header page.
-      PageAllocator allocator = new PageAllocator(filename, false /* wipe */);
-      Page headerPage = allocator.fetchPage(0);
-      ByteBuffer buf = headerPage.getByteBuffer();
+      PageAllocator allocator =
+        new PageAllocator(filename, false /* wipe */, bufferPool);
+      // The header page stays pinned for the lifetime of the tree, and is
+      // pinned before it is read so that its buffer is not recycled under us.
+      this.headerPage = allocator.pinPage(0);
+      ByteBuffer buf = headerPage.getReadOnlyByteBuffer();
 
       // Read the contents of the header page. See writeHeader for information
       // on exactly what is written to the header page.
@@ -134,7 +175,6 @@ public class BPlusTree {
 
       // Initialize members.
       this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
-      this.headerPage = allocator.fetchPage(0);
       this.root = BPlusNode.fromBytes( this.metadata, rootPageNum);
     }
 
@@ -291,6 +331,143 @@ public class BPlusTree {
       writeHeader(headerPage.getByteBuffer());
     }
 
+    /**
+     * Loads the (key, rid) pairs of `data` into an empty B+ tree bottom-up.
+     * The keys must be distinct and in increasing order. Leaves are packed
+     * with 2d entries each and written left to right, and every inner level is
+     * then built over the level below it, with children spread evenly so that
+     * every inner node has at least two children. Pages are allocated in
+     * batches with PageAllocator#allocPages, so the allocator's metadata is
+     * flushed once per batch instead of once per node.
+     *
+     *   BPlusTree tree = new BPlusTree("t.txt", Type.intType(), 4);
+     *   List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+     *   for (int i = 0; i < 100; ++i) {
+     *     data.add(new Pair<>(new IntDataBox(i), new RecordId(i, (short) i)));
+     *   }
+     *   tree.bulkLoad(data.iterator());
+     *
+     * A BPlusTreeException is thrown if the tree is not empty or the keys are
+     * not strictly increasing. The new nodes are written to newly allocated
+     * pages, and the header only points at them once every node is written,
+     * so if the load fails, its pages are freed and the tree is still empty.
+     */
+    public void bulkLoad(Iterator<Pair<DataBox, RecordId>> data)
+        throws BPlusTreeException {
+      if (!(root instanceof LeafNode) || ((LeafNode) root).scanAll().hasNext()) {
+        throw new BPlusTreeException("Only an empty B+ tree can be bulk loaded.");
+      }
+      PageAllocator allocator = metadata.getAllocator();
+      int maxEntries = 2 * metadata.getOrder();
+
+      // Every page allocated by the load, and those not used yet.
+      List<Integer> allocated = new ArrayList<>();
+      Deque<Integer> reserved = new ArrayDeque<>();
+      BPlusNode newRoot;
+      try {
+        // The first key and page number of every node of the level being
+        // built, left to right. Each leaf is written once we know whether it
+        // has a right sibling, and if so on which page.
+        List<DataBox> firstKeys = new ArrayList<>();
+        List<Integer> level = new ArrayList<>();
+        int leafPageNum = -1;
+        List<DataBox> keys = new ArrayList<>();
+        List<RecordId> rids = new ArrayList<>();
+        DataBox lastKey = null;
+        while (data.hasNext()) {
+          Pair<DataBox, RecordId> pair = data.next();
+          DataBox key = pair.getFirst();
+          typecheck(key);
+          if (lastKey != null && key.compareTo(lastKey) <= 0) {
+            String msg = String.format(
+                "Bulk loaded keys must be strictly increasing, but %s follows %s.",
+                key, lastKey);
+            throw new BPlusTreeException(msg);
+          }
+          lastKey = key;
+
+          if (leafPageNum == -1) {
+            leafPageNum = reservePage(allocator, reserved, allocated);
+          } else if (keys.size() == maxEntries) {
+            int nextPageNum = reservePage(allocator, reserved, allocated);
+            firstKeys.add(keys.get(0));
+            level.add(leafPageNum);
+            new LeafNode(metadata, leafPageNum, keys, rids, Optional.of(nextPageNum));
+            leafPageNum = nextPageNum;
+            keys = new ArrayList<>();
+            rids = new ArrayList<>();
+          }
+          keys.add(key);
+          rids.add(pair.getSecond());
+        }
+        if (keys.isEmpty()) {
+          return;
+        }
+        firstKeys.add(keys.get(0));
+        level.add(leafPageNum);
+        newRoot = new LeafNode(metadata, leafPageNum, keys, rids, Optional.empty());
+
+        // Build inner levels until a single node is left.
+        while (level.size() > 1) {
+          int numNodes = (level.size() + maxEntries) / (maxEntries + 1);
+          int[] pageNums = allocator.allocPages(numNodes);
+          for (int pageNum : pageNums) {
+            allocated.add(pageNum);
+          }
+          List<DataBox> upperFirstKeys = new ArrayList<>();
+          List<Integer> upper = new ArrayList<>();
+          int child = 0;
+          for (int n = 0; n < numNodes; ++n) {
+            // Spread the children evenly over the nodes of this level.
+            int numChildren = level.size() / numNodes + (n < level.size() % numNodes ? 1 : 0);
+            List<DataBox> innerKeys = new ArrayList<>();
+            List<Integer> children = new ArrayList<>();
+            upperFirstKeys.add(firstKeys.get(child));
+            for (int c = 0; c < numChildren; ++c, ++child) {
+              if (c > 0) {
+                innerKeys.add(firstKeys.get(child));
+              }
+              children.add(level.get(child));
+            }
+            newRoot = new InnerNode(metadata, pageNums[n], innerKeys, children);
+            upper.add(pageNums[n]);
+          }
+          firstKeys = upperFirstKeys;
+          level = upper;
+        }
+      } catch (BPlusTreeException | RuntimeException e) {
+        for (int pageNum : allocated) {
+          allocator.freePage(pageNum);
+        }
+        throw e;
+      }
+
+      // The old root is the empty leaf, which is freed once the header points
+      // at the new root, along with the pages reserved for leaves but not used.
+      BPlusNode oldRoot = this.root;
+      this.root = newRoot;
+      writeHeader(headerPage.getByteBuffer());
+      allocator.freePage(oldRoot.getPage().getPageNum());
+      for (int pageNum : reserved) {
+        allocator.freePage(pageNum);
+      }
+    }
+
+    /**
+     * Removes and returns the first page of reserved, first allocating
+     * BULK_LOAD_BATCH_SIZE pages into reserved (and allocated) if it is empty.
+     */
+    private static int reservePage(PageAllocator allocator, Deque<Integer> reserved,
+                                   List<Integer> allocated) {
+      if (reserved.isEmpty()) {
+        for (int pageNum : allocator.allocPages(BULK_LOAD_BATCH_SIZE)) {
+          reserved.add(pageNum);
+          allocated.add(pageNum);
+        }
+      }
+      return reserved.remove();
+    }
+
     /**
      * Deletes a (key, rid) pair from a B+ tree.
      *
@@ -308,6 +485,18 @@ public class BPlusTree {
       root.remove(key);
     }
 
+    /**
+     * Writes every page of the tree back to its file and closes the file.
+     * Unless the pages are memory-mapped (see PageAllocator.Backend), a tree
+     * that is not closed may not reach its file. The tree must not be used
+     * afterwards.
+     */
+    public void close() {
+      PageAllocator allocator = metadata.getAllocator();
+      allocator.unpinPage(headerPage);
+      allocator.close();
+    }
+
     // Helpers /////////////////////////////////////////////////////////////////
     /**
      * Returns a sexp representation of this tree. See BPlusNode.toSexp for
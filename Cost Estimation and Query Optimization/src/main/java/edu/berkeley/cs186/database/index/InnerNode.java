@@ -53,8 +53,8 @@ class InnerNode extends BPlusNode {
    * Construct an inner node that is persisted to page `pageNum` allocated by
    * metadata.getAllocator().
    */
-  private InnerNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
-                    List<Integer> children) {
+  InnerNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
+            List<Integer> children) {
     assert(keys.size() <= 2 * metadata.getOrder());
     assert(keys.size() + 1 == children.size());
 
@@ -177,7 +177,8 @@ class InnerNode extends BPlusNode {
   }
 
   private void sync() {
-    page.getByteBuffer().put(toBytes());
+    byte[] bytes = toBytes();
+    page.writeBytes(0, bytes.length, bytes);
   }
 
   // Just for testing.
@@ -377,19 +378,25 @@ class InnerNode extends BPlusNode {
    * meta.getAllocator().
    */
   public static InnerNode fromBytes(BPlusTreeMetadata metadata, int pageNum) {
-    Page page = metadata.getAllocator().fetchPage(pageNum);
-    ByteBuffer buf = page.getByteBuffer();
-
-    assert(buf.get() == (byte) 0);
-
+    // The page is pinned while it is read, so that it is not evicted and
+    // its buffer reused under us.
+    Page page = metadata.getAllocator().pinPage(pageNum);
     List<DataBox> keys = new ArrayList<>();
     List<Integer> children = new ArrayList<>();
-    int n = buf.getInt();
-    for (int i = 0; i < n; ++i) {
-      keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
-    }
-    for (int i = 0; i < n + 1; ++i) {
-      children.add(buf.getInt());
+    try {
+      ByteBuffer buf = page.getReadOnlyByteBuffer();
+
+      assert(buf.get() == (byte) 0);
+
+      int n = buf.getInt();
+      for (int i = 0; i < n; ++i) {
+        keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+      }
+      for (int i = 0; i < n + 1; ++i) {
+        children.add(buf.getInt());
+      }
+    } finally {
+      metadata.getAllocator().unpinPage(page);
     }
     return new InnerNode(metadata, pageNum, keys, children);
   }
@@ -116,8 +116,8 @@ class LeafNode extends BPlusNode {
    * Construct a leaf node that is persisted to page `pageNum` allocated by
    * metadata.getAllocator().
    */
-  private LeafNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
-                   List<RecordId> rids, Optional<Integer> rightSibling) {
+  LeafNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
+           List<RecordId> rids, Optional<Integer> rightSibling) {
     assert(keys.size() <= 2 * metadata.getOrder());
     assert(keys.size() == rids.size());
 
@@ -263,7 +263,8 @@ class LeafNode extends BPlusNode {
 
   /** Serializes this leaf to its page. */
   private void sync() {
-    page.getByteBuffer().put(toBytes());
+    byte[] bytes = toBytes();
+    page.writeBytes(0, bytes.length, bytes);
   }
 
   /**
@@ -393,20 +394,27 @@ class LeafNode extends BPlusNode {
    * meta.getAllocator().
    */
   public static LeafNode fromBytes(BPlusTreeMetadata metadata, int pageNum) {
-    Page page = metadata.getAllocator().fetchPage(pageNum);
-    ByteBuffer buf = page.getByteBuffer();
+    // The page is pinned while it is read, so that it is not evicted and
+    // its buffer reused under us.
+    Page page = metadata.getAllocator().pinPage(pageNum);
+    Optional<Integer> rightSibling;
+    List<DataBox> keys = new ArrayList<>();
+    List<RecordId> rids = new ArrayList<>();
+    try {
+      ByteBuffer buf = page.getReadOnlyByteBuffer();
 
-    assert(buf.get() == (byte) 1);
+      assert(buf.get() == (byte) 1);
 
-    int s = buf.getInt();
-    Optional<Integer> rightSibling = s == -1 ? Optional.empty() : Optional.of(s);
+      int s = buf.getInt();
+      rightSibling = s == -1 ? Optional.empty() : Optional.of(s);
 
-    List<DataBox> keys = new ArrayList<>();
-    List<RecordId> rids = new ArrayList<>();
-    int n = buf.getInt();
-    for (int i = 0; i < n; ++i) {
-      keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
-      rids.add(RecordId.fromBytes(buf));
+      int n = buf.getInt();
+      for (int i = 0; i < n; ++i) {
+        keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+        rids.add(RecordId.fromBytes(buf));
+      }
+    } finally {
+      metadata.getAllocator().unpinPage(page);
     }
 
     return new LeafNode(metadata, pageNum, keys, rids, rightSibling);
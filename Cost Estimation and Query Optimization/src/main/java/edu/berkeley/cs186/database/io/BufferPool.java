@@ -0,0 +1,686 @@
+package edu.berkeley.cs186.database.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A buffer pool caches recently used pages of one or more PageAllocators. A
+ * Database owns a single buffer pool which is shared by all of its tables,
+ * indices, and temporary tables; a PageAllocator that is constructed without a
+ * buffer pool gets a private one.
+ *
+ *   BufferPool pool = new BufferPool(4096);
+ *   PageAllocator allocator = new PageAllocator("t.table", true, pool);
+ *
+ *   // A pinned page is never evicted from the pool. Every pin must be matched
+ *   // by an unpin.
+ *   Page page = allocator.pinPage(allocator.allocPage());
+ *   try {
+ *     page.writeInt(0, 42);
+ *   } finally {
+ *     allocator.unpinPage(page);
+ *   }
+ *
+ * Pages are keyed by their virtual page number (see
+ * PageAllocator#translatePageNum), so pages of different allocators never
+ * collide. When the pool holds more than numFrames pages, it asks its
+ * ReplacementPolicy for unpinned victims, preferring clean pages to dirty
+ * ones; dirty victims are flushed by the thread that evicts them. If
+ * every resident page is pinned, the pool temporarily holds more than
+ * numFrames pages and shrinks back as pages are unpinned and new pages are
+ * brought in. A frame holds one page of any size, so a pool
+ * shared by files with large pages uses correspondingly more memory.
+ *
+ * To let independent tables and indices fetch pages in parallel, the pool is
+ * split into segments. A page belongs to the segment picked by a hash of its
+ * virtual page number; each segment has its own lock, its own replacement
+ * policy, and an equal share of the frames. Lookups of pages in different
+ * segments never contend.
+ *
+ * Rather than being left for eviction, dirty pages can be written back by an
+ * opt-in background writer, which flushes unpinned dirty pages in virtual page number order at a bounded rate,
+ * so that eviction almost always finds a clean page:
+ *
+ *   pool.startBackgroundWriter(2000); // at most 2000 pages per second
+ *   ...
+ *   pool.stopBackgroundWriter();
+ *
+ * Allocators that detect a sequential scan read the next pages ahead of it on
+ * the pool's prefetch threads, so that scans overlap their I/O with their
+ * processing. How many pages are read ahead is set per pool:
+ *
+ *   pool.setReadAheadPages(32); // 0 turns read-ahead off
+ *
+ * A pool that is no longer needed is closed, which stops its background
+ * writer and its prefetch threads.
+ *
+ * Allocators constructed with a pool and no explicit backend (which includes
+ * those of every Table, BPlusTree, and Database) move pages between their
+ * files and memory with the pool's backend:
+ *
+ *   pool.setBackend(PageAllocator.Backend.POSITIONAL_IO);
+ *
+ * The pool counts hits, misses, and evictions so that policies can be
+ * compared on a real workload:
+ *
+ *   BufferPool pool = new BufferPool(4096, ReplacementPolicy.Type.TWO_Q);
+ *   ...
+ *   pool.getHitRate(); // e.g. 0.93
+ */
+public class BufferPool {
+  public static final int DEFAULT_NUM_FRAMES = 1024;
+
+  // The maximum number of segments a pool is split into by default, and the
+  // smallest number of frames a segment gets by default. Replacement policies
+  // need a reasonable number of frames to work with, so small pools are not
+  // split at all.
+  private static final int MAX_DEFAULT_NUM_SEGMENTS = 16;
+  private static final int MIN_DEFAULT_SEGMENT_SIZE = 64;
+
+  // The default number of pages the background writer writes per second, and
+  // how long it sleeps when there are no dirty pages.
+  public static final int DEFAULT_WRITE_RATE = 2000;
+  private static final long WRITER_IDLE_MILLIS = 50;
+
+  // The default number of pages read ahead of a sequential scan, and the
+  // number of threads that read them.
+  public static final int DEFAULT_READ_AHEAD_PAGES = 16;
+  private static final int NUM_PREFETCH_THREADS = 2;
+
+  /**
+   * A slice of the pool with its own lock. Every method of a segment must be
+   * called with the segment's monitor held.
+   */
+  private static class Segment {
+    // The number of pages this segment holds before it starts evicting.
+    int numFrames;
+    // Resident pages keyed by virtual page number.
+    HashMap<Long, Page> frames = new HashMap<Long, Page>();
+    // Decides which resident page to evict.
+    ReplacementPolicy policy;
+
+    long numHits;
+    long numMisses;
+    long numEvictions;
+    long numDirtyEvictions;
+
+    Segment(int numFrames, ReplacementPolicy.Type policyType) {
+      this.numFrames = numFrames;
+      this.policy = policyType.newPolicy(numFrames);
+    }
+  }
+
+  // The number of pages this pool holds before it starts evicting.
+  private final int numFrames;
+  private final ReplacementPolicy.Type policyType;
+  private final Segment[] segments;
+
+  // Off-heap page buffers given back by positional-I/O allocators, keyed by
+  // their size and reused for the next page of that size any allocator sharing
+  // this pool reads in. At most numFrames buffers are kept in all.
+  private final HashMap<Integer, ArrayDeque<ByteBuffer>> freeBuffers =
+    new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+  private int numFreeBuffers = 0;
+
+  // The background writer, or null if it is not running.
+  private Thread writer;
+  private volatile boolean writerRunning = false;
+  private volatile int writeRate = DEFAULT_WRITE_RATE;
+  private final LongAdder numBackgroundWrites = new LongAdder();
+
+  // Read-ahead. The prefetch threads are started the first time they are
+  // needed.
+  private volatile int readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+  private ExecutorService prefetcher;
+  private boolean closed = false;
+  private final LongAdder numPrefetches = new LongAdder();
+
+  // The backend of the allocators that do not choose one.
+  private volatile PageAllocator.Backend backend = PageAllocator.Backend.MMAP;
+
+  /**
+   * Create a new LRU buffer pool which holds up to numFrames unpinned pages.
+   *
+   * @param numFrames the number of page frames in the pool
+   */
+  public BufferPool(int numFrames) {
+    this(numFrames, ReplacementPolicy.Type.LRU);
+  }
+
+  /**
+   * Create a new buffer pool which holds up to numFrames unpinned pages and
+   * evicts pages according to policyType.
+   *
+   * @param numFrames the number of page frames in the pool
+   * @param policyType the page replacement policy of the pool
+   */
+  public BufferPool(int numFrames, ReplacementPolicy.Type policyType) {
+    this(numFrames, policyType, defaultNumSegments(numFrames));
+  }
+
+  /**
+   * Create a new buffer pool which holds up to numFrames unpinned pages,
+   * evicts pages according to policyType, and is split into numSegments
+   * independently locked segments.
+   *
+   * @param numFrames the number of page frames in the pool
+   * @param policyType the page replacement policy of the pool
+   * @param numSegments the number of segments, a power of two no larger than
+   * numFrames
+   */
+  public BufferPool(int numFrames, ReplacementPolicy.Type policyType, int numSegments) {
+    if (numFrames <= 0) {
+      throw new IllegalArgumentException("A buffer pool needs at least one frame.");
+    }
+    if (numSegments <= 0 || Integer.bitCount(numSegments) != 1 || numSegments > numFrames) {
+      throw new IllegalArgumentException(
+        "The number of segments must be a power of two no larger than the number of frames.");
+    }
+    this.numFrames = numFrames;
+    this.policyType = policyType;
+    this.segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      // Spread the remainder over the first few segments.
+      int segmentFrames = numFrames / numSegments + (i < numFrames % numSegments ? 1 : 0);
+      this.segments[i] = new Segment(segmentFrames, policyType);
+    }
+  }
+
+  private static int defaultNumSegments(int numFrames) {
+    int numSegments = 1;
+    while (numSegments < MAX_DEFAULT_NUM_SEGMENTS &&
+           numFrames / (2 * numSegments) >= MIN_DEFAULT_SEGMENT_SIZE) {
+      numSegments *= 2;
+    }
+    return numSegments;
+  }
+
+  private Segment segmentFor(long vPageNum) {
+    // vPageNum has the allocator id in its high bits and the page number in its
+    // low bits; mix both so neighbouring pages land in different segments.
+    long h = vPageNum * 0x9E3779B97F4A7C15L;
+    int index = (int) (h >>> 32) & (this.segments.length - 1);
+    return this.segments[index];
+  }
+
+  public int getNumFrames() {
+    return this.numFrames;
+  }
+
+  public int getNumSegments() {
+    return this.segments.length;
+  }
+
+  public ReplacementPolicy.Type getPolicyType() {
+    return this.policyType;
+  }
+
+  /**
+   * @return the number of pages currently resident in the pool
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        size += segment.frames.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return the number of page fetches that found the page resident
+   */
+  public long getNumHits() {
+    long numHits = 0;
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        numHits += segment.numHits;
+      }
+    }
+    return numHits;
+  }
+
+  /**
+   * @return the number of page fetches that had to bring the page in
+   */
+  public long getNumMisses() {
+    long numMisses = 0;
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        numMisses += segment.numMisses;
+      }
+    }
+    return numMisses;
+  }
+
+  /**
+   * @return the number of pages evicted to make room for other pages
+   */
+  public long getNumEvictions() {
+    long numEvictions = 0;
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        numEvictions += segment.numEvictions;
+      }
+    }
+    return numEvictions;
+  }
+
+  /**
+   * @return the number of evicted pages that were dirty, and so had to be
+   * written back by the thread that evicted them
+   */
+  public long getNumDirtyEvictions() {
+    long numDirtyEvictions = 0;
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        numDirtyEvictions += segment.numDirtyEvictions;
+      }
+    }
+    return numDirtyEvictions;
+  }
+
+  /**
+   * @return the number of pages written back by the background writer
+   */
+  public long getNumBackgroundWrites() {
+    return this.numBackgroundWrites.sum();
+  }
+
+  /**
+   * @return the number of pages read ahead of sequential scans
+   */
+  public long getNumPrefetches() {
+    return this.numPrefetches.sum();
+  }
+
+  /**
+   * @return the fraction of page fetches that were hits, or 0 if no page has
+   * been fetched yet
+   */
+  public double getHitRate() {
+    long numHits = getNumHits();
+    long numFetches = numHits + getNumMisses();
+    return numFetches == 0 ? 0.0 : (double) numHits / numFetches;
+  }
+
+  /**
+   * Resets the hit, miss, and eviction counters to zero.
+   */
+  public void resetStats() {
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        segment.numHits = 0;
+        segment.numMisses = 0;
+        segment.numEvictions = 0;
+        segment.numDirtyEvictions = 0;
+      }
+    }
+    this.numBackgroundWrites.reset();
+    this.numPrefetches.reset();
+  }
+
+  /**
+   * Sets the backend of the allocators constructed from now on with this pool
+   * and no explicit backend. Allocators that are already open keep theirs.
+   */
+  public void setBackend(PageAllocator.Backend backend) {
+    if (backend == null) {
+      throw new IllegalArgumentException("The backend must not be null.");
+    }
+    this.backend = backend;
+  }
+
+  public PageAllocator.Backend getBackend() {
+    return this.backend;
+  }
+
+  // Read-ahead ////////////////////////////////////////////////////////////////
+  /**
+   * Sets how many pages allocators sharing this pool read ahead of a
+   * sequential scan. 0 turns read-ahead off.
+   *
+   * @param numPages the number of pages to read ahead
+   */
+  public void setReadAheadPages(int numPages) {
+    if (numPages < 0) {
+      throw new IllegalArgumentException("The read-ahead must not be negative.");
+    }
+    this.readAheadPages = numPages;
+  }
+
+  public int getReadAheadPages() {
+    return this.readAheadPages;
+  }
+
+  /**
+   * Runs task on one of the pool's prefetch threads. Once the pool is closed,
+   * task is dropped, since read-ahead is only a hint.
+   */
+  synchronized void prefetch(Runnable task) {
+    if (this.closed) {
+      return;
+    }
+    if (this.prefetcher == null) {
+      this.prefetcher = Executors.newFixedThreadPool(NUM_PREFETCH_THREADS, r -> {
+        Thread t = new Thread(r, "buffer-pool-prefetcher");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    this.prefetcher.execute(task);
+  }
+
+  /**
+   * Called by an allocator for every page it reads ahead.
+   */
+  void recordPrefetch() {
+    this.numPrefetches.increment();
+  }
+
+  /**
+   * Stops the background writer, if it is running, and the prefetch threads,
+   * and waits for them to exit. Read-aheads that have not started yet are
+   * dropped, and no more are started. Pages stay resident, and dirty pages
+   * are written back when their allocators are closed.
+   */
+  public void close() {
+    stopBackgroundWriter();
+    ExecutorService prefetcher;
+    synchronized (this) {
+      this.closed = true;
+      prefetcher = this.prefetcher;
+      this.prefetcher = null;
+    }
+    if (prefetcher == null) {
+      return;
+    }
+    prefetcher.shutdownNow();
+    try {
+      prefetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Background writer /////////////////////////////////////////////////////////
+  /**
+   * Starts a daemon thread which writes back dirty, unpinned pages in virtual
+   * page number order, at most pagesPerSecond pages per second. If the writer
+   * is already running, only its rate is changed.
+   *
+   * @param pagesPerSecond the maximum write rate
+   */
+  public synchronized void startBackgroundWriter(int pagesPerSecond) {
+    if (pagesPerSecond <= 0) {
+      throw new IllegalArgumentException("The write rate must be positive.");
+    }
+    this.writeRate = pagesPerSecond;
+    if (this.writer != null) {
+      return;
+    }
+    this.writerRunning = true;
+    this.writer = new Thread(this::runBackgroundWriter, "buffer-pool-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Stops the background writer, if it is running, and waits for it to exit.
+   * Dirty pages stay dirty until they are evicted or their allocator is
+   * closed.
+   */
+  public synchronized void stopBackgroundWriter() {
+    if (this.writer == null) {
+      return;
+    }
+    this.writerRunning = false;
+    this.writer.interrupt();
+    try {
+      this.writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.writer = null;
+  }
+
+  public boolean isBackgroundWriterRunning() {
+    return this.writerRunning;
+  }
+
+  private void runBackgroundWriter() {
+    while (this.writerRunning) {
+      List<Page> dirtyPages = dirtyPages();
+      if (dirtyPages.isEmpty()) {
+        try {
+          Thread.sleep(WRITER_IDLE_MILLIS);
+        } catch (InterruptedException e) {
+          // stopBackgroundWriter interrupts us to exit promptly.
+        }
+        continue;
+      }
+
+      // Write the pages back one at a time at the configured rate, and then
+      // force each written page's whole file once rather than once per page.
+      // Forcing only the written page's block would leave the other pages of
+      // a memory-mapped file (see MappedPageStore#force) unforced.
+      List<Page> written = new ArrayList<Page>();
+      for (Page page : dirtyPages) {
+        if (!this.writerRunning) {
+          break;
+        }
+        long start = System.nanoTime();
+        try {
+          if (!page.isPinned() && page.writeBack()) {
+            written.add(page);
+            this.numBackgroundWrites.increment();
+          }
+        } catch (PageException e) {
+          // The page's allocator was closed under us; close wrote it back.
+        }
+        long remaining = 1000000000L / this.writeRate - (System.nanoTime() - start);
+        if (remaining > 0) {
+          LockSupport.parkNanos(remaining);
+        }
+      }
+      Set<PageStore> forced = Collections.newSetFromMap(new IdentityHashMap<PageStore, Boolean>());
+      for (Page page : written) {
+        if (forced.add(page.getStore())) {
+          try {
+            page.force();
+          } catch (PageException e) {
+            // As above.
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return every resident page that is dirty and unpinned, in virtual page
+   * number order
+   */
+  private List<Page> dirtyPages() {
+    TreeMap<Long, Page> dirty = new TreeMap<Long, Page>();
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        for (Map.Entry<Long, Page> entry : segment.frames.entrySet()) {
+          Page page = entry.getValue();
+          if (page.isDirty() && !page.isPinned()) {
+            dirty.put(entry.getKey(), page);
+          }
+        }
+      }
+    }
+    return new ArrayList<Page>(dirty.values());
+  }
+
+  /**
+   * Returns an off-heap buffer of pageSize bytes with position 0.
+   */
+  ByteBuffer allocateBuffer(int pageSize) {
+    synchronized (this.freeBuffers) {
+      ArrayDeque<ByteBuffer> buffers = this.freeBuffers.get(pageSize);
+      ByteBuffer buf = buffers == null ? null : buffers.poll();
+      if (buf != null) {
+        this.numFreeBuffers--;
+        buf.clear();
+        return buf;
+      }
+    }
+    return ByteBuffer.allocateDirect(pageSize);
+  }
+
+  /**
+   * Gives back a buffer returned by allocateBuffer that is no longer used.
+   */
+  void releaseBuffer(ByteBuffer buf) {
+    synchronized (this.freeBuffers) {
+      if (this.numFreeBuffers < this.numFrames) {
+        this.freeBuffers.computeIfAbsent(buf.capacity(), k -> new ArrayDeque<ByteBuffer>()).push(buf);
+        this.numFreeBuffers++;
+      }
+    }
+  }
+
+  /**
+   * @return whether a page is resident under vPageNum. Unlike get, this is
+   * neither a hit nor a miss and does not count as an access.
+   */
+  boolean contains(long vPageNum) {
+    Segment segment = segmentFor(vPageNum);
+    synchronized (segment) {
+      return segment.frames.containsKey(vPageNum);
+    }
+  }
+
+  /**
+   * Returns the resident page with virtual page number vPageNum, or null if
+   * the page is not resident. A null return counts as a miss, and the caller
+   * is expected to bring the page in with put. If pin is true, the returned
+   * page is pinned before any other thread can evict it.
+   */
+  Page get(long vPageNum, boolean pin) {
+    Segment segment = segmentFor(vPageNum);
+    synchronized (segment) {
+      Page page = segment.frames.get(vPageNum);
+      if (page == null) {
+        segment.numMisses++;
+        return null;
+      }
+      segment.numHits++;
+      segment.policy.recordAccess(vPageNum);
+      if (pin) {
+        page.pin();
+      }
+      return page;
+    }
+  }
+
+  /**
+   * Makes page resident under virtual page number vPageNum, unless another
+   * page is already resident under vPageNum (e.g. because another thread
+   * brought it in first), and evicts as many unpinned pages as needed to get
+   * the segment back under its share of the frames. Evicted pages are flushed
+   * before put returns, outside of any lock.
+   *
+   * @return the page that is resident under vPageNum, pinned if pin is true
+   */
+  Page put(long vPageNum, Page page, boolean pin) {
+    Segment segment = segmentFor(vPageNum);
+    List<Page> evicted = new ArrayList<Page>();
+    Page resident;
+    synchronized (segment) {
+      resident = segment.frames.putIfAbsent(vPageNum, page);
+      if (resident == null) {
+        resident = page;
+        segment.policy.recordInsert(vPageNum);
+      } else {
+        segment.policy.recordAccess(vPageNum);
+      }
+      if (pin) {
+        resident.pin();
+      }
+      while (segment.frames.size() > segment.numFrames) {
+        // The page being brought in is about to be used, so it is never its
+        // own victim. Clean pages are preferred, since evicting a dirty page
+        // means writing it back on this thread.
+        Long victim = segment.policy.evict(v -> v != vPageNum &&
+            !segment.frames.get(v).isPinned() && !segment.frames.get(v).isDirty());
+        if (victim == null) {
+          victim = segment.policy.evict(
+              v -> v != vPageNum && !segment.frames.get(v).isPinned());
+        }
+        if (victim == null) {
+          break;
+        }
+        Page victimPage = segment.frames.remove(victim);
+        evicted.add(victimPage);
+        segment.numEvictions++;
+        if (victimPage.isDirty()) {
+          segment.numDirtyEvictions++;
+        }
+      }
+    }
+    for (Page p : evicted) {
+      p.evict();
+    }
+    return resident;
+  }
+
+  /**
+   * Drops the page with virtual page number vPageNum from the pool without
+   * flushing it.
+   *
+   * @return the page that was resident, or null if there was none
+   */
+  Page remove(long vPageNum) {
+    Segment segment = segmentFor(vPageNum);
+    synchronized (segment) {
+      Page page = segment.frames.remove(vPageNum);
+      if (page != null) {
+        segment.policy.recordRemove(vPageNum);
+      }
+      return page;
+    }
+  }
+
+  /**
+   * Drops every page belonging to the allocator with id allocID from the pool
+   * without flushing them.
+   *
+   * @return the pages that were resident
+   */
+  List<Page> removeAll(int allocID) {
+    List<Page> removed = new ArrayList<Page>();
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        Iterator<Map.Entry<Long, Page>> iter = segment.frames.entrySet().iterator();
+        while (iter.hasNext()) {
+          Map.Entry<Long, Page> entry = iter.next();
+          if (PageAllocator.translateAllocator(entry.getKey()) == allocID) {
+            removed.add(entry.getValue());
+            iter.remove();
+            segment.policy.recordRemove(entry.getKey());
+          }
+        }
+      }
+    }
+    return removed;
+  }
+}
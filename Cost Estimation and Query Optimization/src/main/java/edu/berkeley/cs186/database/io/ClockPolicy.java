@@ -0,0 +1,89 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * CLOCK replacement. Resident pages sit in a circular array of slots, each with
+ * a reference bit that is set whenever the page is accessed. To find a victim,
+ * the clock hand sweeps the slots, clearing set reference bits, and evicts the
+ * first evictable page whose bit is already clear.
+ */
+class ClockPolicy implements ReplacementPolicy {
+  private static final long EMPTY = -1;
+
+  // slots[i] is the virtual page number in slot i, or EMPTY.
+  private long[] slots = new long[16];
+  private boolean[] referenced = new boolean[16];
+  private HashMap<Long, Integer> slotOf = new HashMap<Long, Integer>();
+  private ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+  private int numSlotsUsed = 0;
+  private int hand = 0;
+
+  ClockPolicy() {
+    Arrays.fill(this.slots, EMPTY);
+  }
+
+  public void recordInsert(long vPageNum) {
+    if (this.slotOf.containsKey(vPageNum)) {
+      recordAccess(vPageNum);
+      return;
+    }
+    int slot;
+    if (!this.freeSlots.isEmpty()) {
+      slot = this.freeSlots.pop();
+    } else {
+      if (this.numSlotsUsed == this.slots.length) {
+        int oldLength = this.slots.length;
+        this.slots = Arrays.copyOf(this.slots, 2 * oldLength);
+        this.referenced = Arrays.copyOf(this.referenced, 2 * oldLength);
+        Arrays.fill(this.slots, oldLength, this.slots.length, EMPTY);
+      }
+      slot = this.numSlotsUsed++;
+    }
+    this.slots[slot] = vPageNum;
+    this.referenced[slot] = true;
+    this.slotOf.put(vPageNum, slot);
+  }
+
+  public void recordAccess(long vPageNum) {
+    Integer slot = this.slotOf.get(vPageNum);
+    if (slot != null) {
+      this.referenced[slot] = true;
+    }
+  }
+
+  public void recordRemove(long vPageNum) {
+    Integer slot = this.slotOf.remove(vPageNum);
+    if (slot != null) {
+      this.slots[slot] = EMPTY;
+      this.referenced[slot] = false;
+      this.freeSlots.push(slot);
+    }
+  }
+
+  public Long evict(LongPredicate canEvict) {
+    if (this.slotOf.isEmpty()) {
+      return null;
+    }
+    // Two full sweeps are enough: the first clears every reference bit, so the
+    // second finds a victim unless no page may be evicted.
+    for (int i = 0; i < 2 * this.numSlotsUsed; i++) {
+      int slot = this.hand;
+      this.hand = (this.hand + 1) % this.numSlotsUsed;
+      long vPageNum = this.slots[slot];
+      if (vPageNum == EMPTY || !canEvict.test(vPageNum)) {
+        continue;
+      }
+      if (this.referenced[slot]) {
+        this.referenced[slot] = false;
+      } else {
+        recordRemove(vPageNum);
+        return vPageNum;
+      }
+    }
+    return null;
+  }
+}
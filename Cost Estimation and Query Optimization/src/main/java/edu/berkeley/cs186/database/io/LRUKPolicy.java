@@ -0,0 +1,144 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.LongPredicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil, and Weikum). The policy remembers the
+ * times of the last k accesses of every resident page and evicts the page
+ * whose k-th most recent access is the oldest. Pages accessed fewer than k
+ * times are evicted first, least recently used first. A page touched once by a
+ * scan therefore loses to any page that has been used k times.
+ *
+ * Time is counted in accesses to the pool. As in the paper, accesses that
+ * follow the last access of a page within the correlated reference period
+ * (e.g. a scan fetching one record of a page after another) count as one
+ * access, so a single scan cannot give a page k accesses. The history of an
+ * evicted page is retained for a while, bounded by the number of frames, so
+ * that a page that is re-read soon after its eviction keeps the accesses it
+ * had.
+ */
+class LRUKPolicy implements ReplacementPolicy {
+  // The correlated reference period and the number of histories of evicted
+  // pages retained, as fractions of the number of frames.
+  private static final double CORRELATED_FRACTION = 0.25;
+  private static final double RETAINED_FRACTION = 1.0;
+
+  private static class History implements Comparable<History> {
+    long vPageNum;
+    // times[0] is the most recent uncorrelated access; unused entries are 0.
+    long[] times;
+    // The time of the most recent access, correlated or not.
+    long last;
+
+    History(long vPageNum, int k) {
+      this.vPageNum = vPageNum;
+      this.times = new long[k];
+    }
+
+    void access(long time, long correlatedPeriod) {
+      if (this.last != 0 && time - this.last <= correlatedPeriod) {
+        this.last = time;
+        return;
+      }
+      // The correlated accesses that ended at last are one access at times[0],
+      // so the earlier accesses move up by the length of that period.
+      long correlated = this.last - this.times[0];
+      for (int i = this.times.length - 1; i > 0; --i) {
+        this.times[i] = this.times[i - 1] == 0 ? 0 : this.times[i - 1] + correlated;
+      }
+      this.times[0] = time;
+      this.last = time;
+    }
+
+    // The k-th most recent uncorrelated access time, or 0 (infinitely long
+    // ago) if the page has been accessed fewer than k times.
+    long kthAccess() {
+      return this.times[this.times.length - 1];
+    }
+
+    public int compareTo(History h) {
+      int c = Long.compare(this.kthAccess(), h.kthAccess());
+      if (c == 0) {
+        c = Long.compare(this.last, h.last);
+      }
+      if (c == 0) {
+        c = Long.compare(this.vPageNum, h.vPageNum);
+      }
+      return c;
+    }
+  }
+
+  private int k;
+  private long correlatedPeriod;
+  private long clock = 0;
+  private HashMap<Long, History> histories = new HashMap<Long, History>();
+  // Resident pages ordered from the best to the worst victim.
+  private TreeSet<History> order = new TreeSet<History>();
+  // The histories of recently evicted pages, oldest eviction first.
+  private LinkedHashMap<Long, History> retained;
+
+  LRUKPolicy(int k, int numFrames) {
+    if (k < 1) {
+      throw new IllegalArgumentException("LRU-K needs k >= 1.");
+    }
+    this.k = k;
+    this.correlatedPeriod = Math.max(1, (long) (numFrames * CORRELATED_FRACTION));
+    int maxRetained = Math.max(1, (int) (numFrames * RETAINED_FRACTION));
+    this.retained = new LinkedHashMap<Long, History>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, History> eldest) {
+        return size() > maxRetained;
+      }
+    };
+  }
+
+  public void recordInsert(long vPageNum) {
+    if (!this.histories.containsKey(vPageNum)) {
+      History h = this.retained.remove(vPageNum);
+      if (h == null) {
+        h = new History(vPageNum, this.k);
+      }
+      this.histories.put(vPageNum, h);
+      h.access(++this.clock, this.correlatedPeriod);
+      this.order.add(h);
+    } else {
+      recordAccess(vPageNum);
+    }
+  }
+
+  public void recordAccess(long vPageNum) {
+    History h = this.histories.get(vPageNum);
+    if (h != null) {
+      this.order.remove(h);
+      h.access(++this.clock, this.correlatedPeriod);
+      this.order.add(h);
+    }
+  }
+
+  public void recordRemove(long vPageNum) {
+    // The page is gone (e.g. freed), so its history is not retained.
+    History h = this.histories.remove(vPageNum);
+    if (h != null) {
+      this.order.remove(h);
+    }
+  }
+
+  public Long evict(LongPredicate canEvict) {
+    Iterator<History> iter = this.order.iterator();
+    while (iter.hasNext()) {
+      History h = iter.next();
+      if (canEvict.test(h.vPageNum)) {
+        iter.remove();
+        this.histories.remove(h.vPageNum);
+        this.retained.put(h.vPageNum, h);
+        return h.vPageNum;
+      }
+    }
+    return null;
+  }
+}
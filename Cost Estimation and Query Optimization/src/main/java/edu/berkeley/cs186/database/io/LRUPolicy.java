@@ -0,0 +1,41 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.LongPredicate;
+
+/**
+ * Least recently used replacement. Every access moves a page to the back of a
+ * queue and victims are taken from the front.
+ */
+class LRUPolicy implements ReplacementPolicy {
+  // Resident pages from least to most recently used.
+  private LinkedHashSet<Long> queue = new LinkedHashSet<Long>();
+
+  public void recordInsert(long vPageNum) {
+    this.queue.remove(vPageNum);
+    this.queue.add(vPageNum);
+  }
+
+  public void recordAccess(long vPageNum) {
+    if (this.queue.remove(vPageNum)) {
+      this.queue.add(vPageNum);
+    }
+  }
+
+  public void recordRemove(long vPageNum) {
+    this.queue.remove(vPageNum);
+  }
+
+  public Long evict(LongPredicate canEvict) {
+    Iterator<Long> iter = this.queue.iterator();
+    while (iter.hasNext()) {
+      Long vPageNum = iter.next();
+      if (canEvict.test(vPageNum)) {
+        iter.remove();
+        return vPageNum;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,111 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A PageStore which memory-maps its file in segments of SEGMENT_SIZE bytes.
+ * Every loaded block is a zero-copy slice of the segment it lives in. A
+ * segment is first mapped with MIN_MAPPING_SIZE bytes and remapped at twice
+ * the size whenever a block past the end of the mapping is needed, so that
+ * small files stay small. Both sizes are multiples of the page size, so no
+ * block straddles two segments.
+ */
+class MappedPageStore implements PageStore {
+  static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+  static final long MIN_MAPPING_SIZE = 64L * 1024;
+
+  private FileChannel fc;
+  private int pageSize;
+  // segments[i] maps the file from byte i * SEGMENT_SIZE on, or is null if no
+  // block of segment i has been loaded yet.
+  private MappedByteBuffer[] segments;
+
+  MappedPageStore(FileChannel fc, int pageSize) {
+    this.fc = fc;
+    this.pageSize = pageSize;
+    this.segments = new MappedByteBuffer[0];
+  }
+
+  public ByteBuffer load(long blockNum) {
+    long offset = blockNum * this.pageSize;
+    int segmentOffset = (int) (offset % SEGMENT_SIZE);
+    ByteBuffer view = segment(offset, true).duplicate();
+    view.position(segmentOffset);
+    view.limit(segmentOffset + this.pageSize);
+    return view.slice();
+  }
+
+  public int getPageSize() {
+    return this.pageSize;
+  }
+
+  public void store(long blockNum, ByteBuffer data) {
+    // Writes to a slice of the mapping are already in the OS page cache.
+  }
+
+  public void force(long blockNum) {
+    MappedByteBuffer segment = segment(blockNum * this.pageSize, false);
+    if (segment != null) {
+      segment.force();
+    }
+  }
+
+  public synchronized void forceAll() {
+    for (MappedByteBuffer segment : this.segments) {
+      if (segment != null) {
+        segment.force();
+      }
+    }
+  }
+
+  public void release(ByteBuffer data) {}
+
+  public boolean detachesOnEvict() {
+    return false;
+  }
+
+  public synchronized void close() {
+    this.segments = new MappedByteBuffer[0];
+  }
+
+  /**
+   * Returns the segment mapping containing the block at byte offset, mapping
+   * or growing the segment first if map is true. If map is false and the block
+   * is not mapped, null is returned.
+   */
+  private synchronized MappedByteBuffer segment(long offset, boolean map) {
+    int segmentIndex = (int) (offset / SEGMENT_SIZE);
+    int segmentOffset = (int) (offset % SEGMENT_SIZE);
+    if (segmentIndex >= this.segments.length) {
+      if (!map) {
+        return null;
+      }
+      this.segments = Arrays.copyOf(this.segments, segmentIndex + 1);
+    }
+    MappedByteBuffer segment = this.segments[segmentIndex];
+    if (segment == null || segment.capacity() < segmentOffset + this.pageSize) {
+      if (!map) {
+        return segment;
+      }
+      long size = segment == null ? MIN_MAPPING_SIZE : segment.capacity();
+      while (size < segmentOffset + this.pageSize) {
+        size *= 2;
+      }
+      size = Math.min(size, SEGMENT_SIZE);
+      try {
+        // Blocks sliced from the old, smaller mapping stay valid: both
+        // mappings share the file's pages in the OS page cache.
+        segment = this.fc.map(FileChannel.MapMode.READ_WRITE, segmentIndex * SEGMENT_SIZE, size);
+      } catch (IOException e) {
+        throw new PageException("Can't mmap segment " + segmentIndex + " of size " + size +
+                                " ; " + e.getMessage());
+      }
+      this.segments[segmentIndex] = segment;
+    }
+    return segment;
+  }
+}
@@ -1,49 +1,150 @@
 package edu.berkeley.cs186.database.io;
 
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * General-purpose wrapper for interacting with the memory-mapped bytes on a page.
+ * General-purpose wrapper for interacting with the bytes on a page. A Page reads and writes its
+ * bytes through the PageStore of its PageAllocator: with a memory-mapped store, a page is a
+ * zero-copy window onto a large mapped segment of the file; with a positional-I/O store, a page
+ * is an off-heap buffer that is written back to the file when the page is flushed.
+ *
+ * A PageAllocator hands out at most one Page object per page. When a page of a positional-I/O
+ * store is evicted from its buffer pool, it is written back and its buffer is recycled; the next
+ * access through any reference to the Page reads it back in. The read and write methods pin the
+ * page for the duration of the access, so that its buffer is never recycled under them, even when
+ * another thread (e.g. a prefetch thread of the buffer pool) evicts the page. A buffer returned by
+ * getByteBuffer is only guaranteed to stay valid while the page is pinned.
+ *
+ * A page is dirty from the moment it is written until it is next written back. The write methods
+ * mark the page dirty after they write, and getByteBuffer marks it dirty because the caller may
+ * write through the buffer; code that only reads should use getReadOnlyByteBuffer or the read
+ * methods instead. A page whose buffer is written through directly must be pinned while it is
+ * written, since the background writer of the buffer pool only writes back unpinned pages.
+ *
+ * Every page of a file has the page size chosen when the file was created (see PageAllocator), a
+ * power of two between MIN_PAGE_SIZE and MAX_PAGE_SIZE. Page.pageSize is the default, and the
+ * size of every page of a file created before page sizes were configurable.
  *
  * YOU SHOULD NOT NEED TO CHANGE ANY OF THE CODE IN THIS PACKAGE.
  */
 public class Page {
   public static final int pageSize = 4096;
+  public static final int MIN_PAGE_SIZE = 4096;
+  public static final int MAX_PAGE_SIZE = 64 * 1024;
+
+  // Copied by wipe; never written.
+  private static final byte[] ZEROS = new byte[MAX_PAGE_SIZE];
 
-  private MappedByteBuffer pageData;
+  // The bytes of the page, or null if the page has been evicted and its buffer
+  // given back to the store.
+  private volatile ByteBuffer pageData;
+  // The allocator the page belongs to, told when the page is read back in
+  // after an eviction; null for the allocator's own metadata pages.
+  private PageAllocator allocator;
+  private PageStore store;
+  private long blockNum;
   private int pageNum;
   private boolean durable;
+  // The size of this page, and of every other page of its file.
+  private int size;
+  // Whether the page has been written since it was last written back.
+  private volatile boolean dirty = false;
+  // The number of outstanding pins on this page; see PageAllocator#pinPage.
+  private AtomicInteger pinCount = new AtomicInteger(0);
 
   /**
-   * Create a new page using fc with at offset blockNum with virtual page number pageNum
+   * Create a new page for block blockNum of store with virtual page number pageNum.
    *
-   * @param fc the file channel for this Page
+   * @param allocator the allocator the page belongs to, or null
+   * @param store the store the page's bytes live in
    * @param blockNum the block in the file for this page
    * @param pageNum the virtual page number
+   * @param durable whether flush forces the page to disk
    */
-  public Page(FileChannel fc, int blockNum, int pageNum) {
-    this(fc, blockNum, pageNum, true);
+  Page(PageAllocator allocator, PageStore store, long blockNum, int pageNum, boolean durable) {
+    this(allocator, store, blockNum, pageNum, durable, load(store, blockNum));
   }
 
-  public Page(FileChannel fc, int blockNum, int pageNum, boolean durable) {
+  /**
+   * Create a new page for block blockNum of store whose bytes data have already been read with
+   * store.load(blockNum).
+   */
+  Page(PageAllocator allocator, PageStore store, long blockNum, int pageNum, boolean durable,
+       ByteBuffer data) {
+    this.allocator = allocator;
+    this.store = store;
+    this.blockNum = blockNum;
     this.pageNum = pageNum;
     this.durable = durable;
+    this.size = store.getPageSize();
+    this.pageData = data;
+  }
+
+  /**
+   * Reads block blockNum of store, counting the read as an I/O.
+   */
+  static ByteBuffer load(PageStore store, long blockNum) {
     PageAllocator.incrementCacheMisses();
-    try {
-      this.pageData = fc.map(FileChannel.MapMode.READ_WRITE, blockNum*Page.pageSize, Page.pageSize);
-    } catch (IOException e) {
-      throw new PageException("Can't mmap page: " + pageNum + "at block: " + blockNum + " ; " + e.getMessage());
+    return store.load(blockNum);
+  }
+
+  /**
+   * Returns the bytes of the page, reading them back in if the page was evicted.
+   */
+  private ByteBuffer data() {
+    ByteBuffer data = this.pageData;
+    if (data != null) {
+      return data;
+    }
+    synchronized (this) {
+      if (this.pageData != null) {
+        return this.pageData;
+      }
+      PageAllocator.incrementCacheMisses();
+      data = this.store.load(this.blockNum);
+      this.pageData = data;
+    }
+    // Outside of the page's lock, since making the page resident may evict
+    // other pages.
+    if (this.allocator != null) {
+      try {
+        this.allocator.reattach(this);
+      } catch (PageException e) {
+        // The page was freed, so its block must not be read or written
+        // through this reference.
+        detach();
+        throw e;
+      }
     }
+    return data;
   }
 
+  /**
+   * Returns a view of the bytes of the page with position 0. The view shares the page's bytes but
+   * has its own position and limit, so callers may move it freely. The page is marked dirty, since
+   * the caller may write through the view.
+   */
   public ByteBuffer getByteBuffer() {
-    pageData.position(0);
-    return pageData;
+    ByteBuffer view = data().duplicate();
+    view.clear();
+    this.dirty = true;
+    return view;
+  }
+
+  /**
+   * Returns a read-only view of the bytes of the page with position 0. Unlike getByteBuffer, this
+   * does not mark the page dirty.
+   */
+  public ByteBuffer getReadOnlyByteBuffer() {
+    ByteBuffer view = data().asReadOnlyBuffer();
+    view.clear();
+    return view;
   }
 
+  // The accessors below take absolute offsets and never move the position of the page's buffer,
+  // so any number of threads may use them on the same page at once.
+
   /**
    * Reads num bytes from offset position into buf.
    *
@@ -52,14 +153,10 @@ public class Page {
    * @param buf the buffer to put the bytes into
    */
   public void readBytes(int position, int num, byte[] buf) {
-    if (Page.pageSize < position + num) {
-      throw new PageException("readBytes is out of bounds");
-    }
     if (buf.length < num) {
       throw new PageException("num bytes to read is longer than buffer");
     }
-    pageData.position(position);
-    pageData.get(buf, 0, num);
+    getBytes(position, buf, 0, num);
   }
 
   /**
@@ -70,11 +167,9 @@ public class Page {
    * @return a new byte array with the bytes read
    */
   public byte[] readBytes(int position, int num) {
-    if (Page.pageSize < position + num) {
-      throw new PageException("readBytes is out of bounds");
-    }
+    checkBounds(position, num, "readBytes");
     byte[] data = new byte[num];
-    readBytes(position, num, data);
+    getBytes(position, data, 0, num);
     return data;
   }
 
@@ -84,7 +179,27 @@ public class Page {
    * @return a new byte array with all the bytes in the file
    */
   public byte[] readBytes() {
-    return readBytes(0, Page.pageSize);
+    return readBytes(0, this.size);
+  }
+
+  /**
+   * Reads num bytes from offset position into dst, starting at dst[offset].
+   *
+   * @param position the offset in the page to read from
+   * @param dst the array to read into
+   * @param offset the offset in dst to read into
+   * @param num the number of bytes to read
+   */
+  public void getBytes(int position, byte[] dst, int offset, int num) {
+    checkBounds(position, num, "getBytes");
+    pin();
+    try {
+      ByteBuffer view = data().duplicate();
+      view.position(position);
+      view.get(dst, offset, num);
+    } finally {
+      unpin();
+    }
   }
 
   /**
@@ -94,10 +209,13 @@ public class Page {
    * @return the byte at offset position
    */
   public byte readByte(int position) {
-    if (position < 0 || position >= Page.pageSize) {
-      throw new PageException("readByte is out of bounds of page");
+    checkBounds(position, 1, "readByte");
+    pin();
+    try {
+      return data().get(position);
+    } finally {
+      unpin();
     }
-    return pageData.get(position);
   }
 
   /**
@@ -111,17 +229,28 @@ public class Page {
     if (buf.length < num) {
       throw new PageException("num bytes to write is longer than buffer");
     }
+    putBytes(position, buf, 0, num);
+  }
 
-    if (position < 0 || num < 0) {
-      throw new PageException("position or num can't be negative");
-    }
-
-    if (Page.pageSize < num + position) {
-      throw new PageException("writeBytes would go out of bounds");
+  /**
+   * Writes num bytes of src, starting at src[offset], at offset position.
+   *
+   * @param position the offset in the page to write to
+   * @param src the array to write from
+   * @param offset the offset in src to write from
+   * @param num the number of bytes to write
+   */
+  public void putBytes(int position, byte[] src, int offset, int num) {
+    checkBounds(position, num, "putBytes");
+    pin();
+    try {
+      ByteBuffer view = data().duplicate();
+      view.position(position);
+      view.put(src, offset, num);
+      this.dirty = true;
+    } finally {
+      unpin();
     }
-
-    pageData.position(position);
-    pageData.put(buf, 0, num);
   }
 
   /**
@@ -131,10 +260,14 @@ public class Page {
    * @param b the byte to write
    */
   public void writeByte(int position, byte b) {
-    if (position < 0 || position >= Page.pageSize) {
-      throw new PageException("readByte is out of bounds of page");
+    checkBounds(position, 1, "writeByte");
+    pin();
+    try {
+      data().put(position, b);
+      this.dirty = true;
+    } finally {
+      unpin();
     }
-    pageData.put(position, b);
   }
 
   /**
@@ -144,7 +277,7 @@ public class Page {
    * @param value the value to write
    */
   public void writeInt(int startPos, int value) {
-    this.writeBytes(startPos, 4, ByteBuffer.allocate(4).putInt(value).array());
+    putInt(startPos, value);
   }
 
   /**
@@ -154,27 +287,212 @@ public class Page {
    * @return the 4-byte integer at startPos
    */
   public int readInt(int startPos) {
-    return ByteBuffer.wrap(this.readBytes(startPos, 4)).getInt();
+    return getInt(startPos);
+  }
+
+  public int getInt(int position) {
+    checkBounds(position, Integer.BYTES, "getInt");
+    pin();
+    try {
+      return data().getInt(position);
+    } finally {
+      unpin();
+    }
+  }
+
+  public void putInt(int position, int value) {
+    checkBounds(position, Integer.BYTES, "putInt");
+    pin();
+    try {
+      data().putInt(position, value);
+      this.dirty = true;
+    } finally {
+      unpin();
+    }
+  }
+
+  public long getLong(int position) {
+    checkBounds(position, Long.BYTES, "getLong");
+    pin();
+    try {
+      return data().getLong(position);
+    } finally {
+      unpin();
+    }
+  }
+
+  public void putLong(int position, long value) {
+    checkBounds(position, Long.BYTES, "putLong");
+    pin();
+    try {
+      data().putLong(position, value);
+      this.dirty = true;
+    } finally {
+      unpin();
+    }
+  }
+
+  public float getFloat(int position) {
+    checkBounds(position, Float.BYTES, "getFloat");
+    pin();
+    try {
+      return data().getFloat(position);
+    } finally {
+      unpin();
+    }
+  }
+
+  public void putFloat(int position, float value) {
+    checkBounds(position, Float.BYTES, "putFloat");
+    pin();
+    try {
+      data().putFloat(position, value);
+      this.dirty = true;
+    } finally {
+      unpin();
+    }
   }
 
   /**
    * Completely wipe (zero out) the page.
    */
   public void wipe() {
-    byte[] zeros = new byte[Page.pageSize];
-    this.writeBytes(0, Page.pageSize, zeros);
+    putBytes(0, ZEROS, 0, this.size);
+  }
+
+  /**
+   * @return the size of this page in bytes
+   */
+  public int getPageSize() {
+    return this.size;
+  }
+
+  /**
+   * @return whether size is a page size a file can be created with
+   */
+  public static boolean isValidPageSize(int size) {
+    return MIN_PAGE_SIZE <= size && size <= MAX_PAGE_SIZE && Integer.bitCount(size) == 1;
+  }
+
+  private void checkBounds(int position, int num, String op) {
+    if (position < 0 || num < 0) {
+      throw new PageException(op + ": position or num can't be negative");
+    }
+    if (this.size < position + num) {
+      throw new PageException(op + " is out of bounds of page");
+    }
+  }
+
+  /**
+   * If the page is dirty, write it back to its file and, if the page is durable, force it to disk.
+   * Like force, forcing is not a read of the page and does not count as an I/O.
+   */
+  public synchronized void flush() {
+    if (writeBack() && this.durable) {
+      this.store.force(this.blockNum);
+    }
+  }
+
+  /**
+   * If the page is dirty, write it back to its file without forcing it to disk.
+   *
+   * @return whether the page was dirty
+   */
+  synchronized boolean writeBack() {
+    if (!this.dirty || this.pageData == null) {
+      return false;
+    }
+    // Cleared before the write, so that a write racing with this one leaves
+    // the page dirty.
+    this.dirty = false;
+    this.store.store(this.blockNum, this.pageData);
+    return true;
   }
 
   /**
-   * Force the page to disk.
+   * If the page is durable, force every block of its file to disk, so that
+   * pages written back to any part of the file are durable. This is not a
+   * read of the page, so it does not count as an I/O.
    */
-  public void flush() {
+  void force() {
     if (this.durable) {
-      PageAllocator.incrementCacheMisses();
-      this.pageData.force();
+      this.store.forceAll();
+    }
+  }
+
+  /**
+   * Reads the page in if it is not in memory. Touching the page also faults
+   * it in when the store maps the file, so that a later access does not wait
+   * for the disk.
+   */
+  void prefetch() {
+    readByte(0);
+  }
+
+  PageStore getStore() {
+    return this.store;
+  }
+
+  /**
+   * @return whether the page has been written since it was last written back
+   */
+  public boolean isDirty() {
+    return this.dirty;
+  }
+
+  /**
+   * Called when the page is evicted from its buffer pool. The page is flushed, and if its store
+   * does not keep a view onto the file, its buffer is given back to the store unless the page was
+   * pinned again in the meantime.
+   */
+  synchronized void evict() {
+    flush();
+    ByteBuffer data = this.pageData;
+    if (!this.store.detachesOnEvict() || data == null) {
+      return;
+    }
+    // The read and write methods pin the page before they read pageData, and
+    // pageData is cleared here before the pins are checked, so either such a
+    // method sees null and reads the page back in (waiting for this method to
+    // finish), or the page is seen pinned and keeps its buffer.
+    this.pageData = null;
+    if (isPinned()) {
+      this.pageData = data;
+    } else {
+      this.store.release(data);
+      this.dirty = false;
+    }
+  }
+
+  /**
+   * Gives the page's buffer back to its store without writing it back.
+   */
+  synchronized void detach() {
+    if (this.pageData != null) {
+      this.store.release(this.pageData);
+      this.pageData = null;
+    }
+    this.dirty = false;
+  }
+
+  void pin() {
+    this.pinCount.getAndIncrement();
+  }
+
+  void unpin() {
+    if (this.pinCount.getAndDecrement() <= 0) {
+      this.pinCount.getAndIncrement();
+      throw new PageException("unpin called on a page that is not pinned");
     }
   }
 
+  /**
+   * @return whether this page is pinned in its buffer pool
+   */
+  public boolean isPinned() {
+    return this.pinCount.get() > 0;
+  }
+
   /**
    * @return the virtual page number of this page
    */
@@ -1,11 +1,9 @@
 package edu.berkeley.cs186.database.io;
 
 import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.ByteOrder;
-import java.util.LinkedHashMap;
 import java.lang.IllegalArgumentException;
 import java.util.Arrays;
 import java.io.IOException;
@@ -14,34 +12,115 @@ import java.util.NoSuchElementException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.HashMap;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.io.Closeable;
 
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
 
 /**
- * A PageAllocation system for an OS paging system. Provides memory-mapped paging from the OS, an
- * interface to individual pages with the Page objects, an LRU cache for pages, 16GB worth of paging,
- * and virtual page translation.
+ * A PageAllocation system for an OS paging system. Provides memory-mapped or positional-I/O paging
+ * (see PageStore), an interface to individual pages with the Page objects, a BufferPool for caching
+ * pages, and virtual page translation. Several PageAllocators can share one BufferPool.
+ *
+ * The page size of a file is chosen when the file is created and recorded on its master page, so
+ * reopening a file always uses the size it was created with:
+ *
+ *   PageAllocator a = new PageAllocator("t.table", true, pool, 16 * 1024);
+ *   a.getPageSize(); // 16384
+ *
+ * The file is a master page, which counts the allocated pages under each header page, followed by
+ * header pages, each of which has one byte per page for the pageSize data pages that follow it.
+ * A file with the default 4KB pages holds up to 16GB of data, and one with 64KB pages up to 64TB.
  *
  * YOU SHOULD NOT NEED TO CHANGE ANY OF THE CODE IN THIS PACKAGE.
  */
 public class PageAllocator implements Iterable<Page>, Closeable {
-  private static final int numHeaderPages = 1024;
-  private static final int cacheSize = 1024;
+  // The master page of a file starts with FORMAT_MAGIC and the file's page
+  // size, followed by the header page counts. Files written before page sizes
+  // were configurable have Page.pageSize pages and a master page of counts
+  // only; they are told apart by the first int, since counts are never
+  // negative and FORMAT_MAGIC is.
+  private static final int FORMAT_MAGIC = 0xCB186A5E;
+  private static final int COUNTS_OFFSET = 8;
+
+  // A scan counts as sequential after this many fetches in a row of
+  // increasing page numbers, each at most MAX_SEQUENTIAL_GAP past the last
+  // (page iterators skip freed pages).
+  private static final int SEQUENTIAL_THRESHOLD = 2;
+  private static final int MAX_SEQUENTIAL_GAP = 8;
+
+  /**
+   * How a PageAllocator moves pages between its file and memory.
+   */
+  public enum Backend {
+    // Memory-map the file; see MappedPageStore.
+    MMAP,
+    // Read and write pages into off-heap buffers with positional I/O; see
+    // PositionalPageStore.
+    POSITIONAL_IO
+  }
+
+  // A weak reference to a data page which remembers the page's number, so
+  // that the entry can be dropped from pages once the Page is collected.
+  private static class PageReference extends WeakReference<Page> {
+    final int pageNum;
+
+    PageReference(Page page, ReferenceQueue<Page> queue) {
+      super(page, queue);
+      this.pageNum = page.getPageNum();
+    }
+  }
 
   private static AtomicInteger pACounter = new AtomicInteger(0);
-  private static LRUCache<Long, Page> pageLRU = new LRUCache<Long, Page>(cacheSize);
-  private static AtomicLong numIOs = new AtomicLong(0);
-  private static AtomicLong cacheMisses = new AtomicLong(0);
+  // Counted with LongAdders rather than AtomicLongs because every fetch from
+  // every thread bumps numIOs.
+  private static LongAdder numIOs = new LongAdder();
+  private static LongAdder cacheMisses = new LongAdder();
 
   private Page masterPage;
   private FileChannel fc;
+  // The size of every page of the file, the number of header pages the
+  // master page has room for, and where on the master page their counts
+  // start.
+  private final int pageSize;
+  private final int numHeaderPages;
+  private final int countsOffset;
   private int numPages;
-  private int allocID;
-  private boolean durable;
+  private PageStore store;
+  // The header pages read so far; headerPages[i] is null if header page i has
+  // not been read yet.
+  private Page[] headerPages;
+  // Every data Page handed out and not yet garbage collected, by page number.
+  // Fetching a page that has been evicted from the buffer pool but is still
+  // referenced (e.g. by a B+ tree node) returns the same Page object, so that
+  // there is never more than one copy of a page in memory.
+  private HashMap<Integer, PageReference> pages;
+  // An in-memory summary of the master and header pages, kept in sync with
+  // them by setAllocated. headerCounts[i] mirrors the i-th count on the master
+  // page. Bit j of headerBitmaps[i] is set iff page j of header page i is
+  // allocated; headerBitmaps[i] is null until header page i is first needed.
+  // Every page covered by a word of headerBitmaps[i] before freeWordHints[i]
+  // is allocated, and every header page before firstFreeHeader is full.
+  private int[] headerCounts;
+  private long[][] headerBitmaps;
+  private int[] freeWordHints;
+  private int firstFreeHeader;
+  private ReferenceQueue<Page> collectedPages;
+  private final int allocID;
+  private final boolean durable;
+  private final BufferPool bufferPool;
+  // Sequential access detection for read-ahead: the last page fetched, the
+  // length of the current sequential run, and the last page number read ahead.
+  // These are updated without a lock; a lost update at worst issues a
+  // read-ahead late or twice, which is harmless.
+  private int lastFetchedPage = -1;
+  private int sequentialRun = 0;
+  private int readAheadEnd = -1;
+
   /**
    * Create a new PageAllocator that writes its bytes into a file named fName. If wipe is true, the
    * data in the page is completely removed.
@@ -54,100 +133,287 @@ public class PageAllocator implements Iterable<Page>, Closeable {
   }
 
   public PageAllocator(String fName, boolean wipe, boolean durable) {
+    this(fName, wipe, durable, new BufferPool(BufferPool.DEFAULT_NUM_FRAMES));
+  }
+
+  /**
+   * Create a new PageAllocator whose pages are cached in bufferPool and moved between the file and
+   * memory by the pool's backend (see BufferPool#setBackend).
+   *
+   * @param fName the name of the file for this PageAllocator
+   * @param wipe a boolean specifying whether to wipe the file
+   * @param bufferPool the buffer pool to cache pages in
+   */
+  public PageAllocator(String fName, boolean wipe, BufferPool bufferPool) {
+    this(fName, wipe, true, bufferPool);
+  }
+
+  /**
+   * Create a new PageAllocator whose pages are cached in bufferPool and moved between the file and
+   * memory by the pool's backend (see BufferPool#setBackend).
+   */
+  public PageAllocator(String fName, boolean wipe, boolean durable, BufferPool bufferPool) {
+    this(fName, wipe, durable, bufferPool, bufferPool.getBackend());
+  }
+
+  /**
+   * Create a new PageAllocator whose pages are cached in bufferPool and moved between the file and
+   * memory by the pool's backend (see BufferPool#setBackend). If the file is created (wipe is true
+   * or the file is empty), its pages are pageSize bytes; otherwise the file keeps the page size it
+   * was created with.
+   *
+   * @param fName the name of the file for this PageAllocator
+   * @param wipe a boolean specifying whether to wipe the file
+   * @param bufferPool the buffer pool to cache pages in
+   * @param pageSize the page size of a new file; see Page#isValidPageSize
+   */
+  public PageAllocator(String fName, boolean wipe, BufferPool bufferPool, int pageSize) {
+    this(fName, wipe, true, bufferPool, bufferPool.getBackend(), pageSize);
+  }
+
+  public PageAllocator(String fName, boolean wipe, boolean durable, BufferPool bufferPool,
+                       Backend backend) {
+    this(fName, wipe, durable, bufferPool, backend, Page.pageSize);
+  }
+
+  /**
+   * Create a new PageAllocator whose pages are cached in bufferPool and moved between the file and
+   * memory by backend.
+   *
+   * @param fName the name of the file for this PageAllocator
+   * @param wipe a boolean specifying whether to wipe the file
+   * @param durable whether flushed pages are forced to disk
+   * @param bufferPool the buffer pool to cache pages in
+   * @param backend the storage backend
+   * @param pageSize the page size of a new file; see Page#isValidPageSize
+   */
+  public PageAllocator(String fName, boolean wipe, boolean durable, BufferPool bufferPool,
+                       Backend backend, int pageSize) {
+    if (!Page.isValidPageSize(pageSize)) {
+      throw new PageException("invalid page size " + pageSize);
+    }
     this.durable = durable;
+    this.bufferPool = bufferPool;
     try {
       this.fc = new RandomAccessFile(fName, "rw").getChannel();
     } catch (IOException e) {
       throw new PageException("Could not open File: " + e.getMessage());
     }
 
-    this.masterPage = new Page(this.fc, 0, -1);
-    this.allocID = pACounter.getAndIncrement();
-
-    if (wipe) {
-      // Nukes masterPage and headerPages
-      byte[] masterBytes = this.masterPage.readBytes();
-      IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
-
-      int[] pageCounts = new int[ib.capacity()];
-      ib.get(pageCounts);
-
-      this.numPages = 0;
-
-      for (int i = 0; i < numHeaderPages; i++) {
-        if (pageCounts[i] > 0) {
-          getHeadPage(i).wipe();
-        }
+    // Nukes masterPage and headerPages. Every other page is garbage once they
+    // are gone, so the whole file is dropped, which also lets the new file
+    // have a different page size than the old one.
+    boolean create;
+    int[] format;
+    try {
+      if (wipe) {
+        this.fc.truncate(0);
       }
+      create = this.fc.size() == 0;
+      format = create ? new int[] {pageSize, COUNTS_OFFSET} : readFormat(this.fc);
+    } catch (IOException e) {
+      throw new PageException("Could not read File: " + e.getMessage());
+    }
+    this.pageSize = format[0];
+    this.countsOffset = format[1];
+    this.numHeaderPages = (this.pageSize - this.countsOffset) / Integer.BYTES;
 
+    if (backend == Backend.POSITIONAL_IO) {
+      this.store = new PositionalPageStore(this.fc, bufferPool, this.pageSize);
+    } else {
+      this.store = new MappedPageStore(this.fc, this.pageSize);
+    }
+    this.headerPages = new Page[numHeaderPages];
+    this.pages = new HashMap<Integer, PageReference>();
+    this.collectedPages = new ReferenceQueue<Page>();
+    this.masterPage = new Page(null, this.store, 0, -1, true);
+    this.allocID = pACounter.getAndIncrement();
+
+    if (create) {
       this.masterPage.wipe();
+      this.masterPage.putInt(0, FORMAT_MAGIC);
+      this.masterPage.putInt(Integer.BYTES, this.pageSize);
+      this.masterPage.writeBack();
     }
 
-    byte[] masterBytes = masterPage.readBytes();
-    IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
-    int[] pageCounts = new int[ib.capacity()];
-    ib.get(pageCounts);
+    this.headerCounts = new int[numHeaderPages];
+    for (int i = 0; i < numHeaderPages; i++) {
+      this.headerCounts[i] = this.masterPage.getInt(this.countsOffset + i * Integer.BYTES);
+    }
+    this.headerBitmaps = new long[numHeaderPages][];
+    this.freeWordHints = new int[numHeaderPages];
+    this.firstFreeHeader = 0;
 
     this.numPages = 0;
     for (int i = 0; i < numHeaderPages; i++) {
-      this.numPages += pageCounts[i];
+      this.numPages += this.headerCounts[i];
     }
   }
 
+  /**
+   * Reads the page size of an existing file and the offset of the header page
+   * counts on its master page from the start of the file.
+   */
+  private static int[] readFormat(FileChannel fc) throws IOException {
+    ByteBuffer start = ByteBuffer.allocate(COUNTS_OFFSET);
+    while (start.hasRemaining() && fc.read(start, start.position()) >= 0) {}
+    start.flip();
+    if (start.remaining() < COUNTS_OFFSET || start.getInt(0) != FORMAT_MAGIC) {
+      return new int[] {Page.pageSize, 0};
+    }
+    int pageSize = start.getInt(Integer.BYTES);
+    if (!Page.isValidPageSize(pageSize)) {
+      throw new PageException("corrupt master page: invalid page size " + pageSize);
+    }
+    return new int[] {pageSize, COUNTS_OFFSET};
+  }
+
+  /**
+   * @return the size in bytes of every page of this allocator's file
+   */
+  public int getPageSize() {
+    return this.pageSize;
+  }
+
   /**
    * Allocates a new page in the file.
    *
    * @return the virtual page number of the page
    */
   public synchronized int allocPage() {
-    byte[] masterBytes = this.masterPage.readBytes();
-    IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
-    int[] pageCounts = new int[ib.capacity()];
-    ib.get(pageCounts);
+    int pageNum = reserveFreePage();
 
-    Page headerPage = null;
-    int headerIndex = -1;
-    for (int i = 0; i < numHeaderPages; i++) {
-      if (pageCounts[i] < Page.pageSize) {
-        // Found header page with space
-        headerPage = getHeadPage(i);
-        headerIndex = i;
-        break;
-      }
+    if (this.durable) {
+      this.masterPage.flush();
+      getHeadPage(pageNum / this.pageSize).flush();
     }
 
-    if (headerPage == null) {
-      throw new PageException("No free Pages Available");
+    fetchPage(pageNum).wipe();
+    this.numPages += 1;
+    return pageNum;
+  }
+
+  /**
+   * Allocates n new pages in the file. The master page and every header page
+   * that changed are flushed once for the whole batch rather than once per
+   * page. If some header page has n consecutive free pages, the pages are
+   * allocated from the first such run, so that they are contiguous both in
+   * virtual page numbers and in the file; otherwise the first n free pages are
+   * allocated.
+   *
+   * @param n the number of pages to allocate
+   * @return the virtual page numbers of the pages in increasing order
+   */
+  public synchronized int[] allocPages(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("cannot allocate a negative number of pages");
+    }
+    int[] pageNums = new int[n];
+    if (n == 0) {
+      return pageNums;
+    }
+
+    int runHeader = -1;
+    int runStart = -1;
+    if (n <= this.pageSize) {
+      for (int i = this.firstFreeHeader; i < numHeaderPages && runStart == -1; i++) {
+        if (this.pageSize - this.headerCounts[i] >= n) {
+          runStart = findFreeRun(headerBitmap(i), this.freeWordHints[i], n);
+          runHeader = i;
+        }
+      }
     }
 
-    byte[] headerBytes = headerPage.readBytes();
-    int pageIndex = -1;
+    boolean[] touchedHeaders = new boolean[numHeaderPages];
+    for (int i = 0; i < n; i++) {
+      if (runStart != -1) {
+        setAllocated(runHeader, runStart + i, true);
+        pageNums[i] = runHeader * this.pageSize + runStart + i;
+      } else {
+        pageNums[i] = reserveFreePage();
+      }
+      touchedHeaders[pageNums[i] / this.pageSize] = true;
+    }
 
-    for (int i = 0; i < Page.pageSize; i++) {
-      if (headerBytes[i] == 0) {
-        pageIndex = i;
-        break;
+    if (this.durable) {
+      this.masterPage.flush();
+      for (int i = 0; i < numHeaderPages; i++) {
+        if (touchedHeaders[i]) {
+          getHeadPage(i).flush();
+        }
       }
     }
 
-    if (pageIndex == -1) {
-     throw new PageException("Header page should have free page but doesnt");
+    for (int pageNum : pageNums) {
+      fetchPage(pageNum).wipe();
     }
+    this.numPages += n;
+    return pageNums;
+  }
 
-    int newCount = pageCounts[headerIndex] + 1;
-    byte[] newCountBytes = ByteBuffer.allocate(4).putInt(newCount).array();
-    this.masterPage.writeBytes(headerIndex*4, 4, newCountBytes);
-    headerPage.writeByte(pageIndex, (byte) 1);
+  /**
+   * Marks the first free page as allocated without flushing the master and
+   * header pages, and returns its virtual page number.
+   */
+  private synchronized int reserveFreePage() {
+    while (this.firstFreeHeader < numHeaderPages &&
+           this.headerCounts[this.firstFreeHeader] == this.pageSize) {
+      this.firstFreeHeader++;
+    }
+    if (this.firstFreeHeader == numHeaderPages) {
+      throw new PageException("No free Pages Available");
+    }
 
-    if (this.durable) {
-      this.masterPage.flush();
-      headerPage.flush();
+    int headerIndex = this.firstFreeHeader;
+    long[] bitmap = headerBitmap(headerIndex);
+    int word = this.freeWordHints[headerIndex];
+    while (word < bitmap.length && bitmap[word] == -1L) {
+      word++;
     }
+    if (word == bitmap.length) {
+     throw new PageException("Header page should have free page but doesnt");
+    }
+    this.freeWordHints[headerIndex] = word;
+    int pageIndex = word * Long.SIZE + Long.numberOfTrailingZeros(~bitmap[word]);
 
-    int pageNum = headerIndex * Page.pageSize + pageIndex;
-    fetchPage(pageNum).wipe();
-    this.numPages += 1;
-    return pageNum;
+    setAllocated(headerIndex, pageIndex, true);
+    return headerIndex * this.pageSize + pageIndex;
+  }
+
+  /**
+   * Returns the index of the first page of the first run of n free pages in
+   * bitmap at or after word fromWord, or -1 if there is no such run. Full and
+   * empty words are skipped or counted whole.
+   */
+  private static int findFreeRun(long[] bitmap, int fromWord, int n) {
+    int numPagesCovered = bitmap.length * Long.SIZE;
+    int runStart = -1;
+    int runLength = 0;
+    int i = fromWord * Long.SIZE;
+    while (i < numPagesCovered) {
+      long word = bitmap[i / Long.SIZE];
+      if (i % Long.SIZE == 0 && (word == -1L || word == 0L)) {
+        if (word == -1L) {
+          runLength = 0;
+        } else {
+          runStart = runLength == 0 ? i : runStart;
+          runLength += Long.SIZE;
+        }
+        i += Long.SIZE;
+      } else {
+        if ((word & (1L << (i % Long.SIZE))) == 0) {
+          runStart = runLength == 0 ? i : runStart;
+          runLength++;
+        } else {
+          runLength = 0;
+        }
+        i++;
+      }
+      if (runLength >= n) {
+        return runStart;
+      }
+    }
+    return -1;
   }
 
   /**
@@ -156,50 +422,212 @@ public class PageAllocator implements Iterable<Page>, Closeable {
    * @param pageNum the virtual page number
    * @return a Page object wrapping the page corresponding to pageNum
    */
-  public synchronized Page fetchPage(int pageNum) {
+  public Page fetchPage(int pageNum) {
+    return fetchPage(pageNum, false);
+  }
+
+  /**
+   * Fetches the page corresponding to virtual page number pageNum and pins it
+   * in the buffer pool. A pinned page is not evicted until every pin on it has
+   * been released with unpinPage.
+   *
+   * @param pageNum the virtual page number
+   * @return the pinned page
+   */
+  public Page pinPage(int pageNum) {
+    return fetchPage(pageNum, true);
+  }
+
+  /**
+   * Fetching a resident page only takes the lock of one segment of the buffer
+   * pool, so allocators (and threads sharing an allocator) fetch resident pages
+   * in parallel. Only a miss takes this allocator's lock, to check the page
+   * against the header pages. The page is put into the pool under the same
+   * lock, so that freePage cannot free it in between and leave the freed Page
+   * resident under a page number that may be allocated again.
+   */
+  private Page fetchPage(int pageNum, boolean pin) {
     if (pageNum < 0) {
       throw new PageException("invalid page number -- out of bounds");
     }
 
-    numIOs.getAndIncrement();
+    numIOs.increment();
+    noteAccess(pageNum);
 
-    synchronized(PageAllocator.class) {
-      if (pageLRU.containsKey(translatePageNum(pageNum))) {
-        return pageLRU.get(translatePageNum(pageNum));
-      }
+    long vPageNum = translatePageNum(pageNum);
+    Page cached = this.bufferPool.get(vPageNum, pin);
+    if (cached != null) {
+      return cached;
+    }
+
+    // If another thread brought the page in first, use its Page.
+    synchronized (this) {
+      return this.bufferPool.put(vPageNum, pageObject(pageNum), pin);
     }
+  }
+
+  /**
+   * Returns the one Page object of the allocated page pageNum, creating it if
+   * no reference to it is left.
+   */
+  private Page pageObject(int pageNum) {
+    return pageObject(pageNum, null);
+  }
 
-    int headPageIndex = pageNum/Page.pageSize;
+  /**
+   * Like pageObject(pageNum), but if the page has to be created, its bytes are
+   * data, already read from its block, rather than read under this
+   * allocator's lock. If the page is still referenced, data is given back to
+   * the store.
+   */
+  private synchronized Page pageObject(int pageNum, ByteBuffer data) {
+    int headPageIndex = pageNum/this.pageSize;
 
     if (headPageIndex >= numHeaderPages) {
       throw new PageException("invalid page number -- out of bounds");
     }
 
-    byte[] headCountBytes = this.masterPage.readBytes(headPageIndex*4, 4);
-    int headCount = ByteBuffer.wrap(headCountBytes).getInt();
+    int dataPageIndex = pageNum % this.pageSize;
 
-    if (headCount < 1) {
+    if (!isAllocated(headPageIndex, dataPageIndex)) {
       throw new PageException("invalid page number -- page not allocated");
     }
 
-    Page headPage = getHeadPage(headPageIndex);
+    expungeCollectedPages();
+    PageReference ref = this.pages.get(pageNum);
+    Page dataPage = ref == null ? null : ref.get();
+    if (dataPage == null) {
+      long dataBlockID = dataBlockNum(pageNum);
+      dataPage = data == null
+                 ? new Page(this, this.store, dataBlockID, pageNum, this.durable)
+                 : new Page(this, this.store, dataBlockID, pageNum, this.durable, data);
+      this.pages.put(pageNum, new PageReference(dataPage, this.collectedPages));
+    } else if (data != null) {
+      this.store.release(data);
+    }
+    return dataPage;
+  }
 
-    int dataPageIndex = pageNum % Page.pageSize;
+  /**
+   * @return the block of the file holding data page pageNum
+   */
+  private long dataBlockNum(int pageNum) {
+    int headPageIndex = pageNum/this.pageSize;
+    int dataPageIndex = pageNum % this.pageSize;
+    return 2 + ((long) headPageIndex)*(this.pageSize + 1) + dataPageIndex;
+  }
 
-    byte validByte = headPage.readByte(dataPageIndex);
+  /**
+   * Called by a data page that was evicted and has been read back in by an
+   * access through a reference that outlived its eviction. The page is not
+   * made resident again if the allocator has been closed in the meantime.
+   *
+   * @throws PageException if the page has been freed since, even if its page
+   * number has been allocated again to a new Page
+   */
+  synchronized void reattach(Page page) {
+    if (this.masterPage == null) {
+      return;
+    }
+    int pageNum = page.getPageNum();
+    int headPageIndex = pageNum / this.pageSize;
+    PageReference ref = this.pages.get(pageNum);
+    if (headPageIndex >= numHeaderPages || !isAllocated(headPageIndex, pageNum % this.pageSize)
+        || ref == null || ref.get() != page) {
+      throw new PageException("invalid page -- page " + pageNum + " has been freed");
+    }
+    this.bufferPool.put(translatePageNum(pageNum), page, false);
+  }
 
-    if (validByte == 0) {
-      throw new PageException("invalid page number -- page not allocated");
+  /**
+   * Tracks whether pages are being fetched sequentially and, once they are,
+   * reads the next pages ahead on the buffer pool's prefetch threads. A new
+   * window of BufferPool#getReadAheadPages pages is read once the scan is
+   * halfway through the previous one. Fetching the same page again (e.g. a
+   * record of the page just returned by an iterator) does not break a run.
+   */
+  private void noteAccess(int pageNum) {
+    int readAhead = this.bufferPool.getReadAheadPages();
+    int last = this.lastFetchedPage;
+    if (readAhead == 0 || pageNum == last) {
+      return;
     }
+    this.lastFetchedPage = pageNum;
 
-    int dataBlockID = 2 + headPageIndex*(Page.pageSize + 1) + dataPageIndex;
-    Page dataPage = new Page(this.fc, dataBlockID, pageNum, this.durable);
+    if (pageNum < last || pageNum - last > MAX_SEQUENTIAL_GAP) {
+      this.sequentialRun = 0;
+      this.readAheadEnd = pageNum;
+      return;
+    }
+    if (++this.sequentialRun < SEQUENTIAL_THRESHOLD ||
+        pageNum + readAhead / 2 < this.readAheadEnd) {
+      return;
+    }
 
-    synchronized(PageAllocator.class) {
-      pageLRU.put(translatePageNum(pageNum), dataPage);
+    int from = Math.max(this.readAheadEnd, pageNum) + 1;
+    int to = pageNum + readAhead;
+    this.readAheadEnd = to;
+    this.bufferPool.prefetch(() -> readAhead(from, to));
+  }
+
+  /**
+   * Reads the allocated pages numbered from through to that are not resident
+   * into the buffer pool. Read-ahead is only a hint, so pages freed and
+   * allocators closed in the meantime are silently skipped.
+   */
+  private void readAhead(int from, int to) {
+    try {
+      int pageNum = from;
+      while (true) {
+        // Pages the scan has already passed are not worth reading any more.
+        pageNum = nextAllocatedPage(Math.max(pageNum, this.lastFetchedPage + 1));
+        if (pageNum == -1 || pageNum > to) {
+          break;
+        }
+        long vPageNum = translatePageNum(pageNum);
+        if (!this.bufferPool.contains(vPageNum)) {
+          // The block is read before the allocator's lock is taken, so that
+          // the read does not hold up fetches of other pages of this file.
+          ByteBuffer data = Page.load(this.store, dataBlockNum(pageNum));
+          Page page;
+          // Under the allocator's lock, so that the page cannot be made
+          // resident after close has emptied the pool of this allocator's pages.
+          synchronized (this) {
+            if (this.masterPage == null) {
+              return;
+            }
+            page = this.bufferPool.put(vPageNum, pageObject(pageNum, data), false);
+          }
+          page.prefetch();
+          this.bufferPool.recordPrefetch();
+        }
+        pageNum++;
+      }
+    } catch (PageException e) {
+      // See above.
     }
+  }
 
-    return dataPage;
+  private void expungeCollectedPages() {
+    PageReference ref;
+    while ((ref = (PageReference) this.collectedPages.poll()) != null) {
+      if (this.pages.get(ref.pageNum) == ref) {
+        this.pages.remove(ref.pageNum);
+      }
+    }
+  }
+
+  /**
+   * Releases one pin on page, previously obtained with pinPage.
+   *
+   * @param page the pinned page
+   */
+  public void unpinPage(Page page) {
+    page.unpin();
+  }
+
+  public BufferPool getBufferPool() {
+    return this.bufferPool;
   }
 
   /**
@@ -210,38 +638,24 @@ public class PageAllocator implements Iterable<Page>, Closeable {
    * @return whether or not the page was freed
    */
   public synchronized boolean freePage(Page p) {
-    if (this.durable) {
-      p.flush();
-    }
+    // The page's contents are garbage from now on, so it is not written back.
     int pageNum = p.getPageNum();
-    int headPageIndex = pageNum/Page.pageSize;
-    int dataPageIndex = pageNum % Page.pageSize;
-
-    Page headPage = getHeadPage(headPageIndex);
+    int headPageIndex = pageNum/this.pageSize;
+    int dataPageIndex = pageNum % this.pageSize;
 
-    if (headPage.readByte(dataPageIndex) == 0) {
+    if (!isAllocated(headPageIndex, dataPageIndex)) {
       return false;
     }
 
-    headPage.writeByte(dataPageIndex, (byte) 0);
-    if (this.durable) {
-      headPage.flush();
-    }
-    byte[] countBytes = masterPage.readBytes(4*headPageIndex,4);
-    int oldCount = ByteBuffer.wrap(countBytes).getInt();
-
-    int newCount = oldCount - 1;
-    byte[] newCountBytes = ByteBuffer.allocate(4).putInt(newCount).array();
-    masterPage.writeBytes(headPageIndex*4, 4, newCountBytes);
+    setAllocated(headPageIndex, dataPageIndex, false);
     if (this.durable) {
+      getHeadPage(headPageIndex).flush();
       masterPage.flush();
     }
 
-    synchronized(PageAllocator.class) {
-      if (pageLRU.containsKey(translatePageNum(pageNum))) {
-        pageLRU.remove(translatePageNum(pageNum));
-      }
-    }
+    this.bufferPool.remove(translatePageNum(pageNum));
+    this.pages.remove(pageNum);
+    p.detach();
 
     this.numPages -= 1;
     return true;
@@ -271,74 +685,205 @@ public class PageAllocator implements Iterable<Page>, Closeable {
     if (this.masterPage == null) {
       return;
     }
-    if (this.durable) {
-      this.masterPage.flush();
-    }
-    List<Long> toRemove = new ArrayList<Long>();
-    Set<Long> vPageNums = null;
-    List<Page> toFlush = new ArrayList<Page>();
+    this.bufferPool.removeAll(this.allocID);
 
-    synchronized(PageAllocator.class) {
-      vPageNums = pageLRU.keySet();
+    List<Page> toWrite = livePages();
+    writeBackAll(toWrite);
+    for (Page p : toWrite) {
+      p.detach();
+    }
+    this.store.close();
+    this.pages.clear();
+    this.headerPages = new Page[numHeaderPages];
+    this.masterPage = null;
+    try {
+      this.fc.close();
+    } catch (IOException e) {
+      throw new PageException("Could not close Page Alloc " + e.getMessage());
     }
+  }
 
-    for (Long l : vPageNums) {
-      if (translateAllocator(l) == this.allocID) {
-        toRemove.add(l);
+  /**
+   * Returns the cached bitmap of header page headIndex, reading the header
+   * page the first time it is needed.
+   */
+  private synchronized long[] headerBitmap(int headIndex) {
+    long[] bitmap = this.headerBitmaps[headIndex];
+    if (bitmap == null) {
+      bitmap = new long[this.pageSize / Long.SIZE];
+      if (this.headerCounts[headIndex] > 0) {
+        // The header page has a byte per page; read it eight bytes at a time
+        // and only look at the bytes of nonzero longs.
+        Page headPage = getHeadPage(headIndex);
+        for (int i = 0; i < this.pageSize; i += Long.BYTES) {
+          if (headPage.getLong(i) == 0) {
+            continue;
+          }
+          for (int j = i; j < i + Long.BYTES; j++) {
+            if (headPage.readByte(j) != 0) {
+              bitmap[j / Long.SIZE] |= 1L << (j % Long.SIZE);
+            }
+          }
+        }
       }
+      this.headerBitmaps[headIndex] = bitmap;
     }
+    return bitmap;
+  }
 
-    synchronized(PageAllocator.class) {
-      for (Long vPageNum : toRemove) {
-        if (pageLRU.containsKey(vPageNum)) {
-          toFlush.add(pageLRU.get(vPageNum));
-          pageLRU.remove(vPageNum);
-        }
+  private synchronized boolean isAllocated(int headIndex, int pageIndex) {
+    if (this.headerCounts[headIndex] == 0) {
+      return false;
+    }
+    long[] bitmap = headerBitmap(headIndex);
+    return (bitmap[pageIndex / Long.SIZE] & (1L << (pageIndex % Long.SIZE))) != 0;
+  }
+
+  /**
+   * Marks page pageIndex of header page headIndex as allocated or free, both
+   * in the in-memory summary and on the master and header pages. The caller
+   * flushes the master and header pages if needed.
+   */
+  private synchronized void setAllocated(int headIndex, int pageIndex, boolean allocated) {
+    long[] bitmap = headerBitmap(headIndex);
+    int word = pageIndex / Long.SIZE;
+    long bit = 1L << (pageIndex % Long.SIZE);
+    if (allocated) {
+      bitmap[word] |= bit;
+      this.headerCounts[headIndex]++;
+    } else {
+      bitmap[word] &= ~bit;
+      this.headerCounts[headIndex]--;
+      this.freeWordHints[headIndex] = Math.min(this.freeWordHints[headIndex], word);
+      this.firstFreeHeader = Math.min(this.firstFreeHeader, headIndex);
+    }
+    this.masterPage.writeInt(this.countsOffset + headIndex * 4, this.headerCounts[headIndex]);
+    getHeadPage(headIndex).writeByte(pageIndex, allocated ? (byte) 1 : (byte) 0);
+  }
+
+  /**
+   * Writes back every dirty page of this allocator, including its header and
+   * master pages, and forces the file to disk if the allocator is durable.
+   * Pages written after sync returns are not covered.
+   */
+  public synchronized void sync() {
+    if (this.masterPage == null) {
+      throw new PageException("sync called on a closed allocator");
+    }
+    writeBackAll(livePages());
+  }
+
+  /**
+   * @return every page of this allocator still in memory, including pages
+   * that were read back in outside of the buffer pool, and its header and
+   * master pages
+   */
+  private synchronized List<Page> livePages() {
+    List<Page> live = new ArrayList<Page>();
+    for (PageReference ref : this.pages.values()) {
+      Page p = ref.get();
+      if (p != null) {
+        live.add(p);
       }
     }
-    if (this.durable) {
-      for (Page p : toFlush) {
-        p.flush();
+    for (Page p : this.headerPages) {
+      if (p != null) {
+        live.add(p);
       }
     }
-    this.masterPage = null;
-    try {
-      this.fc.close();
-    } catch (IOException e) {
-      throw new PageException("Could not close Page Alloc " + e.getMessage());
+    live.add(this.masterPage);
+    return live;
+  }
+
+  /**
+   * Writes back pages and then forces the whole file once, which is much
+   * cheaper than forcing each page on its own.
+   */
+  private void writeBackAll(List<Page> pages) {
+    for (Page p : pages) {
+      p.writeBack();
+    }
+    // Forcing the file is not a read, so it does not count as an I/O; see
+    // Page#force.
+    if (this.durable) {
+      this.store.forceAll();
+    }
+  }
+
+  /**
+   * @return whether page pageNum is pinned. The page is not fetched: a page
+   * with no Page object left in memory cannot be pinned.
+   */
+  public synchronized boolean isPinned(int pageNum) {
+    PageReference ref = this.pages.get(pageNum);
+    Page page = ref == null ? null : ref.get();
+    return page != null && page.isPinned();
+  }
+
+  /**
+   * Returns the smallest allocated page number that is at least pageNum, or -1
+   * if there is none. Header pages with no allocated pages and bitmap words
+   * with no set bits are skipped without looking at the pages they cover, and
+   * no page is fetched, so callers can walk the allocated pages and choose
+   * which ones to read.
+   */
+  public synchronized int nextAllocatedPage(int pageNum) {
+    for (int i = pageNum / this.pageSize; i < numHeaderPages; i++) {
+      if (this.headerCounts[i] == 0) {
+        continue;
+      }
+      long[] bitmap = headerBitmap(i);
+      int start = i == pageNum / this.pageSize ? pageNum % this.pageSize : 0;
+      int word = start / Long.SIZE;
+      // Ignore the pages of the first word that come before start.
+      long bits = bitmap[word] & (-1L << (start % Long.SIZE));
+      while (true) {
+        if (bits != 0) {
+          return i * this.pageSize + word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+        }
+        word++;
+        if (word == bitmap.length) {
+          break;
+        }
+        bits = bitmap[word];
+      }
     }
+    return -1;
   }
 
   private synchronized Page getHeadPage(int headIndex) {
-    int headBlockID = 1 + headIndex*(Page.pageSize + 1);
-    return new Page(this.fc, headBlockID, -1);
+    if (this.headerPages[headIndex] == null) {
+      long headBlockID = 1 + ((long) headIndex)*(this.pageSize + 1);
+      this.headerPages[headIndex] = new Page(null, this.store, headBlockID, -1, true);
+    }
+    return this.headerPages[headIndex];
   }
 
   public synchronized int getNumPages() {
     return this.numPages;
   }
 
-  public synchronized static long getNumIOs() {
-    return PageAllocator.numIOs.get();
+  public static long getNumIOs() {
+    return PageAllocator.numIOs.sum();
   }
 
-  static synchronized void incrementNumIOs() {
-    PageAllocator.numIOs.getAndIncrement();
+  static void incrementNumIOs() {
+    PageAllocator.numIOs.increment();
   }
 
-  static synchronized void incrementCacheMisses() {
-    PageAllocator.cacheMisses.getAndIncrement();
+  static void incrementCacheMisses() {
+    PageAllocator.cacheMisses.increment();
   }
 
-  public synchronized static long getNumCacheMisses() {
-    return PageAllocator.cacheMisses.get();
+  public static long getNumCacheMisses() {
+    return PageAllocator.cacheMisses.sum();
   }
 
-  private synchronized long translatePageNum(int pageNum) {
+  private long translatePageNum(int pageNum) {
     return (((long) this.allocID) << 32) | (((long) pageNum) & 0xFFFFFFFFL);
   }
 
-  static synchronized private int translateAllocator(long vPageNum) {
+  static int translateAllocator(long vPageNum) {
     return (int) ((vPageNum & 0xFFFFFFFF00000000L) >> 32);
   }
 
@@ -349,6 +894,11 @@ public class PageAllocator implements Iterable<Page>, Closeable {
       return new PageIterator();
   }
 
+  /**
+   * Iterates over the allocated pages in page number order. Pages are found
+   * by walking the in-memory header bitmaps, so holes left by freed pages are
+   * skipped in bulk rather than probed one page number at a time.
+   */
   public class PageIterator implements BacktrackingIterator<Page> {
     private int pageNum;
     private int cursor;
@@ -368,16 +918,12 @@ public class PageAllocator implements Iterable<Page>, Closeable {
 
     public Page next() {
       if (this.hasNext()) {
-        while (true) {
-          Page p;
-          try {
-            p = PageAllocator.this.fetchPage(cursor);
-            cursor++;
-            pageNum++;
-            return p;
-          } catch (PageException e) {
-            cursor++;
-          }
+        int next = PageAllocator.this.nextAllocatedPage(cursor);
+        if (next != -1) {
+          Page p = PageAllocator.this.fetchPage(next);
+          cursor = next + 1;
+          pageNum++;
+          return p;
         }
       }
       throw new NoSuchElementException();
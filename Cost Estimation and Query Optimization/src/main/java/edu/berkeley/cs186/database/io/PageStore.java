@@ -0,0 +1,61 @@
+package edu.berkeley.cs186.database.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A PageStore moves the bytes of fixed-size blocks between a file and memory
+ * on behalf of a PageAllocator. Every block of a file is getPageSize() bytes,
+ * and block b starts at byte b * getPageSize().
+ *
+ * There are two stores. A MappedPageStore memory-maps the file and hands out
+ * windows onto the mapping, so writes to a page reach the OS page cache
+ * immediately and the kernel decides when they reach the disk. A
+ * PositionalPageStore reads blocks into off-heap buffers and writes them back
+ * with positional FileChannel I/O, so the database decides exactly when, and
+ * in which order, pages are written.
+ */
+interface PageStore {
+  /**
+   * Returns a buffer of getPageSize() bytes holding block blockNum. The
+   * buffer's position is 0 and its limit is getPageSize().
+   */
+  ByteBuffer load(long blockNum);
+
+  /**
+   * @return the size in bytes of every block of the store's file
+   */
+  int getPageSize();
+
+  /**
+   * Writes data, a buffer returned by load, back to block blockNum. This does
+   * not force the block to disk.
+   */
+  void store(long blockNum, ByteBuffer data);
+
+  /**
+   * Forces block blockNum, and possibly other blocks, to disk.
+   */
+  void force(long blockNum);
+
+  /**
+   * Forces every block stored so far to disk.
+   */
+  void forceAll();
+
+  /**
+   * Gives back a buffer returned by load once no Page uses it anymore.
+   */
+  void release(ByteBuffer data);
+
+  /**
+   * @return whether an evicted page must be written back with store and give
+   * its buffer back with release, rather than keep a view onto the file
+   */
+  boolean detachesOnEvict();
+
+  /**
+   * Releases any resources held by this store. The store's file channel is
+   * closed by its PageAllocator.
+   */
+  void close();
+}
@@ -0,0 +1,85 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A PageStore which reads blocks into off-heap buffers with positional
+ * FileChannel reads and writes them back with positional writes. Nothing
+ * reaches the file until a page is written back, so the buffer pool controls
+ * when writes happen and how much dirty data is held in memory. Buffers are
+ * borrowed from and given back to the BufferPool, which recycles them across
+ * every allocator that shares it.
+ */
+class PositionalPageStore implements PageStore {
+  private FileChannel fc;
+  private BufferPool bufferPool;
+  private int pageSize;
+
+  PositionalPageStore(FileChannel fc, BufferPool bufferPool, int pageSize) {
+    this.fc = fc;
+    this.bufferPool = bufferPool;
+    this.pageSize = pageSize;
+  }
+
+  public ByteBuffer load(long blockNum) {
+    ByteBuffer data = this.bufferPool.allocateBuffer(this.pageSize);
+    long offset = blockNum * this.pageSize;
+    try {
+      while (data.hasRemaining()) {
+        if (this.fc.read(data, offset + data.position()) < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      this.bufferPool.releaseBuffer(data);
+      throw new PageException("Can't read block " + blockNum + " ; " + e.getMessage());
+    }
+    // Blocks past the end of the file read as zeros.
+    while (data.hasRemaining()) {
+      data.put((byte) 0);
+    }
+    data.clear();
+    return data;
+  }
+
+  public int getPageSize() {
+    return this.pageSize;
+  }
+
+  public void store(long blockNum, ByteBuffer data) {
+    ByteBuffer src = data.duplicate();
+    src.clear();
+    long offset = blockNum * this.pageSize;
+    try {
+      while (src.hasRemaining()) {
+        this.fc.write(src, offset + src.position());
+      }
+    } catch (IOException e) {
+      throw new PageException("Can't write block " + blockNum + " ; " + e.getMessage());
+    }
+  }
+
+  public void force(long blockNum) {
+    forceAll();
+  }
+
+  public void forceAll() {
+    try {
+      this.fc.force(false);
+    } catch (IOException e) {
+      throw new PageException("Can't force file ; " + e.getMessage());
+    }
+  }
+
+  public void release(ByteBuffer data) {
+    this.bufferPool.releaseBuffer(data);
+  }
+
+  public boolean detachesOnEvict() {
+    return true;
+  }
+
+  public void close() {}
+}
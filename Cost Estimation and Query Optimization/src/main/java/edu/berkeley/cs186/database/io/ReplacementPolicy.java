@@ -0,0 +1,71 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.function.LongPredicate;
+
+/**
+ * A page replacement policy decides which page a BufferPool evicts when it is
+ * full. The pool tells its policy about every page that becomes resident, is
+ * accessed, or is dropped, and asks it for a victim whenever it holds more
+ * pages than it has frames.
+ *
+ * Pages are identified by their virtual page numbers. Policies are not
+ * thread-safe; the BufferPool that owns a policy serializes all calls to it.
+ */
+public interface ReplacementPolicy {
+  /**
+   * The replacement policies that ship with the database. A policy is chosen
+   * per BufferPool (and so per Database).
+   */
+  enum Type {
+    // Evict the least recently used page.
+    LRU,
+    // Approximate LRU with a reference bit per frame and a clock hand.
+    CLOCK,
+    // Admit new pages into a FIFO queue and promote them to an LRU queue only
+    // when they are referenced again after leaving it (Johnson and Shasha).
+    TWO_Q,
+    // Evict the page whose second most recent access is the oldest (O'Neil,
+    // O'Neil, and Weikum, with K = 2).
+    LRU_K;
+
+    /**
+     * @param numFrames the number of frames in the pool the policy serves
+     * @return a new, empty policy of this type
+     */
+    public ReplacementPolicy newPolicy(int numFrames) {
+      switch (this) {
+        case LRU: return new LRUPolicy();
+        case CLOCK: return new ClockPolicy();
+        case TWO_Q: return new TwoQPolicy(numFrames);
+        case LRU_K: return new LRUKPolicy(2, numFrames);
+        default: throw new IllegalArgumentException("Unknown policy " + this);
+      }
+    }
+  }
+
+  /**
+   * Called when the page vPageNum becomes resident.
+   */
+  void recordInsert(long vPageNum);
+
+  /**
+   * Called when the resident page vPageNum is accessed.
+   */
+  void recordAccess(long vPageNum);
+
+  /**
+   * Called when the resident page vPageNum is dropped from the pool for some
+   * reason other than eviction (e.g. the page was freed).
+   */
+  void recordRemove(long vPageNum);
+
+  /**
+   * Chooses a resident page for which canEvict returns true, stops tracking
+   * it, and returns it.
+   *
+   * @param canEvict whether a page may be evicted (e.g. it is not pinned)
+   * @return the virtual page number of the victim, or null if no resident page
+   * may be evicted
+   */
+  Long evict(LongPredicate canEvict);
+}
@@ -0,0 +1,94 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.LongPredicate;
+
+/**
+ * The full 2Q replacement policy of Johnson and Shasha. New pages enter a FIFO
+ * queue, a1in, and are evicted from it in order. The page numbers of pages
+ * evicted from a1in are remembered in a ghost queue, a1out. A page that is
+ * brought back in while it is remembered in a1out has been referenced twice in
+ * a short period, so it goes into an LRU queue, am. Pages that are read once,
+ * like the pages of a sequential scan, only ever pass through a1in and cannot
+ * push the hot pages in am out of the pool.
+ */
+class TwoQPolicy implements ReplacementPolicy {
+  // The share of the frames reserved for a1in and the number of ghost entries
+  // remembered in a1out, as a fraction of the number of frames. These are the
+  // values recommended in the 2Q paper.
+  private static final double A1IN_FRACTION = 0.25;
+  private static final double A1OUT_FRACTION = 0.5;
+
+  private int maxA1inSize;
+  private int maxA1outSize;
+
+  // Resident pages seen once, in arrival order.
+  private LinkedHashSet<Long> a1in = new LinkedHashSet<Long>();
+  // Non-resident pages recently evicted from a1in, in eviction order.
+  private LinkedHashSet<Long> a1out = new LinkedHashSet<Long>();
+  // Resident hot pages from least to most recently used.
+  private LinkedHashSet<Long> am = new LinkedHashSet<Long>();
+
+  TwoQPolicy(int numFrames) {
+    this.maxA1inSize = Math.max(1, (int) (numFrames * A1IN_FRACTION));
+    this.maxA1outSize = Math.max(1, (int) (numFrames * A1OUT_FRACTION));
+  }
+
+  public void recordInsert(long vPageNum) {
+    if (this.a1in.contains(vPageNum) || this.am.contains(vPageNum)) {
+      recordAccess(vPageNum);
+    } else if (this.a1out.remove(vPageNum)) {
+      this.am.add(vPageNum);
+    } else {
+      this.a1in.add(vPageNum);
+    }
+  }
+
+  public void recordAccess(long vPageNum) {
+    // Accesses to pages in a1in are deliberately ignored; they are usually
+    // correlated references from the operation that brought the page in.
+    if (this.am.remove(vPageNum)) {
+      this.am.add(vPageNum);
+    }
+  }
+
+  public void recordRemove(long vPageNum) {
+    if (!this.a1in.remove(vPageNum)) {
+      this.am.remove(vPageNum);
+    }
+  }
+
+  public Long evict(LongPredicate canEvict) {
+    Long victim = null;
+    if (this.a1in.size() > this.maxA1inSize || this.am.isEmpty()) {
+      victim = evictFrom(this.a1in, canEvict);
+      if (victim != null) {
+        this.a1out.add(victim);
+        if (this.a1out.size() > this.maxA1outSize) {
+          Iterator<Long> iter = this.a1out.iterator();
+          iter.next();
+          iter.remove();
+        }
+        return victim;
+      }
+    }
+    victim = evictFrom(this.am, canEvict);
+    if (victim == null) {
+      victim = evictFrom(this.a1in, canEvict);
+    }
+    return victim;
+  }
+
+  private static Long evictFrom(LinkedHashSet<Long> queue, LongPredicate canEvict) {
+    Iterator<Long> iter = queue.iterator();
+    while (iter.hasNext()) {
+      Long vPageNum = iter.next();
+      if (canEvict.test(vPageNum)) {
+        iter.remove();
+        return vPageNum;
+      }
+    }
+    return null;
+  }
+}
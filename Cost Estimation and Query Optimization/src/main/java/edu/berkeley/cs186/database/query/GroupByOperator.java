@@ -1,15 +1,20 @@
 package edu.berkeley.cs186.database.query;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.table.MarkerRecord;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
@@ -45,6 +50,16 @@ public class GroupByOperator extends QueryOperator {
     return new GroupByIterator();
   }
 
+  /**
+   * Partitions the batches of the source by the group-by column in memory, without the temporary
+   * tables of iterator(), and returns the records of one group after another. Groups are keyed on
+   * the primitive values of the column, so no DataBox is built per record.
+   */
+  @Override
+  public Iterator<RecordBatch> batchIterator() throws QueryPlanException, DatabaseException {
+    return new GroupByBatchIterator();
+  }
+
   protected Schema computeSchema() throws QueryPlanException {
     return this.getSource().getOutputSchema();
   }
@@ -141,4 +156,195 @@ public class GroupByOperator extends QueryOperator {
       throw new UnsupportedOperationException();
     }
   }
+
+  /**
+   * An iterator over the batches of the groups of the source, built by hashing each record of the
+   * source to its group.
+   */
+  private class GroupByBatchIterator implements Iterator<RecordBatch> {
+    // The capacity of the first batch of each group. Each further batch of a group is twice as large
+    // as the one before, up to RecordBatch.DEFAULT_CAPACITY, so that many small groups do not each
+    // take a full batch while a large group still ends up in full batches.
+    private static final int FIRST_BATCH_CAPACITY = 8;
+
+    // The batches of each group, in the order in which the groups were first seen.
+    private List<List<RecordBatch>> groups;
+    private int groupIndex;
+    private int batchIndex;
+
+    // Maps from the values of the group-by column to their groups, one of which is used depending
+    // on its type. Floats are keyed on their bits, like the strings of FloatDataBox#toString.
+    private IntIndexMap intGroups;
+    private int[] boolGroups;
+    private Map<String, Integer> stringGroups;
+
+    public GroupByBatchIterator() throws QueryPlanException, DatabaseException {
+      this.groups = new ArrayList<List<RecordBatch>>();
+      this.intGroups = new IntIndexMap();
+      this.boolGroups = new int[] {-1, -1};
+      this.stringGroups = new HashMap<String, Integer>();
+      Schema schema = GroupByOperator.this.getOutputSchema();
+      int column = GroupByOperator.this.groupByColumnIndex;
+
+      Iterator<RecordBatch> sourceIterator = GroupByOperator.this.getSource().batchIterator();
+      while (sourceIterator.hasNext()) {
+        RecordBatch batch = sourceIterator.next();
+        int[] selection = batch.getSelection();
+        int n = batch.getNumSelected();
+        if (!batch.hasColumn(column)) {
+          // Every record holds the same placeholder, so they form one group.
+          for (int i = 0; i < n; ++i) {
+            this.add(0, batch, selection[i]);
+          }
+          continue;
+        }
+        switch (schema.getFieldTypes().get(column).getTypeId()) {
+          case BOOL: {
+            boolean[] v = batch.getBools(column);
+            for (int i = 0; i < n; ++i) {
+              int key = v[selection[i]] ? 1 : 0;
+              if (this.boolGroups[key] == -1) {
+                this.boolGroups[key] = this.newGroup();
+              }
+              this.add(this.boolGroups[key], batch, selection[i]);
+            }
+            break;
+          }
+          case INT:
+          case FLOAT: {
+            boolean isInt = schema.getFieldTypes().get(column).getTypeId() == TypeId.INT;
+            int[] ints = isInt ? batch.getInts(column) : null;
+            float[] floats = isInt ? null : batch.getFloats(column);
+            for (int i = 0; i < n; ++i) {
+              int row = selection[i];
+              int key = isInt ? ints[row] : Float.floatToIntBits(floats[row]);
+              int group = this.intGroups.get(key);
+              if (group == -1) {
+                group = this.newGroup();
+                this.intGroups.put(key, group);
+              }
+              this.add(group, batch, row);
+            }
+            break;
+          }
+          default: {
+            // Look each distinct string of the batch up once.
+            int[] codeGroups = new int[batch.getDictionarySize(column)];
+            Arrays.fill(codeGroups, -1);
+            int[] codes = batch.getStringCodes(column);
+            for (int i = 0; i < n; ++i) {
+              int row = selection[i];
+              int code = codes[row];
+              if (codeGroups[code] == -1) {
+                String key = batch.getDictionaryValue(column, code);
+                Integer group = this.stringGroups.get(key);
+                if (group == null) {
+                  group = this.newGroup();
+                  this.stringGroups.put(key, group);
+                }
+                codeGroups[code] = group;
+              }
+              this.add(codeGroups[code], batch, row);
+            }
+            break;
+          }
+        }
+      }
+      this.groupIndex = 0;
+      this.batchIndex = 0;
+    }
+
+    private int newGroup() {
+      this.groups.add(new ArrayList<RecordBatch>());
+      return this.groups.size() - 1;
+    }
+
+    private void add(int group, RecordBatch batch, int row) {
+      List<RecordBatch> batches = this.groups.get(group);
+      if (batches.isEmpty()) {
+        batches.add(new RecordBatch(batch.getSchema(), FIRST_BATCH_CAPACITY));
+      } else if (batches.get(batches.size() - 1).isFull()) {
+        int capacity = Math.min(batches.get(batches.size() - 1).getCapacity() * 2,
+                                RecordBatch.DEFAULT_CAPACITY);
+        batches.add(new RecordBatch(batch.getSchema(), capacity));
+      }
+      batches.get(batches.size() - 1).add(batch, row);
+    }
+
+    public boolean hasNext() {
+      return this.groupIndex < this.groups.size();
+    }
+
+    public RecordBatch next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      List<RecordBatch> batches = this.groups.get(this.groupIndex);
+      RecordBatch batch = batches.get(this.batchIndex++);
+      if (this.batchIndex == batches.size()) {
+        batch.setEndsGroup(true);
+        // Let the group be collected once it has been returned.
+        this.groups.set(this.groupIndex, null);
+        this.groupIndex++;
+        this.batchIndex = 0;
+      }
+      return batch;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * An open-addressing hash map from ints to non-negative ints, which unlike a HashMap does not
+   * box its keys.
+   */
+  private static class IntIndexMap {
+    private int[] keys = new int[16];
+    private int[] values = new int[16];
+    private boolean[] used = new boolean[16];
+    private int size = 0;
+
+    private int slot(int key) {
+      int mask = this.keys.length - 1;
+      int i = (key * 0x9E3779B9) >>> 16 & mask;
+      while (this.used[i] && this.keys[i] != key) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    /**
+     * @return the value of key, or -1 if it has none
+     */
+    int get(int key) {
+      int i = this.slot(key);
+      return this.used[i] ? this.values[i] : -1;
+    }
+
+    void put(int key, int value) {
+      if (2 * (this.size + 1) > this.keys.length) {
+        int[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        boolean[] oldUsed = this.used;
+        this.keys = new int[2 * oldKeys.length];
+        this.values = new int[2 * oldKeys.length];
+        this.used = new boolean[2 * oldKeys.length];
+        this.size = 0;
+        for (int i = 0; i < oldKeys.length; ++i) {
+          if (oldUsed[i]) {
+            this.put(oldKeys[i], oldValues[i]);
+          }
+        }
+      }
+      int i = this.slot(key);
+      if (!this.used[i]) {
+        this.used[i] = true;
+        this.keys[i] = key;
+        this.size++;
+      }
+      this.values[i] = value;
+    }
+  }
 }
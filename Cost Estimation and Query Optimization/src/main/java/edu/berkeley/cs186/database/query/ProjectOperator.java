@@ -13,6 +13,7 @@ import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.table.MarkerRecord;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
@@ -93,8 +94,8 @@ public class ProjectOperator extends QueryOperator {
       this.averageColumn = this.checkSchemaForColumn(sourceSchema, this.averageColumn);
       this.averageColumnIndex = sourceColumnNames.indexOf(this.averageColumn);
       if (!(sourceColumnTypes.get(this.averageColumnIndex).getTypeId() == TypeId.INT) &&
-          !(sourceColumnTypes.get(this.sumColumnIndex).getTypeId() == TypeId.FLOAT)) {
-        throw new QueryPlanException("Cannot compute sum over a non-integer column: " + this.averageColumn + ".");
+          !(sourceColumnTypes.get(this.averageColumnIndex).getTypeId() == TypeId.FLOAT)) {
+        throw new QueryPlanException("Cannot compute average over a non-integer column: " + this.averageColumn + ".");
       }
     }
 
@@ -123,10 +124,19 @@ public class ProjectOperator extends QueryOperator {
     return new Schema(this.columns, columnTypes);
   }
 
-  public Iterator<Record> iterator() throws QueryPlanException, DatabaseException { return new ProjectIterator(); }
+  /**
+   * Aggregates are computed a batch at a time over the primitive vectors of the batches of the
+   * source (see QueryOperator#batchIterator); other projections work record by record.
+   */
+  public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+    if (this.hasAggregate) {
+      return new AggregateIterator();
+    }
+    return new ProjectIterator();
+  }
 
-  private void addToCount() {
-    this.countValue++;
+  private void addToCount(int count) {
+    this.countValue += count;
   }
 
   private int getAndResetCount() {
@@ -135,12 +145,8 @@ public class ProjectOperator extends QueryOperator {
     return result;
   }
 
-  private void addToSum(Record record) {
-    if (this.sumIsFloat) {
-      this.sumValue += record.getValues().get(this.sumColumnIndex).getFloat();
-    } else {
-      this.sumValue += record.getValues().get(this.sumColumnIndex).getInt();
-    }
+  private void addToSum(double sum) {
+    this.sumValue += sum;
   }
 
   private double getAndResetSum() {
@@ -149,9 +155,33 @@ public class ProjectOperator extends QueryOperator {
     return result;
   }
 
-  private void addToAverage(Record record) {
-    this.averageCountValue++;
-    this.averageSumValue += record.getValues().get(this.averageColumnIndex).getInt();
+  private void addToAverage(int count, double sum) {
+    this.averageCountValue += count;
+    this.averageSumValue += sum;
+  }
+
+  /**
+   * @return the sum of column, an int or float column, over the selected records of batch
+   */
+  private static double sumSelected(RecordBatch batch, int column) {
+    int[] selection = batch.getSelection();
+    int n = batch.getNumSelected();
+    if (!batch.hasColumn(column)) {
+      return 0;
+    }
+    double sum = 0;
+    if (batch.getSchema().getFieldTypes().get(column).getTypeId() == TypeId.INT) {
+      int[] values = batch.getInts(column);
+      for (int i = 0; i < n; ++i) {
+        sum += values[selection[i]];
+      }
+    } else {
+      float[] values = batch.getFloats(column);
+      for (int i = 0; i < n; ++i) {
+        sum += values[selection[i]];
+      }
+    }
+    return sum;
   }
 
   private double getAndResetAverage() {
@@ -191,15 +221,11 @@ public class ProjectOperator extends QueryOperator {
     private Iterator<Record> sourceIterator;
     private MarkerRecord markerRecord;
     private Record nextRecord;
-    private boolean prevWasMarker;
-    private List<DataBox> baseValues;
 
     public ProjectIterator() throws QueryPlanException, DatabaseException {
       this.sourceIterator = ProjectOperator.this.getSource().iterator();
       this.markerRecord = MarkerRecord.getMarker();
       this.nextRecord = null;
-      this.prevWasMarker = true;
-      this.baseValues = new ArrayList<DataBox>();
     }
 
     /**
@@ -219,91 +245,19 @@ public class ProjectOperator extends QueryOperator {
      */
     public Record next() {
       if (this.hasNext()) {
-        if (ProjectOperator.this.hasAggregate) {
-          while (this.sourceIterator.hasNext()) {
-            Record r = this.sourceIterator.next();
-            List<DataBox> recordValues = r.getValues();
-
-            // if the record is a MarkerRecord, that means we reached the end of a group... we reset
-            // the aggregates and add the appropriate new record to the new Records
-            if (r == this.markerRecord) {
-              if (ProjectOperator.this.hasCount) {
-                int count = ProjectOperator.this.getAndResetCount();
-                this.baseValues.add(new IntDataBox(count));
-              }
-              if (ProjectOperator.this.sumColumnIndex != -1) {
-                double sum = ProjectOperator.this.getAndResetSum();
-
-                if (ProjectOperator.this.sumIsFloat) {
-                  this.baseValues.add(new FloatDataBox((float) sum));
-                } else {
-                  this.baseValues.add(new IntDataBox((int) sum));
-                }
-              }
-              if (ProjectOperator.this.averageColumnIndex != -1) {
-                double average = (float) ProjectOperator.this.getAndResetAverage();
-                this.baseValues.add(new FloatDataBox((float) average));
-              }
-              // record that we just saw a marker record
-              this.prevWasMarker = true;
-              return new Record(this.baseValues);
-            } else {
-              // if the previous record was a marker (or for the first record) we have to get the relevant
-              // fields out of the record
-              if (this.prevWasMarker) {
-                this.baseValues = new ArrayList<DataBox>();
-                for (int index : ProjectOperator.this.indices) {
-                  this.baseValues.add(recordValues.get(index));
-                }
-                this.prevWasMarker = false;
-              }
-              if (ProjectOperator.this.hasCount) {
-                ProjectOperator.this.addToCount();
-              }
-              if (ProjectOperator.this.sumColumnIndex != -1) {
-                ProjectOperator.this.addToSum(r);
-              }
-              if (ProjectOperator.this.averageColumnIndex != -1) {
-                ProjectOperator.this.addToAverage(r);
-              }
-            }
-          }
+        Record r = this.sourceIterator.next();
+        List<DataBox> recordValues = r.getValues();
+        List<DataBox> newValues = new ArrayList<DataBox>();
 
-          // at the very end, we need to make sure we add all the aggregated records to the result
-          // either because there was no group by or to add the last group we saw
-          if (ProjectOperator.this.hasCount) {
-            int count = ProjectOperator.this.getAndResetCount();
-            this.baseValues.add(new IntDataBox(count));
-          }
-          if (ProjectOperator.this.sumColumnIndex != -1) {
-            double sum = ProjectOperator.this.getAndResetSum();
-
-            if (ProjectOperator.this.sumIsFloat) {
-              this.baseValues.add(new FloatDataBox((float) sum));
-            } else {
-              this.baseValues.add(new IntDataBox((int) sum));
-            }
-          }
-          if (ProjectOperator.this.averageColumnIndex != -1) {
-            double average = ProjectOperator.this.getAndResetAverage();
-            this.baseValues.add(new FloatDataBox((float) average));
-          }
-          return new Record(this.baseValues);
+        // if there is a marker record (in the case we're projecting from a group by), we simply
+        // leave the marker records in
+        if (r == this.markerRecord) {
+          return markerRecord;
         } else {
-          Record r = this.sourceIterator.next();
-          List<DataBox> recordValues = r.getValues();
-          List<DataBox> newValues = new ArrayList<DataBox>();
-
-          // if there is a marker record (in the case we're projecting from a group by), we simply
-          // leave the marker records in
-          if (r == this.markerRecord) {
-            return markerRecord;
-          } else {
-            for (int index : ProjectOperator.this.indices) {
-              newValues.add(recordValues.get(index));
-            }
-            return new Record(newValues);
+          for (int index : ProjectOperator.this.indices) {
+            newValues.add(recordValues.get(index));
           }
+          return new Record(newValues);
         }
       }
       throw new NoSuchElementException();
@@ -313,4 +267,115 @@ public class ProjectOperator extends QueryOperator {
       throw new UnsupportedOperationException();
     }
   }
+
+  /**
+   * An iterator over the aggregates of the groups of the source, or of all of its records if it
+   * is not grouped, computed over the batches of the source.
+   */
+  private class AggregateIterator implements Iterator<Record> {
+    private Iterator<RecordBatch> sourceIterator;
+    private Record nextRecord;
+    // The projected columns of the first record of the current group, or null if the group has
+    // no records yet.
+    private List<DataBox> baseValues;
+
+    public AggregateIterator() throws QueryPlanException, DatabaseException {
+      this.sourceIterator = ProjectOperator.this.getSource().batchIterator();
+      this.nextRecord = null;
+      this.baseValues = null;
+    }
+
+    /**
+     * Checks if there are more record(s) to yield
+     *
+     * @return true if this iterator has another record to yield, otherwise false
+     */
+    public boolean hasNext() {
+      if (this.nextRecord != null) {
+        return true;
+      }
+      while (this.sourceIterator.hasNext()) {
+        RecordBatch batch = this.sourceIterator.next();
+        this.aggregate(batch);
+        if (batch.endsGroup() && this.baseValues != null) {
+          this.nextRecord = this.finishGroup();
+          return true;
+        }
+      }
+      // at the very end, we need to make sure we add all the aggregated records to the result
+      // either because there was no group by or to add the last group we saw
+      if (this.baseValues != null) {
+        this.nextRecord = this.finishGroup();
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Yields the next record of this iterator.
+     *
+     * @return the next Record
+     * @throws NoSuchElementException if there are no more Records to yield
+     */
+    public Record next() {
+      if (this.hasNext()) {
+        Record r = this.nextRecord;
+        this.nextRecord = null;
+        return r;
+      }
+      throw new NoSuchElementException();
+    }
+
+    private void aggregate(RecordBatch batch) {
+      int numSelected = batch.getNumSelected();
+      if (numSelected == 0) {
+        return;
+      }
+      // the first record of a group gives the values of the projected columns
+      if (this.baseValues == null) {
+        int row = batch.getSelection()[0];
+        this.baseValues = new ArrayList<DataBox>();
+        for (int index : ProjectOperator.this.indices) {
+          this.baseValues.add(batch.getValue(index, row));
+        }
+      }
+      if (ProjectOperator.this.hasCount) {
+        ProjectOperator.this.addToCount(numSelected);
+      }
+      if (ProjectOperator.this.sumColumnIndex != -1) {
+        ProjectOperator.this.addToSum(sumSelected(batch, ProjectOperator.this.sumColumnIndex));
+      }
+      if (ProjectOperator.this.averageColumnIndex != -1) {
+        ProjectOperator.this.addToAverage(numSelected,
+            sumSelected(batch, ProjectOperator.this.averageColumnIndex));
+      }
+    }
+
+    private Record finishGroup() {
+      List<DataBox> values = this.baseValues;
+      if (ProjectOperator.this.hasCount) {
+        int count = ProjectOperator.this.getAndResetCount();
+        values.add(new IntDataBox(count));
+      }
+      if (ProjectOperator.this.sumColumnIndex != -1) {
+        double sum = ProjectOperator.this.getAndResetSum();
+
+        if (ProjectOperator.this.sumIsFloat) {
+          values.add(new FloatDataBox((float) sum));
+        } else {
+          values.add(new IntDataBox((int) sum));
+        }
+      }
+      if (ProjectOperator.this.averageColumnIndex != -1) {
+        double average = ProjectOperator.this.getAndResetAverage();
+        values.add(new FloatDataBox((float) average));
+      }
+      this.baseValues = null;
+      return new Record(values);
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
@@ -2,9 +2,12 @@ package edu.berkeley.cs186.database.query;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.table.MarkerRecord;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
@@ -101,6 +104,19 @@ public abstract class QueryOperator {
 
   public abstract Iterator<Record> iterator() throws QueryPlanException, DatabaseException;
 
+  /**
+   * Returns the output of this operator in RecordBatches, for operators that work on many records
+   * at a time. Every call to next returns a new batch, so callers may keep the batches they are
+   * given.
+   *
+   * By default, the records of iterator() are packed into batches, and each MarkerRecord ends the
+   * batch before it (see RecordBatch#endsGroup). Operators that can produce batches directly
+   * override this.
+   */
+  public Iterator<RecordBatch> batchIterator() throws QueryPlanException, DatabaseException {
+    return new RecordBatchIterator(this.iterator(), this.getOutputSchema());
+  }
+
   /**
    * Utility method that checks to see if a column is found in a schema using dot notation.
    *
@@ -186,4 +202,57 @@ public abstract class QueryOperator {
   public int getIOCost() {
     return this.cost;
   }
+
+  /**
+   * An iterator that packs the records of an iterator into batches.
+   */
+  private static class RecordBatchIterator implements Iterator<RecordBatch> {
+    private Iterator<Record> sourceIterator;
+    private MarkerRecord markerRecord;
+    private Schema schema;
+    // The batch being filled or returned next, or null.
+    private RecordBatch batch;
+    // Whether batch holds records that next has not returned yet.
+    private boolean filled;
+
+    public RecordBatchIterator(Iterator<Record> sourceIterator, Schema schema) {
+      this.sourceIterator = sourceIterator;
+      this.markerRecord = MarkerRecord.getMarker();
+      this.schema = schema;
+      this.batch = null;
+      this.filled = false;
+    }
+
+    public boolean hasNext() {
+      if (this.filled) {
+        return true;
+      }
+      if (this.batch == null) {
+        this.batch = new RecordBatch(this.schema, RecordBatch.DEFAULT_CAPACITY);
+      }
+      while (this.sourceIterator.hasNext()) {
+        Record r = this.sourceIterator.next();
+        if (r == this.markerRecord) {
+          this.batch.setEndsGroup(true);
+          break;
+        }
+        this.batch.add(r);
+        if (this.batch.isFull()) {
+          break;
+        }
+      }
+      this.filled = this.batch.getNumRows() > 0 || this.batch.endsGroup();
+      return this.filled;
+    }
+
+    public RecordBatch next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      this.filled = false;
+      RecordBatch batch = this.batch;
+      this.batch = null;
+      return batch;
+    }
+  }
 }
@@ -193,7 +193,7 @@ public class QueryPlan {
       this.generateIndexPlan(indexColumn);
     } else {
       // start off with the start table scan as the source
-      this.finalOperator = new SequentialScanOperator(this.transaction, this.startTableName);
+      this.finalOperator = this.newSequentialScan(this.startTableName);
 
       this.addJoins();
       this.addSelects();
@@ -337,7 +337,11 @@ public class QueryPlan {
       DataBox curValue = this.selectDataBoxes.get(i);
       try {
         String colName = source.checkSchemaForColumn(source.getOutputSchema(), selectColumnNames.get(i));
-        source = new SelectOperator(source, colName, curPred, curValue);
+        if (source instanceof SequentialScanOperator) {
+          ((SequentialScanOperator) source).pushDownSelect(colName, curPred, curValue);
+        } else {
+          source = new SelectOperator(source, colName, curPred, curValue);
+        }
       } catch (QueryPlanException err) {
         continue;
       }
@@ -368,7 +372,7 @@ public class QueryPlan {
 
     // 1. Find the cost of a sequential scan of the table
     //minOp = new SequentialScanOperator(this.transaction, table);
-    minOp = new SequentialScanOperator(this.transaction, table);
+    minOp = this.newSequentialScan(table);
     int minCost = minOp.getIOCost();
 
     // 2. For each eligible index column, find the cost of an index scan of the
@@ -616,11 +620,37 @@ public class QueryPlan {
 
   }
 
+  /**
+   * Creates a sequential scan of table. If the plan ends in a projection, the scan only reads the
+   * columns that the query names, since no other column reaches the output.
+   */
+  private SequentialScanOperator newSequentialScan(String table) throws QueryPlanException, DatabaseException {
+    if (this.projectColumns.isEmpty() && !this.hasCount && this.sumColumnName == null
+            && this.averageColumnName == null) {
+      return new SequentialScanOperator(this.transaction, table);
+    }
+
+    List<String> referencedColumns = new ArrayList<String>(this.projectColumns);
+    referencedColumns.addAll(this.selectColumnNames);
+    referencedColumns.addAll(this.joinLeftColumnNames);
+    referencedColumns.addAll(this.joinRightColumnNames);
+    if (this.groupByColumn != null) {
+      referencedColumns.add(this.groupByColumn);
+    }
+    if (this.sumColumnName != null) {
+      referencedColumns.add(this.sumColumnName);
+    }
+    if (this.averageColumnName != null) {
+      referencedColumns.add(this.averageColumnName);
+    }
+    return new SequentialScanOperator(this.transaction, table, referencedColumns);
+  }
+
   private void addJoins() throws QueryPlanException, DatabaseException {
     int index = 0;
 
     for (String joinTable : this.joinTableNames) {
-      SequentialScanOperator scanOperator = new SequentialScanOperator(this.transaction, joinTable);
+      SequentialScanOperator scanOperator = this.newSequentialScan(joinTable);
 
       SNLJOperator joinOperator = new SNLJOperator(finalOperator, scanOperator,
               this.joinLeftColumnNames.get(index), this.joinRightColumnNames.get(index), this.transaction); //changed from new JoinOperator
@@ -637,10 +667,15 @@ public class QueryPlan {
       PredicateOperator operator = this.selectOperators.get(index);
       DataBox value = this.selectDataBoxes.get(index);
 
-      SelectOperator selectOperator = new SelectOperator(this.finalOperator, selectColumn,
-              operator, value);
+      if (this.finalOperator instanceof SequentialScanOperator) {
+        // Without joins, evaluate the predicate in the scan itself.
+        ((SequentialScanOperator) this.finalOperator).pushDownSelect(selectColumn, operator, value);
+      } else {
+        SelectOperator selectOperator = new SelectOperator(this.finalOperator, selectColumn,
+                operator, value);
 
-      this.finalOperator = selectOperator;
+        this.finalOperator = selectOperator;
+      }
       index++;
     }
   }
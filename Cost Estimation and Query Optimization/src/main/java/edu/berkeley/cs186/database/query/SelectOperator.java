@@ -7,6 +7,8 @@ import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.table.MarkerRecord;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
+import edu.berkeley.cs186.database.table.ScanPredicate;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
@@ -15,6 +17,7 @@ public class SelectOperator extends QueryOperator {
   private String columnName;
   private QueryPlan.PredicateOperator operator;
   private DataBox value;
+  private ScanPredicate predicate;
 
   /**
    * Creates a new SelectOperator that pulls from source and only returns tuples for which the
@@ -36,6 +39,7 @@ public class SelectOperator extends QueryOperator {
 
     this.columnName = this.checkSchemaForColumn(source.getOutputSchema(), columnName);
     this.columnIndex = this.getOutputSchema().getFieldNames().indexOf(this.columnName);
+    this.predicate = new ScanPredicate(this.columnIndex, operator, value);
 
     this.stats = this.estimateStats();
     this.cost = this.estimateIOCost();
@@ -69,7 +73,62 @@ public class SelectOperator extends QueryOperator {
   }
 
 
-  public Iterator<Record> iterator() throws QueryPlanException, DatabaseException { return new SelectIterator(); }
+  public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+    if (this.getSource() instanceof SequentialScanOperator) {
+      // Let the scan evaluate the predicate before it decodes each record.
+      return ((SequentialScanOperator) this.getSource()).iterator(this.predicate);
+    }
+    return new SelectIterator();
+  }
+
+  /**
+   * Filters the batches of the source by narrowing their selection vectors.
+   */
+  @Override
+  public Iterator<RecordBatch> batchIterator() throws QueryPlanException, DatabaseException {
+    if (this.getSource() instanceof SequentialScanOperator) {
+      return ((SequentialScanOperator) this.getSource()).batchIterator(this.predicate);
+    }
+    return new SelectBatchIterator(this.getSource().batchIterator());
+  }
+
+  /**
+   * An iterator over the batches of the source with the records that fail the predicate
+   * deselected. Batches left with no records are skipped, unless they end a group.
+   */
+  private class SelectBatchIterator implements Iterator<RecordBatch> {
+    private Iterator<RecordBatch> sourceIterator;
+    private RecordBatch nextBatch;
+
+    public SelectBatchIterator(Iterator<RecordBatch> sourceIterator) {
+      this.sourceIterator = sourceIterator;
+      this.nextBatch = null;
+    }
+
+    public boolean hasNext() {
+      while (this.nextBatch == null && this.sourceIterator.hasNext()) {
+        RecordBatch batch = this.sourceIterator.next();
+        SelectOperator.this.predicate.filter(batch);
+        if (batch.getNumSelected() > 0 || batch.endsGroup()) {
+          this.nextBatch = batch;
+        }
+      }
+      return this.nextBatch != null;
+    }
+
+    public RecordBatch next() {
+      if (this.hasNext()) {
+        RecordBatch batch = this.nextBatch;
+        this.nextBatch = null;
+        return batch;
+      }
+      throw new NoSuchElementException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 
   /**
    * An implementation of Iterator that provides an iterator interface for this operator.
@@ -100,51 +159,9 @@ public class SelectOperator extends QueryOperator {
           this.nextRecord = r;
           return true;
         }
-        switch (SelectOperator.this.operator) {
-          case EQUALS:
-            if (r.getValues().get(SelectOperator.this.columnIndex).equals(value)) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case NOT_EQUALS:
-            if (!r.getValues().get(SelectOperator.this.columnIndex).equals(value)) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case LESS_THAN:
-            if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == -1) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case LESS_THAN_EQUALS:
-            if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == -1) {
-              this.nextRecord = r;
-              return true;
-            } else if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == 0) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case GREATER_THAN:
-            if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == 1) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          case GREATER_THAN_EQUALS:
-            if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == 1) {
-              this.nextRecord = r;
-              return true;
-            } else if (r.getValues().get(SelectOperator.this.columnIndex).compareTo(value) == 0) {
-              this.nextRecord = r;
-              return true;
-            }
-            break;
-          default:
-            break;
+        if (SelectOperator.this.predicate.matches(r.getValues().get(SelectOperator.this.columnIndex))) {
+          this.nextRecord = r;
+          return true;
         }
       }
       return false;
@@ -1,16 +1,28 @@
 package edu.berkeley.cs186.database.query;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
+import edu.berkeley.cs186.database.table.ScanPredicate;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 public class SequentialScanOperator extends QueryOperator {
   private Database.Transaction transaction;
   private String tableName;
+  // The columns read from the table, or null to read every column.
+  private int[] columns;
+  // The predicates pushed down into the scan, all of which the records it
+  // returns satisfy.
+  private List<ScanPredicate> predicates = new ArrayList<ScanPredicate>();
 
   /**
    * Creates a new SequentialScanOperator that provides an iterator on all tuples in a table.
@@ -33,14 +45,109 @@ public class SequentialScanOperator extends QueryOperator {
     this.cost = this.estimateIOCost();
   }
 
+  /**
+   * Creates a new SequentialScanOperator that only reads the columns of the table named in
+   * referencedColumns from its pages. Its records still have every column of the table, but the
+   * other columns hold placeholder values, so the scan must only be used beneath operators that
+   * look at the named columns alone. Names that are not columns of the table are ignored.
+   *
+   * @param transaction
+   * @param tableName
+   * @param referencedColumns the names of the columns that operators above the scan use
+   * @throws QueryPlanException
+   * @throws DatabaseException
+   */
+  public SequentialScanOperator(Database.Transaction transaction,
+                                String tableName,
+                                Collection<String> referencedColumns) throws QueryPlanException, DatabaseException {
+    this(transaction, tableName);
+
+    List<String> fieldNames = this.getOutputSchema().getFieldNames();
+    List<Integer> columns = new ArrayList<Integer>();
+    for (int i = 0; i < fieldNames.size(); i++) {
+      for (String name : referencedColumns) {
+        if (this.checkColumnNameEquality(fieldNames.get(i), name)) {
+          columns.add(i);
+          break;
+        }
+      }
+    }
+    if (columns.size() < fieldNames.size()) {
+      this.columns = new int[columns.size()];
+      for (int i = 0; i < this.columns.length; i++) {
+        this.columns[i] = columns.get(i);
+      }
+    }
+  }
+
   public String getTableName() {
     return this.tableName;
   }
 
+  /**
+   * Returns an iterator over the records of the scan. Neither this iterator nor those of
+   * batchIterator hold page pins between calls (see RecordViewIterator), so operators above the
+   * scan, e.g. the inner loop of a join, may stop reading it early without closing it.
+   */
   public Iterator<Record> iterator() throws DatabaseException {
+    if (!this.predicates.isEmpty()) {
+      return this.transaction.getRecordIterator(tableName, this.predicates, this.columns);
+    }
+    if (this.columns != null) {
+      return this.transaction.getRecordIterator(tableName, this.columns);
+    }
     return this.transaction.getRecordIterator(tableName);
   }
 
+  /**
+   * Pushes the predicate of a SELECT down into the scan, which then only returns the records that
+   * satisfy it. The scan evaluates its predicates on the bytes of the table's pages, so that the
+   * records that fail them are never decoded. This is equivalent to, and cheaper than, placing a
+   * SelectOperator on top of the scan.
+   *
+   * @param columnName the name of the column to evaluate the predicate on
+   * @param operator the actual comparator
+   * @param value the value to compare against
+   * @throws QueryPlanException if columnName is not a column of the table
+   */
+  public void pushDownSelect(String columnName,
+                             QueryPlan.PredicateOperator operator,
+                             DataBox value) throws QueryPlanException {
+    columnName = this.checkSchemaForColumn(this.getOutputSchema(), columnName);
+    int columnIndex = this.getOutputSchema().getFieldNames().indexOf(columnName);
+    this.predicates.add(new ScanPredicate(columnIndex, operator, value));
+    this.stats = this.stats.copyWithPredicate(columnIndex, operator, value);
+    this.cost = this.estimateIOCost();
+  }
+
+  /**
+   * @return an iterator over the records of the scan that also satisfy predicate, for a
+   * SelectOperator directly above the scan
+   */
+  Iterator<Record> iterator(ScanPredicate predicate) throws DatabaseException {
+    List<ScanPredicate> predicates = new ArrayList<ScanPredicate>(this.predicates);
+    predicates.add(predicate);
+    return this.transaction.getRecordIterator(tableName, predicates, this.columns);
+  }
+
+  /**
+   * Fills batches straight from the table's pages, holding only the columns the scan reads.
+   */
+  @Override
+  public Iterator<RecordBatch> batchIterator() throws DatabaseException {
+    return this.transaction.getRecordBatchIterator(tableName, this.predicates, this.columns);
+  }
+
+  /**
+   * @return the batches of the scan, restricted to the records that also satisfy predicate, for
+   * a SelectOperator directly above the scan
+   */
+  Iterator<RecordBatch> batchIterator(ScanPredicate predicate) throws DatabaseException {
+    List<ScanPredicate> predicates = new ArrayList<ScanPredicate>(this.predicates);
+    predicates.add(predicate);
+    return this.transaction.getRecordBatchIterator(tableName, predicates, this.columns);
+  }
+
   public Schema computeSchema() throws QueryPlanException {
     try {
       return this.transaction.getFullyQualifiedSchema(this.tableName);
@@ -50,8 +157,15 @@ public class SequentialScanOperator extends QueryOperator {
   }
 
   public String str() {
-    return "type: " + this.getType() +
+    String str = "type: " + this.getType() +
             "\ntable: " + this.tableName;
+    if (this.columns != null) {
+      str += "\ncolumns: " + Arrays.toString(this.columns);
+    }
+    for (ScanPredicate predicate : this.predicates) {
+      str += "\npredicate: " + predicate;
+    }
+    return str;
   }
 
 
@@ -62,16 +176,24 @@ public class SequentialScanOperator extends QueryOperator {
    */
   public TableStats estimateStats() throws QueryPlanException {
     try {
-      return this.transaction.getStats(this.tableName);
+      TableStats stats = this.transaction.getStats(this.tableName);
+      for (ScanPredicate predicate : this.predicates) {
+        stats = stats.copyWithPredicate(predicate.getColumn(), predicate.getOperator(),
+                                        predicate.getValue());
+      }
+      return stats;
     } catch (DatabaseException de) {
       throw new QueryPlanException(de);
     }
   }
 
+  /**
+   * The scan reads the pages of the table that the zone map does not rule out for its pushed-down
+   * predicates.
+   */
   public int estimateIOCost() throws QueryPlanException {
     try {
-      
-      return this.transaction.getNumDataPages(this.tableName);
+      return this.transaction.getNumDataPagesToScan(this.tableName, this.predicates);
 
     } catch (DatabaseException de) {
       throw new QueryPlanException(de);
@@ -0,0 +1,200 @@
+package edu.berkeley.cs186.database.table;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+
+/**
+ * The original layout of data pages: an n-byte bitmap followed by m
+ * fixed-length records, where the bitmap indicates which of the m slots hold
+ * a record. See Table#computeNumRecordsPerPage for how n and m are chosen.
+ *
+ * The bitmap is read and searched 64 slots at a time. Since bit 0 of the
+ * bitmap is the most significant bit of its first byte, the big-endian long at
+ * byte 8 * i holds slots 64 * i through 64 * i + 63, from the most
+ * significant bit down.
+ *
+ * Records are stored row by row after the bitmap. Subclasses may arrange the
+ * records differently by overriding readRecord and writeRecord.
+ */
+class BitmapPageLayout extends PageLayout {
+  protected final int bitmapSizeInBytes;
+  protected final int numRecordsPerPage;
+  private final RecordCodec codec;
+
+  BitmapPageLayout(Schema schema, int pageSize) {
+    super(schema, pageSize);
+    this.bitmapSizeInBytes = Table.computeBitmapSizeInBytes(pageSize, schema);
+    this.numRecordsPerPage = Table.computeNumRecordsPerPage(pageSize, schema);
+    this.codec = schema.getCodec();
+  }
+
+  @Override
+  int getCapacity() {
+    return numRecordsPerPage;
+  }
+
+  @Override
+  int getMaxSlots() {
+    return numRecordsPerPage;
+  }
+
+  @Override
+  boolean isFixedLength() {
+    return true;
+  }
+
+  @Override
+  int getBitmapSizeInBytes() {
+    return bitmapSizeInBytes;
+  }
+
+  @Override
+  byte[] readBitmap(ByteBuffer page) {
+    byte[] bitmap = new byte[bitmapSizeInBytes];
+    page.position(0);
+    page.get(bitmap);
+    return bitmap;
+  }
+
+  private int numWords() {
+    return (bitmapSizeInBytes + Long.BYTES - 1) / Long.BYTES;
+  }
+
+  /**
+   * Returns the ith word of the bitmap. If the bitmap does not fill the last
+   * word, the missing low-order bits are zero.
+   */
+  private long readWord(ByteBuffer page, int i) {
+    int offset = i * Long.BYTES;
+    if (offset + Long.BYTES <= bitmapSizeInBytes) {
+      return page.getLong(offset);
+    }
+    long word = 0;
+    for (int j = 0; j < Long.BYTES; ++j) {
+      word <<= 8;
+      if (offset + j < bitmapSizeInBytes) {
+        word |= page.get(offset + j) & 0xFF;
+      }
+    }
+    return word;
+  }
+
+  /**
+   * Returns the first free slot of the page, or numRecordsPerPage if it is
+   * full.
+   */
+  private int findFreeSlot(ByteBuffer page) {
+    for (int i = 0; i < numWords(); ++i) {
+      long free = ~readWord(page, i);
+      if (free != 0) {
+        return Math.min(i * Long.SIZE + Long.numberOfLeadingZeros(free), numRecordsPerPage);
+      }
+    }
+    return numRecordsPerPage;
+  }
+
+  private void setBit(ByteBuffer page, int slot, boolean live) {
+    byte b = page.get(slot / 8);
+    byte mask = (byte) (0x80 >>> (slot % 8));
+    page.put(slot / 8, (byte) (live ? b | mask : b & ~mask));
+  }
+
+  @Override
+  boolean isLive(ByteBuffer page, int slot) {
+    return (page.get(slot / 8) & (0x80 >>> (slot % 8))) != 0;
+  }
+
+  @Override
+  int nextLive(ByteBuffer page, int slot) {
+    if (slot >= numRecordsPerPage) {
+      return -1;
+    }
+    int i = slot / Long.SIZE;
+    long word = readWord(page, i) & (-1L >>> (slot % Long.SIZE));
+    while (word == 0) {
+      if (++i >= numWords()) {
+        return -1;
+      }
+      word = readWord(page, i);
+    }
+    return i * Long.SIZE + Long.numberOfLeadingZeros(word);
+  }
+
+  @Override
+  int countRecords(ByteBuffer page) {
+    // numRecordsPerPage is a multiple of 8, so every bit of the bitmap is a
+    // slot.
+    int numRecords = 0;
+    for (int i = 0; i < numWords(); ++i) {
+      numRecords += Long.bitCount(readWord(page, i));
+    }
+    return numRecords;
+  }
+
+  @Override
+  boolean hasRoom(ByteBuffer page) {
+    return findFreeSlot(page) < numRecordsPerPage;
+  }
+
+  @Override
+  int insert(ByteBuffer page, Record record) {
+    int slot = findFreeSlot(page);
+    assert(slot < numRecordsPerPage);
+    writeRecord(page, slot, record);
+    setBit(page, slot, true);
+    return slot;
+  }
+
+  @Override
+  Record read(ByteBuffer page, int slot, boolean[] columns) {
+    if (!isLive(page, slot)) {
+      return null;
+    }
+    return readRecord(page, slot, columns);
+  }
+
+  @Override
+  boolean update(ByteBuffer page, int slot, Record record) {
+    writeRecord(page, slot, record);
+    return true;
+  }
+
+  @Override
+  void delete(ByteBuffer page, int slot) {
+    setBit(page, slot, false);
+  }
+
+  @Override
+  int valueOffset(ByteBuffer page, int slot, int column) {
+    return bitmapSizeInBytes + slot * schema.getSizeInBytes() + codec.getOffset(column);
+  }
+
+  /**
+   * Reads the record in slot, which must hold one, projected onto columns.
+   */
+  protected Record readRecord(ByteBuffer page, int slot, boolean[] columns) {
+    int offset = bitmapSizeInBytes + slot * schema.getSizeInBytes();
+    if (columns == null) {
+      return codec.decode(page, offset);
+    }
+    List<DataBox> values = new ArrayList<DataBox>(columns.length);
+    for (int i = 0; i < columns.length; ++i) {
+      if (columns[i]) {
+        values.add(codec.decodeField(page, offset, i));
+      } else {
+        values.add(placeholder(i));
+      }
+    }
+    return new Record(values);
+  }
+
+  /**
+   * Writes record into slot, without changing the bitmap.
+   */
+  protected void writeRecord(ByteBuffer page, int slot, Record record) {
+    codec.encode(record.getValues(), page, bitmapSizeInBytes + slot * schema.getSizeInBytes());
+  }
+}
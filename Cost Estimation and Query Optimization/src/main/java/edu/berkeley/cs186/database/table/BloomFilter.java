@@ -0,0 +1,251 @@
+package edu.berkeley.cs186.database.table;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.PageException;
+
+/**
+ * A BloomFilter summarizes the values of one column of a table, so that a
+ * lookup of a value the column does not hold can usually be answered without
+ * reading an index or a data page (see Table#mightContain). mightContain never
+ * returns false for a value that was added, and returns true for a value that
+ * was not with a probability of about 1% while the filter holds no more keys
+ * than it was sized for.
+ *
+ * Bits cannot be taken back out of a Bloom filter, so deleting a record only
+ * counts the deletion. Once too many keys have been deleted, or more keys
+ * have been added than the filter was sized for, needsRebuild says so, and the
+ * table rebuilds the filter from its records (see Table#compact).
+ *
+ * Values are hashed by what DataBox#equals compares: strings without their
+ * padding, and floats with -0.0 folded into 0.0. A value whose type is not
+ * that of the column is never ruled out.
+ *
+ * A filter is persisted in a file of its own (see
+ * Table#BLOOM_FILTER_EXTENSION), as follows:
+ *
+ *   | magic (4) | numHashes (4) | numWords (4) | capacity (8) |
+ *   | numAdded (8) | numRemoved (8) | numRecords (8) | words (8 each) |
+ *
+ * where numRecords is the number of records in the table when the filter
+ * was written, which read checks against the table.
+ */
+class BloomFilter {
+  private static final int MAGIC = 0xB100F11E;
+  private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 8 + 8;
+  // With 10 bits per key and 7 hashes, about 1% of the values that were not
+  // added pass the filter.
+  private static final int BITS_PER_KEY = 10;
+  private static final int NUM_HASHES = 7;
+  // The fewest keys a filter is sized for, so that a table that starts out
+  // empty does not need a rebuild right away.
+  private static final long MIN_CAPACITY = 1024;
+
+  private final Type type;
+  private final int numHashes;
+  private final long[] words;
+  private final long numBits;
+  // The number of keys the filter was sized for.
+  private final long capacity;
+  private long numAdded = 0;
+  private long numRemoved = 0;
+  // Whether the filter changed since it was last written.
+  private boolean dirty = true;
+
+  /**
+   * Creates an empty filter for a column of type type, sized for
+   * expectedKeys keys. Tables size their filters for twice as many keys as
+   * they hold, so that they can grow before the filter needs a rebuild.
+   */
+  BloomFilter(Type type, long expectedKeys) {
+    this(type, NUM_HASHES, Math.max(expectedKeys, MIN_CAPACITY));
+  }
+
+  private BloomFilter(Type type, int numHashes, long capacity) {
+    this.type = type;
+    this.numHashes = numHashes;
+    this.capacity = capacity;
+    long numWords = (capacity * BITS_PER_KEY + Long.SIZE - 1) / Long.SIZE;
+    this.words = new long[(int) Math.min(numWords, Integer.MAX_VALUE - 8)];
+    this.numBits = (long) words.length * Long.SIZE;
+  }
+
+  synchronized void add(DataBox value) {
+    long h = hash(value);
+    long h1 = h >>> 32;
+    long h2 = (h & 0xFFFFFFFFL) | 1;
+    for (int i = 0; i < numHashes; ++i) {
+      long bit = Math.floorMod(h1 + i * h2, numBits);
+      words[(int) (bit / Long.SIZE)] |= 1L << (bit % Long.SIZE);
+    }
+    numAdded++;
+    dirty = true;
+  }
+
+  /**
+   * Counts the deletion of a key, whose bits stay set.
+   */
+  synchronized void remove() {
+    numRemoved++;
+    dirty = true;
+  }
+
+  /**
+   * @return false if value was never added
+   */
+  synchronized boolean mightContain(DataBox value) {
+    if (value.type().getTypeId() != type.getTypeId()) {
+      return true;
+    }
+    long h = hash(value);
+    long h1 = h >>> 32;
+    long h2 = (h & 0xFFFFFFFFL) | 1;
+    for (int i = 0; i < numHashes; ++i) {
+      long bit = Math.floorMod(h1 + i * h2, numBits);
+      if ((words[(int) (bit / Long.SIZE)] & (1L << (bit % Long.SIZE))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return whether the filter has outgrown its size, or more than half of
+   * the keys added to it have been deleted since, so that it rules out fewer
+   * values than a rebuilt filter would
+   */
+  synchronized boolean needsRebuild() {
+    return numAdded > capacity || 2 * numRemoved > numAdded;
+  }
+
+  synchronized boolean isDirty() {
+    return dirty;
+  }
+
+  private static long hash(DataBox value) {
+    long h;
+    switch (value.type().getTypeId()) {
+      case BOOL:
+        h = value.getBool() ? 1 : 0;
+        break;
+      case INT:
+        h = value.getInt();
+        break;
+      case FLOAT:
+        float f = value.getFloat();
+        h = Float.floatToIntBits(f == 0 ? 0f : f);
+        break;
+      case STRING:
+        String s = value.getString();
+        int length = s.length();
+        while (length > 0 && s.charAt(length - 1) == ' ') {
+          length--;
+        }
+        // FNV-1a.
+        h = 0xCBF29CE484222325L;
+        for (int i = 0; i < length; ++i) {
+          h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown type " + value.type());
+    }
+    // The finalizer of MurmurHash3, so that nearby values set unrelated bits.
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Writes the filter to the file filename, replacing it atomically, for a
+   * table of numRecords records.
+   */
+  synchronized void write(String filename, long numRecords) {
+    ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + words.length * Long.BYTES);
+    buf.putInt(MAGIC);
+    buf.putInt(numHashes);
+    buf.putInt(words.length);
+    buf.putLong(capacity);
+    buf.putLong(numAdded);
+    buf.putLong(numRemoved);
+    buf.putLong(numRecords);
+    buf.asLongBuffer().put(words);
+
+    Path path = Paths.get(filename);
+    Path tmp = Paths.get(filename + ".tmp");
+    try {
+      Files.write(tmp, buf.array());
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new PageException("Could not write Bloom filter " + filename + ": " + e.getMessage());
+    }
+    dirty = false;
+  }
+
+  /**
+   * Reads a filter written by write from the file filename.
+   *
+   * @return the filter, or null if the file does not hold a filter of a table
+   * with numRecords records, e.g. because it is missing, or because the table
+   * changed after the filter was written
+   */
+  static BloomFilter read(String filename, Type type, long numRecords) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(Paths.get(filename));
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      throw new PageException("Could not read Bloom filter " + filename + ": " + e.getMessage());
+    }
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    if (bytes.length < HEADER_SIZE || buf.getInt() != MAGIC) {
+      return null;
+    }
+    int numHashes = buf.getInt();
+    int numWords = buf.getInt();
+    long capacity = buf.getLong();
+    if (numHashes <= 0 || numWords <= 0 || capacity <= 0
+        || bytes.length != HEADER_SIZE + (long) numWords * Long.BYTES) {
+      return null;
+    }
+    BloomFilter filter = new BloomFilter(type, numHashes, capacity);
+    if (filter.words.length != numWords) {
+      return null;
+    }
+    filter.numAdded = buf.getLong();
+    filter.numRemoved = buf.getLong();
+    if (buf.getLong() != numRecords) {
+      return null;
+    }
+    buf.asLongBuffer().get(filter.words);
+    filter.dirty = false;
+    return filter;
+  }
+
+  static boolean exists(String filename) {
+    return Files.exists(Paths.get(filename));
+  }
+
+  /**
+   * Deletes the file filename, if there is one.
+   */
+  static void delete(String filename) {
+    try {
+      Files.deleteIfExists(Paths.get(filename));
+    } catch (IOException e) {
+      throw new PageException("Could not delete Bloom filter " + filename + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package edu.berkeley.cs186.database.table;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import edu.berkeley.cs186.database.databox.BoolDataBox;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FieldCodec;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+
+/**
+ * A PageLayout decides how a table arranges its records on its data pages.
+ * Records on a page are numbered by slot, and a RecordId names a page and a
+ * slot of it, whatever the layout.
+ *
+ * Every method takes a view of the bytes of a data page (see
+ * Page#getByteBuffer) that the caller keeps pinned, or of an in-memory image
+ * of a data page. Methods may move the position of the view. A page whose
+ * bytes are all zero is an empty page in every layout, so newly allocated
+ * pages need no initialization.
+ *
+ * Records can be read in full or projected onto some of their columns. A
+ * projected record has every column of the schema, but only the projected
+ * columns are decoded from the page; the others hold a placeholder value of
+ * their type (false, 0, or the empty string).
+ */
+abstract class PageLayout {
+  protected final Schema schema;
+  protected final int pageSize;
+
+  // The placeholder of each column of the schema in projected records.
+  private final DataBox[] placeholders;
+  // The codec of each column of the schema.
+  protected final FieldCodec[] fieldCodecs;
+
+  PageLayout(Schema schema, int pageSize) {
+    this.schema = schema;
+    this.pageSize = pageSize;
+
+    List<Type> types = schema.getFieldTypes();
+    this.placeholders = new DataBox[types.size()];
+    this.fieldCodecs = new FieldCodec[types.size()];
+    for (int i = 0; i < placeholders.length; ++i) {
+      fieldCodecs[i] = FieldCodec.forType(types.get(i));
+      placeholders[i] = placeholderOf(types.get(i));
+    }
+  }
+
+  /**
+   * @return the value of columns of type t in projected records
+   */
+  static DataBox placeholderOf(Type t) {
+    switch (t.getTypeId()) {
+      case BOOL: return new BoolDataBox(false);
+      case INT: return new IntDataBox(0);
+      case FLOAT: return new FloatDataBox(0f);
+      case STRING: return new StringDataBox("", t.getSizeInBytes());
+      default: throw new IllegalArgumentException("Unknown type " + t);
+    }
+  }
+
+  /**
+   * @return the value of column in records projected onto other columns
+   */
+  DataBox placeholder(int column) {
+    return placeholders[column];
+  }
+
+  /**
+   * @return the number of records guaranteed to fit on an empty page, or 0
+   * if records of the schema do not fit on a page at all
+   */
+  abstract int getCapacity();
+
+  /**
+   * @return one more than the largest slot number of any page
+   */
+  abstract int getMaxSlots();
+
+  /**
+   * @return whether every page has getCapacity() slots of the same size, so
+   * that the number of records a page can still take is known in advance
+   */
+  abstract boolean isFixedLength();
+
+  abstract boolean isLive(ByteBuffer page, int slot);
+
+  /**
+   * @return the first slot at or after slot that holds a record, or -1 if
+   * there is none
+   */
+  abstract int nextLive(ByteBuffer page, int slot);
+
+  abstract int countRecords(ByteBuffer page);
+
+  /**
+   * @return whether any record of the schema fits on the page
+   */
+  abstract boolean hasRoom(ByteBuffer page);
+
+  /**
+   * Stores record on the page, which must have room for it.
+   *
+   * @return the slot of the record
+   */
+  abstract int insert(ByteBuffer page, Record record);
+
+  /**
+   * @return the record in slot, or null if slot holds no record
+   */
+  Record read(ByteBuffer page, int slot) {
+    return read(page, slot, null);
+  }
+
+  /**
+   * @param columns whether each column of the schema is projected, or null
+   * to read every column
+   * @return the record in slot projected onto columns, or null if slot holds
+   * no record
+   */
+  abstract Record read(ByteBuffer page, int slot, boolean[] columns);
+
+  /**
+   * @return the offset on the page of the value of column of the record in
+   * slot, which must hold one. Values other than strings are encoded there as
+   * by DataBox#toBytes.
+   */
+  abstract int valueOffset(ByteBuffer page, int slot, int column);
+
+  /**
+   * @return the value of column, which must be a string column, of the record
+   * in slot, padded with spaces to the width of the column
+   */
+  String readString(ByteBuffer page, int slot, int column) {
+    byte[] bytes = new byte[schema.getFieldTypes().get(column).getSizeInBytes()];
+    page.position(valueOffset(page, slot, column));
+    page.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Compares the value of column, which must be a string column, of the
+   * record in slot with the string whose bytes are value, in place on the
+   * page. The sign of the result is that of String#compareTo.
+   */
+  int compareString(ByteBuffer page, int slot, int column, byte[] value) {
+    int width = schema.getFieldTypes().get(column).getSizeInBytes();
+    return compareBytes(page, valueOffset(page, slot, column), width, width, value);
+  }
+
+  /**
+   * Compares the string of width bytes whose first length bytes are at offset
+   * of the page, and whose other bytes are spaces, with the string whose bytes
+   * are value.
+   */
+  static int compareBytes(ByteBuffer page, int offset, int length, int width, byte[] value) {
+    int n = Math.min(width, value.length);
+    for (int i = 0; i < n; ++i) {
+      int b = i < length ? page.get(offset + i) & 0xFF : ' ';
+      if (b != (value[i] & 0xFF)) {
+        return b - (value[i] & 0xFF);
+      }
+    }
+    return width - value.length;
+  }
+
+  /**
+   * @return the value of column of the record in slot, which must hold one
+   */
+  DataBox readValue(ByteBuffer page, int slot, int column) {
+    return fieldCodecs[column].decode(page, valueOffset(page, slot, column));
+  }
+
+  /**
+   * Replaces the record in slot, which must hold one, with record.
+   *
+   * @return false, leaving the page unchanged, if record does not fit on the
+   * page
+   */
+  abstract boolean update(ByteBuffer page, int slot, Record record);
+
+  /**
+   * Removes the record in slot, which must hold one.
+   */
+  abstract void delete(ByteBuffer page, int slot);
+
+  /**
+   * @return the size of the bitmap returned by readBitmap
+   */
+  int getBitmapSizeInBytes() {
+    return (getMaxSlots() + 7) / 8;
+  }
+
+  /**
+   * Returns a bitmap of the slots of the page that hold a record, in the
+   * format of Bits#getBit. Layouts that do not keep such a bitmap on the page
+   * build one.
+   */
+  byte[] readBitmap(ByteBuffer page) {
+    byte[] bitmap = new byte[getBitmapSizeInBytes()];
+    for (int slot = nextLive(page, 0); slot != -1; slot = nextLive(page, slot + 1)) {
+      bitmap[slot / 8] |= (byte) (0x80 >>> (slot % 8));
+    }
+    return bitmap;
+  }
+}
@@ -0,0 +1,64 @@
+package edu.berkeley.cs186.database.table;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+
+/**
+ * A PAX (Partition Attributes Across) layout: a data page holds as many
+ * fixed-length records as in BitmapPageLayout, with the same bitmap, but the
+ * values of each column are stored together in a minipage of their own
+ * rather than record by record:
+ *
+ *   +--------+-----------------------+-----------------------+-----+
+ *   | bitmap | column 0 of slots     | column 1 of slots     | ... |
+ *   |        | 0, 1, ..., m - 1      | 0, 1, ..., m - 1      |     |
+ *   +--------+-----------------------+-----------------------+-----+
+ *
+ * Reading some of the columns of the records of a page then only touches the
+ * minipages of those columns.
+ */
+class PaxPageLayout extends BitmapPageLayout {
+  // The offset of the minipage of each column.
+  private final int[] minipageOffsets;
+
+  PaxPageLayout(Schema schema, int pageSize) {
+    super(schema, pageSize);
+    List<Type> types = schema.getFieldTypes();
+    this.minipageOffsets = new int[types.size()];
+    int offset = bitmapSizeInBytes;
+    for (int i = 0; i < types.size(); ++i) {
+      minipageOffsets[i] = offset;
+      offset += numRecordsPerPage * types.get(i).getSizeInBytes();
+    }
+  }
+
+  @Override
+  int valueOffset(ByteBuffer page, int slot, int column) {
+    return minipageOffsets[column] + slot * schema.getFieldTypes().get(column).getSizeInBytes();
+  }
+
+  @Override
+  protected Record readRecord(ByteBuffer page, int slot, boolean[] columns) {
+    List<DataBox> values = new ArrayList<DataBox>(fieldCodecs.length);
+    for (int i = 0; i < fieldCodecs.length; ++i) {
+      if (columns == null || columns[i]) {
+        values.add(fieldCodecs[i].decode(page, valueOffset(page, slot, i)));
+      } else {
+        values.add(placeholder(i));
+      }
+    }
+    return new Record(values);
+  }
+
+  @Override
+  protected void writeRecord(ByteBuffer page, int slot, Record record) {
+    List<DataBox> values = record.getValues();
+    for (int i = 0; i < fieldCodecs.length; ++i) {
+      fieldCodecs[i].encode(page, valueOffset(page, slot, i), values.get(i));
+    }
+  }
+}
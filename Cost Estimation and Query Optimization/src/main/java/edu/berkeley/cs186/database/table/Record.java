@@ -1,11 +1,9 @@
 package edu.berkeley.cs186.database.table;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.List;
 
 import edu.berkeley.cs186.database.databox.DataBox;
-import edu.berkeley.cs186.database.databox.Type;
 
 /** A Record is just list of DataBoxes. */
 public class Record {
@@ -21,9 +19,7 @@ public class Record {
 
   public byte[] toBytes(Schema schema) {
     ByteBuffer byteBuffer = ByteBuffer.allocate(schema.getSizeInBytes());
-    for (DataBox value : values) {
-      byteBuffer.put(value.toBytes());
-    }
+    schema.getCodec().encode(values, byteBuffer, 0);
     return byteBuffer.array();
   }
 
@@ -36,11 +32,9 @@ public class Record {
    * @return the decoded Record
    */
   public static Record fromBytes(ByteBuffer buf, Schema schema) {
-    List<DataBox> values = new ArrayList<DataBox>();
-    for (Type t : schema.getFieldTypes()) {
-      values.add(DataBox.fromBytes(buf, t));
-    }
-    return new Record(values);
+    Record record = schema.getCodec().decode(buf, buf.position());
+    buf.position(buf.position() + schema.getSizeInBytes());
+    return record;
   }
 
   @Override
@@ -0,0 +1,334 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.berkeley.cs186.database.databox.BoolDataBox;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+
+/**
+ * A RecordBatch holds up to getCapacity() records of a schema column by
+ * column, so that operators can work on many records at a time without a
+ * DataBox per value. Each column is a vector of primitives:
+ *
+ *   - a bool column is a boolean[],
+ *   - an int column is an int[],
+ *   - a float column is a float[], and
+ *   - a string column is an int[] of codes into a dictionary of the distinct
+ *     strings of the column in the batch.
+ *
+ * A batch may hold only some of the columns of its schema (see
+ * Table#batchIterator); the others have no vector and every record has a
+ * placeholder value in them, as in Table#getRecord(RecordId, int[]).
+ *
+ * The selection vector lists the rows of the batch that are in it, in order;
+ * filtering a batch only shrinks its selection. Rows that are not selected
+ * are ignored by everything but getValue.
+ *
+ * Batches flowing out of a GroupByOperator hold the records of one group at a
+ * time, and the last batch of each group, which may hold no records, ends the
+ * group (see endsGroup).
+ */
+public class RecordBatch {
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private final Schema schema;
+  private final int capacity;
+  // The vector of each column, or null if the batch does not hold it.
+  private final Object[] vectors;
+  // The dictionary of each string column the batch holds, or null.
+  private final Dictionary[] dictionaries;
+  private final DataBox[] placeholders;
+  private int numRows = 0;
+  private final int[] selection;
+  private int numSelected = 0;
+  private boolean endsGroup = false;
+
+  /**
+   * Creates an empty batch holding every column of schema.
+   */
+  public RecordBatch(Schema schema, int capacity) {
+    this(schema, capacity, null);
+  }
+
+  /**
+   * Creates an empty batch holding the columns of schema for which columns is
+   * true, or every column if columns is null.
+   */
+  public RecordBatch(Schema schema, int capacity, boolean[] columns) {
+    List<Type> types = schema.getFieldTypes();
+    this.schema = schema;
+    this.capacity = capacity;
+    this.vectors = new Object[types.size()];
+    this.dictionaries = new Dictionary[types.size()];
+    this.placeholders = new DataBox[types.size()];
+    this.selection = new int[capacity];
+    for (int i = 0; i < types.size(); ++i) {
+      placeholders[i] = PageLayout.placeholderOf(types.get(i));
+      if (columns != null && !columns[i]) {
+        continue;
+      }
+      switch (types.get(i).getTypeId()) {
+        case BOOL: vectors[i] = new boolean[capacity]; break;
+        case INT: vectors[i] = new int[capacity]; break;
+        case FLOAT: vectors[i] = new float[capacity]; break;
+        case STRING:
+          vectors[i] = new int[capacity];
+          dictionaries[i] = new Dictionary(types.get(i).getSizeInBytes());
+          break;
+        default: throw new IllegalArgumentException("Unknown type " + types.get(i));
+      }
+    }
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getNumRows() {
+    return numRows;
+  }
+
+  public boolean isFull() {
+    return numRows == capacity;
+  }
+
+  /**
+   * @return whether the batch holds the vector of column
+   */
+  public boolean hasColumn(int column) {
+    return vectors[column] != null;
+  }
+
+  public boolean[] getBools(int column) {
+    return (boolean[]) vectors[column];
+  }
+
+  public int[] getInts(int column) {
+    return (int[]) vectors[column];
+  }
+
+  public float[] getFloats(int column) {
+    return (float[]) vectors[column];
+  }
+
+  /**
+   * @return the codes of the values of a string column; see getDictionaryValue
+   */
+  public int[] getStringCodes(int column) {
+    return (int[]) vectors[column];
+  }
+
+  /**
+   * @return the number of distinct strings in a string column of the batch
+   */
+  public int getDictionarySize(int column) {
+    return dictionaries[column].strings.size();
+  }
+
+  /**
+   * @return the string with code in a string column, padded to the width of
+   * the column
+   */
+  public String getDictionaryValue(int column, int code) {
+    return dictionaries[column].strings.get(code);
+  }
+
+  /**
+   * @return the rows of the batch that are selected, in the first
+   * getNumSelected() elements. Filters may overwrite the array in place and
+   * then call setNumSelected.
+   */
+  public int[] getSelection() {
+    return selection;
+  }
+
+  public int getNumSelected() {
+    return numSelected;
+  }
+
+  public void setNumSelected(int numSelected) {
+    assert(numSelected <= this.numSelected);
+    this.numSelected = numSelected;
+  }
+
+  /**
+   * @return whether the batch holds the last records of a group; see
+   * GroupByOperator
+   */
+  public boolean endsGroup() {
+    return endsGroup;
+  }
+
+  public void setEndsGroup(boolean endsGroup) {
+    this.endsGroup = endsGroup;
+  }
+
+  /**
+   * Empties the batch.
+   */
+  public void clear() {
+    numRows = 0;
+    numSelected = 0;
+    endsGroup = false;
+    for (Dictionary dictionary : dictionaries) {
+      if (dictionary != null) {
+        dictionary.clear();
+      }
+    }
+  }
+
+  /**
+   * Appends the record view is on to the batch, which must not be full, and
+   * selects it.
+   */
+  public void add(RecordView view) {
+    int row = startRow();
+    for (int i = 0; i < vectors.length; ++i) {
+      if (vectors[i] == null) {
+        continue;
+      }
+      switch (schema.getFieldTypes().get(i).getTypeId()) {
+        case BOOL: getBools(i)[row] = view.getBool(i); break;
+        case INT: getInts(i)[row] = view.getInt(i); break;
+        case FLOAT: getFloats(i)[row] = view.getFloat(i); break;
+        default: getStringCodes(i)[row] = dictionaries[i].codeOf(view.getString(i)); break;
+      }
+    }
+  }
+
+  /**
+   * Appends record, which must match the schema, to the batch, which must not
+   * be full, and selects it.
+   */
+  public void add(Record record) {
+    int row = startRow();
+    List<DataBox> values = record.getValues();
+    for (int i = 0; i < vectors.length; ++i) {
+      if (vectors[i] != null) {
+        set(i, row, values.get(i));
+      }
+    }
+  }
+
+  /**
+   * Appends row of batch, which must have the same schema, to this batch,
+   * which must not be full, and selects it.
+   */
+  public void add(RecordBatch batch, int row) {
+    int newRow = startRow();
+    for (int i = 0; i < vectors.length; ++i) {
+      if (vectors[i] == null) {
+        continue;
+      }
+      if (!batch.hasColumn(i)) {
+        set(i, newRow, batch.getValue(i, row));
+        continue;
+      }
+      switch (schema.getFieldTypes().get(i).getTypeId()) {
+        case BOOL: getBools(i)[newRow] = batch.getBools(i)[row]; break;
+        case INT: getInts(i)[newRow] = batch.getInts(i)[row]; break;
+        case FLOAT: getFloats(i)[newRow] = batch.getFloats(i)[row]; break;
+        default: {
+          String s = batch.getDictionaryValue(i, batch.getStringCodes(i)[row]);
+          getStringCodes(i)[newRow] = dictionaries[i].codeOf(s);
+          break;
+        }
+      }
+    }
+  }
+
+  private int startRow() {
+    assert(numRows < capacity);
+    assert(numSelected == numRows);
+    selection[numSelected++] = numRows;
+    return numRows++;
+  }
+
+  private void set(int column, int row, DataBox value) {
+    switch (schema.getFieldTypes().get(column).getTypeId()) {
+      case BOOL: getBools(column)[row] = value.getBool(); break;
+      case INT: getInts(column)[row] = value.getInt(); break;
+      case FLOAT: getFloats(column)[row] = value.getFloat(); break;
+      default: getStringCodes(column)[row] = dictionaries[column].codeOf(value.getString()); break;
+    }
+  }
+
+  /**
+   * @return the value of column in row, selected or not
+   */
+  public DataBox getValue(int column, int row) {
+    if (vectors[column] == null) {
+      return placeholders[column];
+    }
+    switch (schema.getFieldTypes().get(column).getTypeId()) {
+      case BOOL: return new BoolDataBox(getBools(column)[row]);
+      case INT: return new IntDataBox(getInts(column)[row]);
+      case FLOAT: return new FloatDataBox(getFloats(column)[row]);
+      default: return dictionaries[column].valueOf(getStringCodes(column)[row]);
+    }
+  }
+
+  /**
+   * @return the record in row, selected or not
+   */
+  public Record getRecord(int row) {
+    List<DataBox> values = new ArrayList<DataBox>(vectors.length);
+    for (int i = 0; i < vectors.length; ++i) {
+      values.add(getValue(i, row));
+    }
+    return new Record(values);
+  }
+
+  /**
+   * The distinct strings of a string column of a batch, numbered in the order
+   * in which they were added.
+   */
+  private static class Dictionary {
+    private final int width;
+    private final List<String> strings = new ArrayList<String>();
+    private final Map<String, Integer> codes = new HashMap<String, Integer>();
+    // The DataBox of each string, built when first asked for.
+    private final List<DataBox> values = new ArrayList<DataBox>();
+
+    Dictionary(int width) {
+      this.width = width;
+    }
+
+    int codeOf(String s) {
+      Integer code = codes.get(s);
+      if (code == null) {
+        code = strings.size();
+        strings.add(s);
+        values.add(null);
+        codes.put(s, code);
+      }
+      return code;
+    }
+
+    DataBox valueOf(int code) {
+      DataBox value = values.get(code);
+      if (value == null) {
+        value = new StringDataBox(strings.get(code), width);
+        values.set(code, value);
+      }
+      return value;
+    }
+
+    void clear() {
+      strings.clear();
+      codes.clear();
+      values.clear();
+    }
+  }
+}
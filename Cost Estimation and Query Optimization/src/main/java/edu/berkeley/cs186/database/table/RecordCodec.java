@@ -0,0 +1,78 @@
+package edu.berkeley.cs186.database.table;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FieldCodec;
+import edu.berkeley.cs186.database.databox.Type;
+
+/**
+ * A RecordCodec reads and writes the records of one schema in the format of
+ * Record#toBytes, straight from and into a buffer such as a page. The codec
+ * resolves the type and offset of every field once, when it is built, so that
+ * encoding and decoding a record is a loop over a fixed array of field codecs.
+ * Every Schema builds its codec once; see Schema#getCodec.
+ */
+public class RecordCodec {
+  private final FieldCodec[] fields;
+  // The offset of each field within a record.
+  private final int[] offsets;
+  private final int size;
+
+  RecordCodec(Schema schema) {
+    List<Type> types = schema.getFieldTypes();
+    this.fields = new FieldCodec[types.size()];
+    this.offsets = new int[types.size()];
+    int offset = 0;
+    for (int i = 0; i < types.size(); ++i) {
+      fields[i] = FieldCodec.forType(types.get(i));
+      offsets[i] = offset;
+      offset += fields[i].getSize();
+    }
+    this.size = offset;
+  }
+
+  /**
+   * @return the offset of field within a record
+   */
+  public int getOffset(int field) {
+    return offsets[field];
+  }
+
+  /**
+   * @return the value of field of the record whose bytes start at offset of
+   * buf
+   */
+  public DataBox decodeField(ByteBuffer buf, int offset, int field) {
+    return fields[field].decode(buf, offset + offsets[field]);
+  }
+
+  /**
+   * @return the record whose bytes start at offset of buf
+   */
+  public Record decode(ByteBuffer buf, int offset) {
+    List<DataBox> values = new ArrayList<DataBox>(fields.length);
+    for (int i = 0; i < fields.length; ++i) {
+      values.add(fields[i].decode(buf, offset + offsets[i]));
+    }
+    return new Record(values);
+  }
+
+  /**
+   * Writes the bytes of values, which must match the schema, at offset of buf.
+   */
+  public void encode(List<DataBox> values, ByteBuffer buf, int offset) {
+    for (int i = 0; i < fields.length; ++i) {
+      fields[i].encode(buf, offset + offsets[i], values.get(i));
+    }
+  }
+
+  /**
+   * @return the number of bytes a record takes
+   */
+  public int getSizeInBytes() {
+    return size;
+  }
+}
@@ -18,10 +18,17 @@ import edu.berkeley.cs186.database.DatabaseException;
 public class RecordIterator implements BacktrackingIterator<Record> {
   private Iterator<RecordId> ridIter;
   private Table table;
+  // Whether each column is read from the table, or null to read them all.
+  private boolean[] columns;
 
   public RecordIterator(Table table, Iterator<RecordId> ridIter) {
+    this(table, ridIter, null);
+  }
+
+  RecordIterator(Table table, Iterator<RecordId> ridIter, boolean[] columns) {
     this.ridIter = ridIter;
     this.table = table;
+    this.columns = columns;
   }
 
 
@@ -31,7 +38,7 @@ public class RecordIterator implements BacktrackingIterator<Record> {
 
   public Record next() {
     try {
-      return table.getRecord(ridIter.next());
+      return table.getRecord(ridIter.next(), columns);
     } catch (DatabaseException e) {
       throw new IllegalStateException(e);
     }
@@ -0,0 +1,172 @@
+package edu.berkeley.cs186.database.table;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.DataBoxException;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+
+/**
+ * A RecordView is a record of a table read in place from the page it is
+ * stored on. Nothing is decoded until a value is asked for, and then only that
+ * value, so a filter can test a record on one column without building a
+ * Record for it:
+ *
+ *   RecordViewIterator views = table.viewIterator();
+ *   while (views.hasNext()) {
+ *     RecordView view = views.next();
+ *     if (view.getInt(0) > 10) {
+ *       output.add(view.toRecord());
+ *     }
+ *   }
+ *
+ * A RecordViewIterator returns the same RecordView over and over, moved to the
+ * next record by each call to next, so a view is only valid until then. Use
+ * toRecord to keep a record. The table must not be modified while a view is
+ * in use.
+ *
+ * "In place" means in the iterator's copy of the page rather than in the
+ * buffer pool's frame: a table's iterators copy each page once so that they
+ * hold no pins (see RecordViewIterator for the trade-off). What a view saves
+ * is the decoding and the DataBoxes of the values that are never asked for.
+ */
+public class RecordView {
+  private final PageLayout layout;
+  private final Schema schema;
+  // The columns toRecord reads, or null to read every column.
+  private final boolean[] columns;
+
+  private ByteBuffer page;
+  private int pageNum;
+  private int slot;
+
+  RecordView(PageLayout layout, Schema schema, boolean[] columns) {
+    this.layout = layout;
+    this.schema = schema;
+    this.columns = columns;
+  }
+
+  /**
+   * Moves the view to the record in slot of page pageNum, whose bytes are
+   * page.
+   */
+  void moveTo(ByteBuffer page, int pageNum, int slot) {
+    this.page = page;
+    this.pageNum = pageNum;
+    this.slot = slot;
+  }
+
+  public RecordId getRecordId() {
+    return new RecordId(pageNum, (short) slot);
+  }
+
+  public int getNumColumns() {
+    return schema.getFieldTypes().size();
+  }
+
+  public Type getType(int column) {
+    return schema.getFieldTypes().get(column);
+  }
+
+  private void checkType(int column, TypeId typeId) {
+    TypeId actual = getType(column).getTypeId();
+    if (actual != typeId) {
+      String msg = String.format("Column %d has type %s, not %s.", column, actual, typeId);
+      throw new DataBoxException(msg);
+    }
+  }
+
+  public boolean getBool(int column) {
+    checkType(column, TypeId.BOOL);
+    return page.get(layout.valueOffset(page, slot, column)) == 1;
+  }
+
+  public int getInt(int column) {
+    checkType(column, TypeId.INT);
+    return page.getInt(layout.valueOffset(page, slot, column));
+  }
+
+  public float getFloat(int column) {
+    checkType(column, TypeId.FLOAT);
+    return page.getFloat(layout.valueOffset(page, slot, column));
+  }
+
+  /**
+   * @return the value of a string column, padded with spaces to the width of
+   * the column like StringDataBox#getString
+   */
+  public String getString(int column) {
+    checkType(column, TypeId.STRING);
+    return layout.readString(page, slot, column);
+  }
+
+  /**
+   * @return the value of column as a DataBox
+   */
+  public DataBox getValue(int column) {
+    return layout.readValue(page, slot, column);
+  }
+
+  /**
+   * Compares the value of a string column with the string whose bytes are
+   * value, on the page itself. The sign of the result is that of
+   * getString(column).compareTo(s), where s is the string of value.
+   */
+  public int compareString(int column, byte[] value) {
+    checkType(column, TypeId.STRING);
+    return layout.compareString(page, slot, column, value);
+  }
+
+  /**
+   * Compares the value of column to value without building a DataBox for it.
+   * The sign of the result is that of getValue(column).compareTo(value).
+   */
+  public int compareValue(int column, DataBox value) {
+    Type t = getType(column);
+    if (t.getTypeId() != value.type().getTypeId()) {
+      String err = String.format("Invalid comparison between column %d of type %s and %s.",
+                                 column, t.getTypeId(), value.toString());
+      throw new DataBoxException(err);
+    }
+    switch (t.getTypeId()) {
+      case BOOL: return Boolean.compare(getBool(column), value.getBool());
+      case INT: return Integer.compare(getInt(column), value.getInt());
+      case FLOAT: return Float.compare(getFloat(column), value.getFloat());
+      default: return compareString(column, value.getString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Tests the value of column for equality with value without building a
+   * DataBox for it. The result is that of getValue(column).equals(value).
+   */
+  public boolean valueEquals(int column, DataBox value) {
+    Type t = getType(column);
+    if (t.getTypeId() != value.type().getTypeId()) {
+      return false;
+    }
+    switch (t.getTypeId()) {
+      case BOOL: return getBool(column) == value.getBool();
+      case INT: return getInt(column) == value.getInt();
+      case FLOAT: return getFloat(column) == value.getFloat();
+      default: return compareValue(column, value) == 0;
+    }
+  }
+
+  /**
+   * @return the record the view is on, decoded into a Record that stays valid
+   * after the view moves on. If the view comes from an iterator over some of
+   * the columns of the table, the record is projected onto those columns like
+   * Table#getRecord(RecordId, int[]).
+   */
+  public Record toRecord() {
+    return layout.read(page, slot, columns);
+  }
+
+  @Override
+  public String toString() {
+    return toRecord().toString();
+  }
+}
@@ -0,0 +1,27 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.Iterator;
+
+/**
+ * An iterator over the records of a table as RecordViews; see RecordView.
+ *
+ * The views are onto a copy of the page the iterator is on, which is taken
+ * while the page is pinned, so the iterator holds no pins between calls and
+ * may be abandoned before it runs out. Closing it releases its copies early.
+ *
+ * The views are therefore not zero-copy: each page the iterator visits is
+ * copied once, a single memcpy of the page, in exchange for never leaving a
+ * page pinned. Views onto the pinned page itself would save that copy, but
+ * every scan that stopped early without being closed (e.g. the Iterator of
+ * Database.Transaction#lookupKey, or of a query plan) would then keep its
+ * pages pinned for good, where they could be neither evicted nor freed.
+ * Values are still decoded from the copy only when they are asked for.
+ */
+public interface RecordViewIterator extends Iterator<RecordView>, AutoCloseable {
+  /**
+   * Releases the iterator's copies of pages. The iterator returns no more
+   * views.
+   */
+  @Override
+  void close();
+}
@@ -0,0 +1,210 @@
+package edu.berkeley.cs186.database.table;
+
+import java.nio.charset.StandardCharsets;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.DataBoxException;
+import edu.berkeley.cs186.database.databox.TypeId;
+import edu.berkeley.cs186.database.query.QueryPlan.PredicateOperator;
+
+/**
+ * A ScanPredicate compares one column of a record to a constant, like the
+ * predicate of a SelectOperator. A table scan can evaluate a conjunction of
+ * them on the bytes of its pages (see Table#iterator(List, int[])), so that
+ * records that fail one are never decoded.
+ *
+ * A predicate holds when getValue(column).compareTo(value) satisfies the
+ * operator, or, for EQUALS and NOT_EQUALS, when getValue(column).equals(value)
+ * does.
+ */
+public class ScanPredicate {
+  private final int column;
+  private final PredicateOperator operator;
+  private final DataBox value;
+  // The bytes of value if it is a string, which RecordView#compareString
+  // compares with the bytes of the column on the page.
+  private final byte[] stringBytes;
+
+  public ScanPredicate(int column, PredicateOperator operator, DataBox value) {
+    this.column = column;
+    this.operator = operator;
+    this.value = value;
+    if (value.type().getTypeId() == TypeId.STRING) {
+      this.stringBytes = value.getString().getBytes(StandardCharsets.UTF_8);
+    } else {
+      this.stringBytes = null;
+    }
+  }
+
+  public int getColumn() {
+    return this.column;
+  }
+
+  public PredicateOperator getOperator() {
+    return this.operator;
+  }
+
+  public DataBox getValue() {
+    return this.value;
+  }
+
+  /**
+   * @return whether v, a value of the column, satisfies the predicate
+   */
+  public boolean matches(DataBox v) {
+    switch (this.operator) {
+      case EQUALS:
+        return v.equals(this.value);
+      case NOT_EQUALS:
+        return !v.equals(this.value);
+      default:
+        return satisfies(v.compareTo(this.value));
+    }
+  }
+
+  /**
+   * @return whether the record view is on satisfies the predicate
+   */
+  public boolean matches(RecordView view) {
+    if (this.stringBytes != null && view.getType(this.column).getTypeId() == TypeId.STRING) {
+      int comparison = view.compareString(this.column, this.stringBytes);
+      switch (this.operator) {
+        case EQUALS:
+          return comparison == 0;
+        case NOT_EQUALS:
+          return comparison != 0;
+        default:
+          return satisfies(comparison);
+      }
+    }
+    switch (this.operator) {
+      case EQUALS:
+        return view.valueEquals(this.column, this.value);
+      case NOT_EQUALS:
+        return !view.valueEquals(this.column, this.value);
+      default:
+        return satisfies(view.compareValue(this.column, this.value));
+    }
+  }
+
+  /**
+   * Removes the rows that do not satisfy the predicate from the selection of
+   * batch, which must hold the column. Strings are compared once per distinct
+   * string of the batch rather than once per row.
+   */
+  public void filter(RecordBatch batch) {
+    if (!batch.hasColumn(this.column)) {
+      // Every record holds the same placeholder in the column.
+      if (batch.getNumSelected() > 0 && !matches(batch.getValue(this.column, 0))) {
+        batch.setNumSelected(0);
+      }
+      return;
+    }
+    TypeId typeId = batch.getSchema().getFieldTypes().get(this.column).getTypeId();
+    if (typeId != this.value.type().getTypeId()) {
+      // Like DataBox#equals and DataBox#compareTo on values of different types.
+      switch (this.operator) {
+        case EQUALS:
+          batch.setNumSelected(0);
+          return;
+        case NOT_EQUALS:
+          return;
+        default:
+          String err = String.format("Invalid comparison between column %d of type %s and %s.",
+                                     this.column, typeId, this.value.toString());
+          throw new DataBoxException(err);
+      }
+    }
+
+    int[] selection = batch.getSelection();
+    int n = batch.getNumSelected();
+    int kept = 0;
+    switch (typeId) {
+      case BOOL: {
+        boolean[] v = batch.getBools(this.column);
+        boolean b = this.value.getBool();
+        for (int i = 0; i < n; ++i) {
+          int row = selection[i];
+          if (test(v[row] == b, Boolean.compare(v[row], b))) {
+            selection[kept++] = row;
+          }
+        }
+        break;
+      }
+      case INT: {
+        int[] v = batch.getInts(this.column);
+        int x = this.value.getInt();
+        for (int i = 0; i < n; ++i) {
+          int row = selection[i];
+          if (test(v[row] == x, Integer.compare(v[row], x))) {
+            selection[kept++] = row;
+          }
+        }
+        break;
+      }
+      case FLOAT: {
+        float[] v = batch.getFloats(this.column);
+        float x = this.value.getFloat();
+        for (int i = 0; i < n; ++i) {
+          int row = selection[i];
+          if (test(v[row] == x, Float.compare(v[row], x))) {
+            selection[kept++] = row;
+          }
+        }
+        break;
+      }
+      default: {
+        String s = this.value.getString();
+        boolean[] matches = new boolean[batch.getDictionarySize(this.column)];
+        for (int code = 0; code < matches.length; ++code) {
+          String t = batch.getDictionaryValue(this.column, code);
+          matches[code] = test(t.equals(s), t.compareTo(s));
+        }
+        int[] codes = batch.getStringCodes(this.column);
+        for (int i = 0; i < n; ++i) {
+          int row = selection[i];
+          if (matches[codes[row]]) {
+            selection[kept++] = row;
+          }
+        }
+        break;
+      }
+    }
+    batch.setNumSelected(kept);
+  }
+
+  /**
+   * @return whether a value that equals the predicate's value if equal, and
+   * compares to it as comparison, satisfies the predicate
+   */
+  private boolean test(boolean equal, int comparison) {
+    switch (this.operator) {
+      case EQUALS:
+        return equal;
+      case NOT_EQUALS:
+        return !equal;
+      default:
+        return satisfies(comparison);
+    }
+  }
+
+  private boolean satisfies(int comparison) {
+    switch (this.operator) {
+      case LESS_THAN:
+        return comparison < 0;
+      case LESS_THAN_EQUALS:
+        return comparison <= 0;
+      case GREATER_THAN:
+        return comparison > 0;
+      case GREATER_THAN_EQUALS:
+        return comparison >= 0;
+      default:
+        return false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("column %d %s %s", this.column, this.operator, this.value);
+  }
+}
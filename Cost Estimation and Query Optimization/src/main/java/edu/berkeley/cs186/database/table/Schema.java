@@ -1,7 +1,7 @@
 package edu.berkeley.cs186.database.table;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -24,6 +24,8 @@ public class Schema {
   private List<String> fieldNames;
   private List<Type> fieldTypes;
   private int sizeInBytes;
+  // Built when first needed; see getCodec.
+  private volatile RecordCodec codec;
 
   public Schema(List<String> fieldNames, List<Type> fieldTypes) {
     assert(fieldNames.size() == fieldTypes.size());
@@ -48,6 +50,18 @@ public class Schema {
     return sizeInBytes;
   }
 
+  /**
+   * @return the codec that encodes and decodes the records of this schema
+   */
+  public RecordCodec getCodec() {
+    RecordCodec c = codec;
+    if (c == null) {
+      c = new RecordCodec(this);
+      codec = c;
+    }
+    return c;
+  }
+
   // TODO(mwhittaker): Rename to something more descriptive.
   public Record verify(List<DataBox> values) throws DatabaseException {
     if (values.size() != fieldNames.size()) {
@@ -91,7 +105,7 @@ public class Schema {
     buf.putInt(fieldNames.size());
     for (int i = 0; i < fieldNames.size(); ++i) {
       buf.putInt(fieldNames.get(i).length());
-      buf.put(fieldNames.get(i).getBytes(Charset.forName("UTF-8")));
+      buf.put(fieldNames.get(i).getBytes(StandardCharsets.UTF_8));
       buf.put(fieldTypes.get(i).toBytes());
     }
     return buf.array();
@@ -105,7 +119,7 @@ public class Schema {
       int fieldSize = buf.getInt();
       byte[] bytes = new byte[fieldSize];
       buf.get(bytes);
-      fieldNames.add(new String(bytes, Charset.forName("UTF-8")));
+      fieldNames.add(new String(bytes, StandardCharsets.UTF_8));
       fieldTypes.add(Type.fromBytes(buf));
     }
     return new Schema(fieldNames, fieldTypes);
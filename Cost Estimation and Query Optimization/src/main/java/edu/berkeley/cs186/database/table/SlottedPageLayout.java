@@ -0,0 +1,337 @@
+package edu.berkeley.cs186.database.table;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+
+/**
+ * A layout for variable-length records. A data page begins with a header and
+ * a slot directory that grows towards the end of the page, while the records
+ * are stored at the end of the page and grow towards its beginning:
+ *
+ *   +------------+--------+--------+-----+--------------+----------+----------+
+ *   | numSlots   | slot 0 | slot 1 | ... |  free space  | record 1 | record 0 |
+ *   | freeEnd    |        |        |     |              |          |          |
+ *   | liveBytes  |        |        |     |              |          |          |
+ *   +------------+--------+--------+-----+--------------+----------+----------+
+ *
+ * The header holds three ints: the number of slots in the directory, the
+ * offset of the first byte of the record area (0 stands for the end of the
+ * page, so that a zeroed page is empty), and the total length of the records
+ * on the page. Each slot holds the offset and length of its record as
+ * unsigned shorts, and a slot whose length is 0 is empty.
+ *
+ * Records are encoded field by field like Record#toBytes, except that a
+ * string is stored as a 2-byte length followed by its characters without the
+ * spaces StringDataBox pads it with. The padding is restored when the record
+ * is read, so a string column only takes as many bytes as its values need.
+ *
+ * Deleting or shrinking a record leaves a hole in the record area. Holes are
+ * reclaimed by compacting the page when a record does not fit into the free
+ * space between the directory and the record area.
+ */
+class SlottedPageLayout extends PageLayout {
+  private static final int NUM_SLOTS_OFFSET = 0;
+  private static final int FREE_END_OFFSET = 4;
+  private static final int LIVE_BYTES_OFFSET = 8;
+  private static final int HEADER_SIZE = 12;
+  private static final int SLOT_SIZE = 4;
+
+  // The largest and smallest encoded size of a record of the schema.
+  private final int maxRecordSize;
+  private final int minRecordSize;
+
+  SlottedPageLayout(Schema schema, int pageSize) {
+    super(schema, pageSize);
+    int max = 0;
+    int min = 0;
+    for (Type t : schema.getFieldTypes()) {
+      if (t.getTypeId() == TypeId.STRING) {
+        max += Short.BYTES + t.getSizeInBytes();
+        min += Short.BYTES;
+      } else {
+        max += t.getSizeInBytes();
+        min += t.getSizeInBytes();
+      }
+    }
+    this.maxRecordSize = max;
+    this.minRecordSize = Math.max(min, 1);
+  }
+
+  @Override
+  int getCapacity() {
+    return (pageSize - HEADER_SIZE) / (maxRecordSize + SLOT_SIZE);
+  }
+
+  @Override
+  int getMaxSlots() {
+    return Math.min((pageSize - HEADER_SIZE) / (minRecordSize + SLOT_SIZE), Short.MAX_VALUE);
+  }
+
+  @Override
+  boolean isFixedLength() {
+    return false;
+  }
+
+  private int numSlots(ByteBuffer page) {
+    return page.getInt(NUM_SLOTS_OFFSET);
+  }
+
+  private int freeEnd(ByteBuffer page) {
+    int freeEnd = page.getInt(FREE_END_OFFSET);
+    return freeEnd == 0 ? pageSize : freeEnd;
+  }
+
+  private int liveBytes(ByteBuffer page) {
+    return page.getInt(LIVE_BYTES_OFFSET);
+  }
+
+  private int slotOffset(ByteBuffer page, int slot) {
+    return page.getShort(HEADER_SIZE + slot * SLOT_SIZE) & 0xFFFF;
+  }
+
+  private int slotLength(ByteBuffer page, int slot) {
+    return page.getShort(HEADER_SIZE + slot * SLOT_SIZE + Short.BYTES) & 0xFFFF;
+  }
+
+  private void setSlot(ByteBuffer page, int slot, int offset, int length) {
+    page.putShort(HEADER_SIZE + slot * SLOT_SIZE, (short) offset);
+    page.putShort(HEADER_SIZE + slot * SLOT_SIZE + Short.BYTES, (short) length);
+  }
+
+  // The number of bytes of the page not used by the header, the directory,
+  // or records, holes included.
+  private int freeBytes(ByteBuffer page) {
+    return pageSize - HEADER_SIZE - numSlots(page) * SLOT_SIZE - liveBytes(page);
+  }
+
+  @Override
+  boolean isLive(ByteBuffer page, int slot) {
+    return slot < numSlots(page) && slotLength(page, slot) != 0;
+  }
+
+  @Override
+  int nextLive(ByteBuffer page, int slot) {
+    int numSlots = numSlots(page);
+    for (; slot < numSlots; ++slot) {
+      if (slotLength(page, slot) != 0) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  int countRecords(ByteBuffer page) {
+    int count = 0;
+    int numSlots = numSlots(page);
+    for (int slot = 0; slot < numSlots; ++slot) {
+      if (slotLength(page, slot) != 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  boolean hasRoom(ByteBuffer page) {
+    return numSlots(page) < getMaxSlots() && freeBytes(page) >= maxRecordSize + SLOT_SIZE;
+  }
+
+  @Override
+  int insert(ByteBuffer page, Record record) {
+    byte[] bytes = encode(record);
+    int numSlots = numSlots(page);
+    int slot = 0;
+    while (slot < numSlots && slotLength(page, slot) != 0) {
+      slot++;
+    }
+    if (slot == numSlots) {
+      // Make room for the new slot before the directory grows into it.
+      int directoryEnd = HEADER_SIZE + (numSlots + 1) * SLOT_SIZE;
+      if (freeEnd(page) - directoryEnd < bytes.length) {
+        compact(page);
+      }
+      page.putInt(NUM_SLOTS_OFFSET, numSlots + 1);
+      setSlot(page, slot, 0, 0);
+    }
+    assert(freeBytes(page) >= bytes.length);
+    place(page, slot, bytes);
+    return slot;
+  }
+
+  @Override
+  Record read(ByteBuffer page, int slot, boolean[] columns) {
+    if (!isLive(page, slot)) {
+      return null;
+    }
+    page.position(slotOffset(page, slot));
+    List<Type> types = schema.getFieldTypes();
+    List<DataBox> values = new ArrayList<DataBox>(types.size());
+    for (int i = 0; i < types.size(); ++i) {
+      Type t = types.get(i);
+      boolean projected = columns == null || columns[i];
+      if (t.getTypeId() == TypeId.STRING) {
+        int length = page.getShort() & 0xFFFF;
+        if (projected) {
+          byte[] chars = new byte[length];
+          page.get(chars);
+          values.add(new StringDataBox(new String(chars, StandardCharsets.UTF_8), t.getSizeInBytes()));
+        } else {
+          page.position(page.position() + length);
+          values.add(placeholder(i));
+        }
+      } else {
+        values.add(projected ? fieldCodecs[i].decode(page, page.position()) : placeholder(i));
+        page.position(page.position() + t.getSizeInBytes());
+      }
+    }
+    return new Record(values);
+  }
+
+  @Override
+  int valueOffset(ByteBuffer page, int slot, int column) {
+    int offset = slotOffset(page, slot);
+    List<Type> types = schema.getFieldTypes();
+    for (int i = 0; i < column; ++i) {
+      if (types.get(i).getTypeId() == TypeId.STRING) {
+        offset += Short.BYTES + (page.getShort(offset) & 0xFFFF);
+      } else {
+        offset += types.get(i).getSizeInBytes();
+      }
+    }
+    return offset;
+  }
+
+  @Override
+  String readString(ByteBuffer page, int slot, int column) {
+    byte[] bytes = new byte[schema.getFieldTypes().get(column).getSizeInBytes()];
+    Arrays.fill(bytes, (byte) ' ');
+    int offset = valueOffset(page, slot, column);
+    page.position(offset + Short.BYTES);
+    page.get(bytes, 0, page.getShort(offset) & 0xFFFF);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  DataBox readValue(ByteBuffer page, int slot, int column) {
+    Type t = schema.getFieldTypes().get(column);
+    if (t.getTypeId() == TypeId.STRING) {
+      return new StringDataBox(readString(page, slot, column), t.getSizeInBytes());
+    }
+    return super.readValue(page, slot, column);
+  }
+
+  @Override
+  int compareString(ByteBuffer page, int slot, int column, byte[] value) {
+    int offset = valueOffset(page, slot, column);
+    int width = schema.getFieldTypes().get(column).getSizeInBytes();
+    return compareBytes(page, offset + Short.BYTES, page.getShort(offset) & 0xFFFF, width, value);
+  }
+
+  @Override
+  boolean update(ByteBuffer page, int slot, Record record) {
+    byte[] bytes = encode(record);
+    int offset = slotOffset(page, slot);
+    int length = slotLength(page, slot);
+    if (bytes.length <= length) {
+      page.position(offset);
+      page.put(bytes);
+      setSlot(page, slot, offset, bytes.length);
+      page.putInt(LIVE_BYTES_OFFSET, liveBytes(page) - length + bytes.length);
+      return true;
+    }
+    if (freeBytes(page) + length < bytes.length) {
+      return false;
+    }
+    setSlot(page, slot, 0, 0);
+    page.putInt(LIVE_BYTES_OFFSET, liveBytes(page) - length);
+    place(page, slot, bytes);
+    return true;
+  }
+
+  @Override
+  void delete(ByteBuffer page, int slot) {
+    page.putInt(LIVE_BYTES_OFFSET, liveBytes(page) - slotLength(page, slot));
+    setSlot(page, slot, 0, 0);
+
+    // Drop empty slots from the end of the directory.
+    int numSlots = numSlots(page);
+    while (numSlots > 0 && slotLength(page, numSlots - 1) == 0) {
+      numSlots--;
+    }
+    page.putInt(NUM_SLOTS_OFFSET, numSlots);
+    if (numSlots == 0) {
+      page.putInt(FREE_END_OFFSET, 0);
+    }
+  }
+
+  /**
+   * Stores bytes as the record of the empty slot, compacting the page first
+   * if the free space between the directory and the record area is too small.
+   */
+  private void place(ByteBuffer page, int slot, byte[] bytes) {
+    int directoryEnd = HEADER_SIZE + numSlots(page) * SLOT_SIZE;
+    if (freeEnd(page) - directoryEnd < bytes.length) {
+      compact(page);
+    }
+    int offset = freeEnd(page) - bytes.length;
+    page.position(offset);
+    page.put(bytes);
+    setSlot(page, slot, offset, bytes.length);
+    page.putInt(FREE_END_OFFSET, offset);
+    page.putInt(LIVE_BYTES_OFFSET, liveBytes(page) + bytes.length);
+  }
+
+  /**
+   * Moves the records of the page to the end of the page, next to each other.
+   */
+  private void compact(ByteBuffer page) {
+    byte[] area = new byte[pageSize];
+    int end = pageSize;
+    int numSlots = numSlots(page);
+    for (int slot = 0; slot < numSlots; ++slot) {
+      int length = slotLength(page, slot);
+      if (length != 0) {
+        end -= length;
+        page.position(slotOffset(page, slot));
+        page.get(area, end, length);
+        setSlot(page, slot, end, length);
+      }
+    }
+    page.position(end);
+    page.put(area, end, pageSize - end);
+    page.putInt(FREE_END_OFFSET, end == pageSize ? 0 : end);
+  }
+
+  private byte[] encode(Record record) {
+    ByteBuffer buf = ByteBuffer.allocate(maxRecordSize);
+    List<Type> types = schema.getFieldTypes();
+    List<DataBox> values = record.getValues();
+    for (int i = 0; i < types.size(); ++i) {
+      if (types.get(i).getTypeId() == TypeId.STRING) {
+        String s = values.get(i).getString();
+        int length = s.length();
+        while (length > 0 && s.charAt(length - 1) == ' ') {
+          length--;
+        }
+        byte[] chars = s.substring(0, length).getBytes(StandardCharsets.UTF_8);
+        buf.putShort((short) chars.length);
+        buf.put(chars);
+      } else {
+        fieldCodecs[i].encode(buf, buf.position(), values.get(i));
+        buf.position(buf.position() + fieldCodecs[i].getSize());
+      }
+    }
+    byte[] bytes = new byte[buf.position()];
+    System.arraycopy(buf.array(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+}
@@ -3,19 +3,27 @@ package edu.berkeley.cs186.database.table;
 import java.util.Arrays;
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
 
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.common.ArrayBacktrackingIterator;
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
-import edu.berkeley.cs186.database.common.Bits;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.io.BufferPool;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageAllocator;
 import edu.berkeley.cs186.database.io.PageAllocator.PageIterator;
+import edu.berkeley.cs186.database.io.PageException;
+import edu.berkeley.cs186.database.query.QueryPlan.PredicateOperator;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 /**
@@ -57,11 +65,14 @@ import edu.berkeley.cs186.database.table.stats.TableStats;
  * Now, we discuss how tables serialize their data into files.
  *
  *   1. Each file begins with a header page into which tables serialize their
- *      schema.
- *   2. All remaining pages are data pages. Every data page begins with an
- *      n-byte bitmap followed by m records. The bitmap indicates which records
- *      in the page are valid. The values of n and m are set to maximize the
- *      number of records per page (see computeDataPageNumbers for details).
+ *      schema, followed by a metadata block (see writeMetadata) from which
+ *      the table is reloaded without reading its data pages.
+ *   2. All remaining pages are data pages, laid out in the table's
+ *      PageFormat. In the default BITMAP format, every data page begins with
+ *      an n-byte bitmap followed by m records. The bitmap indicates which
+ *      records in the page are valid. The values of n and m are set to
+ *      maximize the number of records per page (see computeDataPageNumbers
+ *      for details). The SLOTTED format is described in SlottedPageLayout.
  *
  * For example, here is a cartoon of what a table's file would look like if we
  * had 5-byte pages and 1-byte records:
@@ -94,10 +105,59 @@ import edu.berkeley.cs186.database.table.stats.TableStats;
  *
  *  When we add a record to a table, we add it to the very first free slot in
  *  the table. See addRecord for more information.
+ *
+ * # Compaction
+ * A data page whose last record is deleted is returned to the PageAllocator.
+ * Pages that deletes leave sparse but not empty are consolidated by compact,
+ * which moves their records into the free slots of denser pages and then
+ * frees them. Moving a record changes its RecordId, so compact tells its
+ * caller about every move (see Database#compactTable, which fixes up the
+ * entries of the table's indices). compact also rebuilds the Bloom filters
+ * (see addBloomFilter) that deletes have left stale.
  */
 public class Table implements Iterable<Record>, Closeable {
   public static final String FILENAME_PREFIX = "db";
   public static final String FILENAME_EXTENSION = ".table";
+  public static final String BLOOM_FILTER_EXTENSION = ".bloom";
+
+  /**
+   * Told about every record compact moves, right after the move.
+   */
+  public interface MoveListener {
+    void recordMoved(Record record, RecordId from, RecordId to) throws DatabaseException;
+  }
+
+  /**
+   * The formats in which a table can lay out its data pages. The format is
+   * chosen when a table is created and recorded in its file.
+   */
+  public enum PageFormat {
+    // Fixed-length records and a bitmap of the slots in use.
+    BITMAP,
+    // Variable-length records and a slot directory, for tables whose string
+    // values are mostly much shorter than their declared width.
+    SLOTTED,
+    // Fixed-length records stored column by column within each page, for
+    // analytical tables whose scans read only a few of many columns.
+    PAX;
+
+    PageLayout newLayout(Schema schema, int pageSize) {
+      switch (this) {
+        case BITMAP: return new BitmapPageLayout(schema, pageSize);
+        case SLOTTED: return new SlottedPageLayout(schema, pageSize);
+        case PAX: return new PaxPageLayout(schema, pageSize);
+        default: throw new IllegalArgumentException("Unknown page format " + this);
+      }
+    }
+
+    /**
+     * @return the number of records of schema guaranteed to fit on an empty
+     * page of pageSize bytes in this format, or 0 if they do not fit
+     */
+    public int getCapacity(Schema schema, int pageSize) {
+      return newLayout(schema, pageSize).getCapacity();
+    }
+  }
 
   // The name of the database.
   private String name;
@@ -111,11 +171,9 @@ public class Table implements Iterable<Record>, Closeable {
   // The allocator used to persist the database.
   private PageAllocator allocator;
 
-  // The size (in bytes) of the bitmap found at the beginning of each data page.
-  private int bitmapSizeInBytes;
-
-  // The number of records on each data page.
-  private int numRecordsPerPage;
+  // The format of the data pages, and the layout implementing it.
+  private PageFormat format;
+  private PageLayout layout;
 
   // Statistics about the contents of the database.
   private TableStats stats;
@@ -126,23 +184,126 @@ public class Table implements Iterable<Record>, Closeable {
   // The number of records in the table.
   private long numRecords;
 
+  // The number of records on each data page whose records have been counted
+  // since the table was opened, so that it is counted at most once.
+  private Map<Integer, Integer> pageNumRecords = new HashMap<Integer, Integer>();
+
+  // The ranges of the int and float columns of the data pages, or null if
+  // the table was loaded from a file without them and no scan has needed
+  // them since; see zoneMap().
+  private ZoneMap zoneMap;
+
+  // The Bloom filter of each column of the schema, or null if the column has
+  // none; see addBloomFilter. Each filter is persisted in a file of its own
+  // (see bloomFilterFilename), which is rewritten when the table is closed.
+  private BloomFilter[] bloomFilters;
+
+  // The metadata block on the header page, right after the schema, is laid
+  // out as follows:
+  //
+  //   | magic (4) | format (1) | clean (1) | numRecords (8) |
+  //   | numFreePages (4) | numStored (4) | firstOverflowPage (4) |
+  //   | the first numStored free page numbers (4 each) |
+  //   | the zone map, in the rest of the header page (see ZoneMap) |
+  //
+  // The free page numbers that do not fit on the header page are stored on a
+  // chain of overflow pages starting at firstOverflowPage (-1 if there is
+  // none), each laid out as follows:
+  //
+  //   | magic (4) | nextOverflowPage (4) | count (4) | count free page numbers (4 each) |
+  //   | ... | checksum (4) |
+  //
+  // where the checksum, in the last four bytes of the page, is the CRC-32 of
+  // the rest of the page. Overflow pages are only allocated while the table is
+  // closed: they are written by close, and freed again when the table is
+  // loaded. A close that stops after writing them but before the metadata
+  // block leaves them behind in a table that is not clean, so the scan that
+  // rebuilds such a table recognizes them by their magic and checksum (see
+  // isOverflowPage) and frees them rather than reading them as data pages.
+  //
+  // The block is rewritten when the table is closed, with clean set. The first
+  // modification after that clears clean on disk, so a table that was not
+  // closed (e.g. because the process crashed) is rebuilt from its data pages.
+  private static final int METADATA_MAGIC = 0x7AB1E3E7;
+  private static final int METADATA_CLEAN_OFFSET = 4 + 1;
+  private static final int METADATA_HEADER_SIZE = 4 + 1 + 1 + 8 + 4 + 4 + 4;
+  private static final int OVERFLOW_PAGE_MAGIC = 0x7AB1E0F1;
+  private static final int OVERFLOW_PAGE_HEADER_SIZE = 4 + 4 + 4;
+  private static final int OVERFLOW_PAGE_CHECKSUM_SIZE = 4;
+
+  // The number of data pages bulkLoad allocates at a time.
+  private static final int BULK_LOAD_BATCH_SIZE = 64;
+
+  // The offset of the metadata block on the header page, or -1 if the schema
+  // leaves no room for it.
+  private int metadataOffset;
+
+  // Whether the metadata block on disk is marked clean.
+  private boolean metadataClean;
+
   // Constructors //////////////////////////////////////////////////////////////
   /**
    * Construct a brand new table named `name` with schema `schema` persisted in
    * file `filename`.
    */
   public Table(String name, Schema schema, String filename) {
+    this(name, schema, filename, new BufferPool(BufferPool.DEFAULT_NUM_FRAMES));
+  }
+
+  /**
+   * Construct a brand new table named `name` with schema `schema` persisted in
+   * file `filename` whose pages are cached in `bufferPool`.
+   */
+  public Table(String name, Schema schema, String filename, BufferPool bufferPool) {
+    this(name, schema, filename, bufferPool, Page.pageSize);
+  }
+
+  /**
+   * Construct a brand new table named `name` with schema `schema` persisted in
+   * file `filename` with pages of `pageSize` bytes, cached in `bufferPool`.
+   * The page size is recorded in the file, so reloading the table later uses
+   * it as well.
+   */
+  public Table(String name, Schema schema, String filename, BufferPool bufferPool, int pageSize) {
+    this(name, schema, filename, bufferPool, pageSize, PageFormat.BITMAP);
+  }
+
+  /**
+   * Construct a brand new table named `name` with schema `schema` persisted in
+   * file `filename` with pages of `pageSize` bytes in format `format`, cached
+   * in `bufferPool`. The page size and format are recorded in the file.
+   */
+  public Table(String name, Schema schema, String filename, BufferPool bufferPool, int pageSize,
+               PageFormat format) {
     this.name = name;
     this.filename = filename;
     this.schema = schema;
-    this.allocator = new PageAllocator(filename, true);
-    this.bitmapSizeInBytes = computeBitmapSizeInBytes(Page.pageSize, schema);
-    numRecordsPerPage = computeNumRecordsPerPage(Page.pageSize, schema);
-    this.stats = new TableStats(this.schema);
+    this.format = format;
+    this.layout = format.newLayout(schema, pageSize);
+    if (this.layout.getCapacity() == 0) {
+      String msg = String.format("Records of schema %s do not fit on %d-byte pages.", schema, pageSize);
+      throw new IllegalArgumentException(msg);
+    }
+    this.metadataOffset = computeMetadataOffset(pageSize, schema);
+    if (format != PageFormat.BITMAP && this.metadataOffset == -1) {
+      String msg = String.format("Schema %s leaves no room to record the page format.", schema);
+      throw new IllegalArgumentException(msg);
+    }
+    this.allocator = new PageAllocator(filename, true, bufferPool, pageSize);
+    this.stats = new TableStats(this.schema, this.format, pageSize, 0);
     this.freePageNums = new TreeSet<Integer>();
     this.numRecords = 0;
+    this.zoneMap = new ZoneMap(schema);
+    this.bloomFilters = new BloomFilter[schema.getFieldNames().size()];
+    // Filters left behind by an earlier table in the same file describe other
+    // records.
+    for (int i = 0; i < bloomFilters.length; ++i) {
+      BloomFilter.delete(bloomFilterFilename(i));
+    }
 
     writeSchemaToHeaderPage(allocator, schema);
+    this.metadataClean = false;
+    writeMetadata();
   }
 
   /**
@@ -150,38 +311,38 @@ public class Table implements Iterable<Record>, Closeable {
    * table will be read from the header page of the file.
    */
   public Table(String name, String filename) throws DatabaseException {
+    this(name, filename, new BufferPool(BufferPool.DEFAULT_NUM_FRAMES));
+  }
+
+  /**
+   * Load a table named `name` from the file `filename` whose pages are cached
+   * in `bufferPool`.
+   */
+  public Table(String name, String filename, BufferPool bufferPool) throws DatabaseException {
     this.name = name;
     this.filename = filename;
-    this.allocator = new PageAllocator(filename, false);
+    this.allocator = new PageAllocator(filename, false, bufferPool);
     this.schema = readSchemaFromHeaderPage(this.allocator);
-    this.bitmapSizeInBytes = computeBitmapSizeInBytes(Page.pageSize, this.schema);
-    this.numRecordsPerPage = computeNumRecordsPerPage(Page.pageSize, this.schema);
+    int pageSize = this.allocator.getPageSize();
+    this.metadataOffset = computeMetadataOffset(pageSize, this.schema);
+    this.format = readPageFormat();
+    this.layout = this.format.newLayout(this.schema, pageSize);
 
-    // We compute the stats, free pages, and number of records naively. We
-    // iterate through every single data page of the file, and for each data
-    // data page, we use the bitmap to read every single record.
-    this.stats = new TableStats(this.schema);
     this.freePageNums = new TreeSet<Integer>();
     this.numRecords = 0;
 
-    Iterator<Page> iter = this.allocator.iterator();
-    iter.next(); // Skip the header page.
-    while(iter.hasNext()) {
-      Page page = iter.next();
-      byte[] bitmap = getBitMap(page);
-
-      for (short i = 0; i < numRecordsPerPage; ++i) {
-        if (Bits.getBit(bitmap, i) == Bits.Bit.ONE) {
-          Record r = getRecord(new RecordId(page.getPageNum(), i));
-          stats.addRecord(r);
-          numRecords++;
-        }
-      }
-
-      if (numRecordsOnPage(page) != numRecordsPerPage) {
-        freePageNums.add(page.getPageNum());
-      }
+    // If the table was closed cleanly, the number of records, the free pages,
+    // and the zone map are on the header page. Otherwise, we recompute them
+    // from every data page.
+    this.metadataClean = false;
+    if (!readMetadata()) {
+      this.numRecords = 0;
+      this.freePageNums.clear();
+      this.zoneMap = null;
+      scanDataPages(true);
     }
+    loadBloomFilters();
+    this.stats = new TableStats(this.schema, this.format, pageSize, (int) this.numRecords);
   }
 
   // Accessors /////////////////////////////////////////////////////////////////
@@ -201,15 +362,40 @@ public class Table implements Iterable<Record>, Closeable {
     return allocator;
   }
 
+  /**
+   * @return the size of the bitmaps returned by getBitMap
+   */
   public int getBitmapSizeInBytes() {
-    return bitmapSizeInBytes;
+    return layout.getBitmapSizeInBytes();
   }
 
+  public int getPageSize() {
+    return allocator.getPageSize();
+  }
+
+  public PageFormat getPageFormat() {
+    return format;
+  }
+
+  /**
+   * @return the number of slots of each data page. Unless the page format is
+   * BITMAP, fewer records may fit on a page.
+   */
   public int getNumRecordsPerPage() {
-    return numRecordsPerPage;
+    return layout.getMaxSlots();
   }
 
+  /**
+   * @return the statistics of the table. Records of a variable-length page
+   * format usually pack more densely than the guaranteed capacity of a page,
+   * so for those formats the number of records per page of the statistics is
+   * first updated from the records and data pages the table actually has.
+   */
   public TableStats getStats() {
+    int numDataPages = getNumDataPages();
+    if (!layout.isFixedLength() && numRecords > 0 && numDataPages > 0) {
+      stats.setNumRecordsPerPage((int) ((numRecords + numDataPages - 1) / numDataPages));
+    }
     return stats;
   }
 
@@ -222,12 +408,51 @@ public class Table implements Iterable<Record>, Closeable {
     return allocator.getNumPages() - 1;
   }
 
+  /**
+   * @return the number of data pages a scan with predicates reads, i.e. those
+   * that the zone map cannot rule out; see iterator(List, int[])
+   */
+  public int getNumDataPagesToScan(List<ScanPredicate> predicates) {
+    ZoneMap zones = this.zoneMap;
+    if (predicates.isEmpty() || zones == null) {
+      return getNumDataPages();
+    }
+    int numPages = 0;
+    for (int pageNum = allocator.nextAllocatedPage(1); pageNum != -1;
+         pageNum = allocator.nextAllocatedPage(pageNum + 1)) {
+      if (zones.mayMatch(pageNum, predicates)) {
+        numPages++;
+      } else {
+        pageNum = zones.lastPageOfZone(pageNum);
+      }
+    }
+    return numPages;
+  }
+
+  public boolean hasBloomFilter(int column) {
+    return bloomFilters[column] != null;
+  }
+
+  /**
+   * @return false if no record of the table has value in column, which the
+   * Bloom filter of the column rules out without reading any page, and true
+   * if some record might have it or the column has no Bloom filter
+   */
+  public boolean mightContain(int column, DataBox value) {
+    BloomFilter filter = bloomFilters[column];
+    return filter == null || filter.mightContain(value);
+  }
+
   // elsewhere reads the bitmap of tables, so we're forced to make it public.
-  // We should refactor to avoid this.
+  // We should refactor to avoid this. Unless the page format is BITMAP, the
+  // bitmap is built from the page's slot directory.
   public byte[] getBitMap(Page page) {
-    byte[] bytes = new byte[bitmapSizeInBytes];
-    page.getByteBuffer().get(bytes);
-    return bytes;
+    Page pinned = allocator.pinPage(page.getPageNum());
+    try {
+      return layout.readBitmap(pinned.getReadOnlyByteBuffer());
+    } finally {
+      allocator.unpinPage(pinned);
+    }
   }
 
   public static int computeBitmapSizeInBytes(int pageSize, Schema schema) {
@@ -252,12 +477,31 @@ public class Table implements Iterable<Record>, Closeable {
    return this.stats;
   }
 
-  private synchronized void insertRecord(Page page, int entryNum, Record record) {
-    int offset = bitmapSizeInBytes + (entryNum * schema.getSizeInBytes());
-    byte[] bytes = record.toBytes(schema);
-    ByteBuffer buf = page.getByteBuffer();
-    buf.position(offset);
-    buf.put(bytes);
+  /**
+   * Builds a Bloom filter of the values of column from the records of the
+   * table, and keeps it up to date from then on (see mightContain). The
+   * filter is written to its file right away, and again whenever the table is
+   * closed, and is loaded with the table. Adding a filter to a column that
+   * already has one rebuilds it.
+   */
+  public synchronized void addBloomFilter(int column) {
+    if (column < 0 || column >= bloomFilters.length) {
+      throw new IllegalArgumentException("No column " + column + " in schema " + schema);
+    }
+    buildBloomFilters(new int[] {column});
+    bloomFilters[column].write(bloomFilterFilename(column), numRecords);
+  }
+
+  /**
+   * Adds pageNum to freePageNums if the page has room for another record,
+   * and removes it otherwise.
+   */
+  private void updateFreePageNums(int pageNum, ByteBuffer page) {
+    if (layout.hasRoom(page)) {
+      freePageNums.add(pageNum);
+    } else {
+      freePageNums.remove(pageNum);
+    }
   }
 
   /**
@@ -270,37 +514,154 @@ public class Table implements Iterable<Record>, Closeable {
    */
   public synchronized RecordId addRecord(List<DataBox> values) throws DatabaseException {
     Record record = schema.verify(values);
+    markModified();
 
     // Get a free page, allocating a new one if necessary.
     if (freePageNums.isEmpty()) {
       freePageNums.add(allocator.allocPage());
     }
-    Page page = allocator.fetchPage(freePageNums.first());
+    Page page = allocator.pinPage(freePageNums.first());
+    try {
+      // Insert the record into the first free slot.
+      int numRecordsOnPage = numRecordsOnPage(page);
+      ByteBuffer buf = page.getByteBuffer();
+      int entryNum = layout.insert(buf, record);
+
+      // Update the metadata.
+      stats.addRecord(record);
+      addToZoneMap(page.getPageNum(), record);
+      addToBloomFilters(record);
+      pageNumRecords.put(page.getPageNum(), numRecordsOnPage + 1);
+      updateFreePageNums(page.getPageNum(), buf);
+      numRecords++;
+
+      return new RecordId(page.getPageNum(), (short) entryNum);
+    } finally {
+      allocator.unpinPage(page);
+    }
+  }
 
-    // Find the first empty slot in the bitmap.
-    // entry number of the first free slot and store it in entryNum; and (2) we
-    // count the total number of entries on this page.
-    byte[] bitmap = getBitMap(page);
-    int entryNum = 0;
-    for (; entryNum < numRecordsPerPage; ++entryNum) {
-      if (Bits.getBit(bitmap, entryNum) == Bits.Bit.ZERO) {
-        break;
-      }
+  /**
+   * addRecords adds many records to this table and returns their record ids
+   * in order. Records fill the free slots of existing pages first, just like
+   * addRecord. All the new pages the remaining records need are allocated up
+   * front with a single call to PageAllocator#allocPages, so that the
+   * allocator's metadata is flushed once for the whole batch rather than once
+   * per page. (Unless the page format is BITMAP, the number of pages needed is
+   * not known in advance, and pages are allocated one at a time.) If any
+   * record does not match the schema, no record is added.
+   */
+  public synchronized List<RecordId> addRecords(List<List<DataBox>> values) throws DatabaseException {
+    for (List<DataBox> v : values) {
+      schema.verify(v);
     }
-    assert(entryNum < numRecordsPerPage);
+    markModified();
 
-    // Insert the record and update the bitmap.
-    insertRecord(page, entryNum, record);
-    Bits.setBit(page.getByteBuffer(), entryNum, Bits.Bit.ONE);
+    int numRecordsPerPage = layout.getCapacity();
+    long numFreeSlots = 0;
+    for (int pageNum : freePageNums) {
+      numFreeSlots += numRecordsPerPage - numRecordsOnPage(allocator.fetchPage(pageNum));
+    }
+    long numMissing = values.size() - numFreeSlots;
+    if (layout.isFixedLength() && numMissing > 0) {
+      int numNewPages = (int) ((numMissing + numRecordsPerPage - 1) / numRecordsPerPage);
+      for (int pageNum : allocator.allocPages(numNewPages)) {
+        freePageNums.add(pageNum);
+      }
+    }
 
-    // Update the metadata.
-    stats.addRecord(record);
-    if (numRecordsOnPage(page) == numRecordsPerPage) {
-      freePageNums.pollFirst();
+    List<RecordId> rids = new ArrayList<RecordId>(values.size());
+    for (List<DataBox> v : values) {
+      rids.add(addRecord(v));
     }
-    numRecords++;
+    return rids;
+  }
+
+  /**
+   * Equivalent to bulkLoad(values, (record, rid) -> {}).
+   */
+  public long bulkLoad(Iterator<List<DataBox>> values) throws DatabaseException {
+    return bulkLoad(values, (record, rid) -> {});
+  }
 
-    return new RecordId(page.getPageNum(), (short) entryNum);
+  /**
+   * bulkLoad appends the records of values to new data pages, which are
+   * filled one after the other, and returns the number of records loaded.
+   * Unlike addRecord, the free slots of existing pages are not reused: each
+   * new page is assembled in memory and written with a single call to
+   * Page#writeBytes, and pages are allocated in batches
+   * with PageAllocator#allocPages. stats, freePageNums, and numRecords are
+   * updated as records are loaded.
+   *
+   * onAdd is called with every record and its record id once the page
+   * holding it has been written, e.g. to collect index entries that are
+   * inserted after the load.
+   *
+   * If a record does not match the schema, a DatabaseException is thrown and
+   * the records before it remain in the table.
+   */
+  public synchronized long bulkLoad(Iterator<List<DataBox>> values,
+                                    BiConsumer<Record, RecordId> onAdd) throws DatabaseException {
+    markModified();
+
+    int pageSize = allocator.getPageSize();
+    ByteBuffer image = ByteBuffer.allocate(pageSize);
+    Record[] pageRecords = new Record[layout.getMaxSlots()];
+    int[] pageSlots = new int[layout.getMaxSlots()];
+    int[] reserved = new int[0];
+    int numReserved = 0;
+    long numLoaded = 0;
+    try {
+      while (values.hasNext()) {
+        // Assemble the records of the next page.
+        Arrays.fill(image.array(), (byte) 0);
+        int n = 0;
+        DatabaseException error = null;
+        while (values.hasNext() && layout.hasRoom(image)) {
+          try {
+            pageRecords[n] = schema.verify(values.next());
+          } catch (DatabaseException e) {
+            error = e;
+            break;
+          }
+          pageSlots[n] = layout.insert(image, pageRecords[n]);
+          n++;
+        }
+
+        if (n > 0) {
+          if (numReserved == reserved.length) {
+            reserved = allocator.allocPages(BULK_LOAD_BATCH_SIZE);
+            numReserved = 0;
+          }
+          int pageNum = reserved[numReserved++];
+          Page page = allocator.fetchPage(pageNum);
+          page.writeBytes(0, pageSize, image.array());
+
+          pageNumRecords.put(pageNum, n);
+          if (layout.hasRoom(image)) {
+            freePageNums.add(pageNum);
+          }
+          for (int i = 0; i < n; ++i) {
+            stats.addRecord(pageRecords[i]);
+            addToZoneMap(pageNum, pageRecords[i]);
+            addToBloomFilters(pageRecords[i]);
+            onAdd.accept(pageRecords[i], new RecordId(pageNum, (short) pageSlots[i]));
+            pageRecords[i] = null;
+          }
+          numRecords += n;
+          numLoaded += n;
+        }
+
+        if (error != null) {
+          throw error;
+        }
+      }
+    } finally {
+      for (int i = numReserved; i < reserved.length; ++i) {
+        allocator.freePage(reserved[i]);
+      }
+    }
+    return numLoaded;
   }
 
   /**
@@ -308,32 +669,66 @@ public class Table implements Iterable<Record>, Closeable {
    * exists.
    */
   public synchronized Record getRecord(RecordId rid) throws DatabaseException {
+    return getRecord(rid, (boolean[]) null);
+  }
+
+  /**
+   * Retrieves a record from the table projected onto columns, throwing an
+   * exception if no such record exists. The record has every column of the
+   * schema, but only the given columns are read from the page; each other
+   * column holds a placeholder of its type (false, 0, or the empty string).
+   */
+  public Record getRecord(RecordId rid, int[] columns) throws DatabaseException {
+    return getRecord(rid, columnMask(columns));
+  }
+
+  synchronized Record getRecord(RecordId rid, boolean[] columns) throws DatabaseException {
     validateRecordId(rid);
-    Page page = allocator.fetchPage(rid.getPageNum());
-    byte[] bitmap = getBitMap(page);
-    if (Bits.getBit(bitmap, rid.getEntryNum()) == Bits.Bit.ZERO) {
-      String msg = String.format("Record %s does not exist.", rid);
-      throw new DatabaseException(msg);
+    Page page = allocator.pinPage(rid.getPageNum());
+    try {
+      Record record = layout.read(page.getReadOnlyByteBuffer(), rid.getEntryNum(), columns);
+      if (record == null) {
+        String msg = String.format("Record %s does not exist.", rid);
+        throw new DatabaseException(msg);
+      }
+      return record;
+    } finally {
+      allocator.unpinPage(page);
     }
-
-    int offset = bitmapSizeInBytes + (rid.getEntryNum() * schema.getSizeInBytes());
-    ByteBuffer buf = page.getByteBuffer();
-    buf.position(offset);
-    return Record.fromBytes(buf, schema);
   }
 
   /**
    * Overwrites an existing record with new values and returns the existing
    * record. stats is updated accordingly. An exception is thrown if rid does
-   * not correspond to an existing record in the table.
+   * not correspond to an existing record in the table, or if the page format
+   * stores records of varying length and the new record no longer fits on the
+   * page of rid.
    */
   public synchronized Record updateRecord(List<DataBox> values, RecordId rid) throws DatabaseException {
     validateRecordId(rid);
     Record newRecord = schema.verify(values);
     Record oldRecord = getRecord(rid);
 
-    Page page = allocator.fetchPage(rid.getPageNum());
-    insertRecord(page, rid.getEntryNum(), newRecord);
+    Page page = allocator.pinPage(rid.getPageNum());
+    try {
+      markModified();
+      ByteBuffer buf = page.getByteBuffer();
+      if (!layout.update(buf, rid.getEntryNum(), newRecord)) {
+        String msg = String.format("Record %s does not fit on its page after the update.", rid);
+        throw new DatabaseException(msg);
+      }
+      updateFreePageNums(page.getPageNum(), buf);
+      addToZoneMap(page.getPageNum(), newRecord);
+    } finally {
+      allocator.unpinPage(page);
+    }
+    for (int i = 0; i < bloomFilters.length; ++i) {
+      BloomFilter filter = bloomFilters[i];
+      if (filter != null && !oldRecord.getValues().get(i).equals(newRecord.getValues().get(i))) {
+        filter.remove();
+        filter.add(newRecord.getValues().get(i));
+      }
+    }
     this.stats.removeRecord(oldRecord);
     this.stats.addRecord(newRecord);
     return oldRecord;
@@ -341,48 +736,627 @@ public class Table implements Iterable<Record>, Closeable {
 
   /**
    * Deletes and returns the record specified by rid from the table and updates
-   * stats, freePageNums, and numRecords as necessary. An exception is thrown
-   * if rid does not correspond to an existing record in the table.
+   * stats, freePageNums, and numRecords as necessary. If the page of rid is
+   * left empty, it is freed, unless someone else has it pinned. An exception is thrown if rid does not
+   * correspond to an existing record in the table.
    */
   public synchronized Record deleteRecord(RecordId rid) throws DatabaseException {
     validateRecordId(rid);
-    Page page = allocator.fetchPage(rid.getPageNum());
-    Record record = getRecord(rid);
-    Bits.setBit(page.getByteBuffer(), rid.getEntryNum(), Bits.Bit.ZERO);
+    Page page = allocator.pinPage(rid.getPageNum());
+    Record record;
+    int numRecordsOnPage;
+    try {
+      record = getRecord(rid);
+      markModified();
+      numRecordsOnPage = numRecordsOnPage(page) - 1;
+      ByteBuffer buf = page.getByteBuffer();
+      layout.delete(buf, rid.getEntryNum());
+      pageNumRecords.put(page.getPageNum(), numRecordsOnPage);
+
+      stats.removeRecord(record);
+      for (BloomFilter filter : bloomFilters) {
+        if (filter != null) {
+          filter.remove();
+        }
+      }
+      updateFreePageNums(page.getPageNum(), buf);
+      numRecords--;
+    } finally {
+      allocator.unpinPage(page);
+    }
+    if (numRecordsOnPage == 0) {
+      freeDataPage(page);
+    }
+    return record;
+  }
 
-    stats.removeRecord(record);
-    if(numRecordsOnPage(page) == numRecordsPerPage - 1) {
-      freePageNums.add(page.getPageNum());
+  /**
+   * Moves the records of the sparsest data pages into the free slots of the
+   * densest ones that still have room, and frees the pages this empties,
+   * until maxPages pages have been freed or no more pages can be emptied.
+   * Empty data pages (e.g. those that were pinned when their last record was
+   * deleted) are freed first. Pages that someone else has pinned are left
+   * alone.
+   *
+   * Every move is complete, and the table consistent, before listener is told
+   * about it. If listener throws, compaction stops there. The records that
+   * moved keep their values, so stats and numRecords do not change. A scan of
+   * the table that runs at the same time may return a moved record twice or
+   * not at all, so scans should not overlap with compaction.
+   *
+   * Calling compact with a small maxPages over and over lets compaction be
+   * spread out over time; see Database#startCompactor.
+   *
+   * Bloom filters that deletes have left stale, or that inserts have
+   * outgrown, are rebuilt from the records of the table first.
+   *
+   * @return the number of pages freed
+   */
+  public synchronized int compact(int maxPages, MoveListener listener) throws DatabaseException {
+    if (maxPages <= 0) {
+      throw new IllegalArgumentException("The number of pages to free must be positive.");
+    }
+    int numStale = 0;
+    int[] stale = new int[bloomFilters.length];
+    for (int i = 0; i < bloomFilters.length; ++i) {
+      if (bloomFilters[i] != null && bloomFilters[i].needsRebuild()) {
+        stale[numStale++] = i;
+      }
+    }
+    if (numStale > 0) {
+      buildBloomFilters(Arrays.copyOf(stale, numStale));
     }
-    numRecords--;
 
-    return record;
+    // Count the records of every page with room once, so that the pages can
+    // be sorted on pageNumRecords below. Only the empty ones are fetched.
+    int numFreed = 0;
+    for (int pageNum : new ArrayList<Integer>(freePageNums)) {
+      if (numRecordsOnPage(pageNum) == 0 && numFreed < maxPages &&
+          freeDataPage(allocator.fetchPage(pageNum))) {
+        numFreed++;
+      }
+    }
+
+    // The free slots of the pages with room, if every page has as many slots.
+    long numFreeSlots = 0;
+    if (layout.isFixedLength()) {
+      for (int pageNum : freePageNums) {
+        numFreeSlots += layout.getCapacity() - pageNumRecords.get(pageNum);
+      }
+    }
+
+    while (numFreed < maxPages) {
+      // The pages with room, densest first, ties broken towards the front of
+      // the file; the last unpinned one is the page to empty.
+      List<Integer> pageNums = new ArrayList<Integer>(freePageNums);
+      Collections.sort(pageNums, (a, b) -> {
+        int byCount = Integer.compare(pageNumRecords.get(b), pageNumRecords.get(a));
+        return byCount != 0 ? byCount : Integer.compare(a, b);
+      });
+      int source = pageNums.size() - 1;
+      while (source >= 0 && allocator.isPinned(pageNums.get(source))) {
+        source--;
+      }
+      if (source <= 0) {
+        break;
+      }
+      List<Integer> targets = pageNums.subList(0, source);
+      int numToMove = pageNumRecords.get(pageNums.get(source));
+      if (layout.isFixedLength()) {
+        // Only start on the page if it can be emptied: the targets are every
+        // page with room except the source and the pinned pages after it.
+        long numTargetFreeSlots = numFreeSlots;
+        for (int i = source; i < pageNums.size(); ++i) {
+          numTargetFreeSlots -= layout.getCapacity() - pageNumRecords.get(pageNums.get(i));
+        }
+        if (numTargetFreeSlots < numToMove) {
+          break;
+        }
+      }
+      markModified();
+      Page sourcePage = allocator.fetchPage(pageNums.get(source));
+      if (!moveRecords(sourcePage, targets, listener)) {
+        break;
+      }
+      if (freeDataPage(sourcePage)) {
+        numFreed++;
+        // The moved records took numToMove free slots of the targets, and the
+        // source took its slots with it.
+        numFreeSlots -= layout.getCapacity();
+      }
+    }
+    return numFreed;
   }
 
-  public void close() {
+  /**
+   * Moves the records of source into targets, filling each target in turn.
+   *
+   * @return whether source was emptied
+   */
+  private boolean moveRecords(Page source, List<Integer> targets, MoveListener listener)
+      throws DatabaseException {
+    Page sourcePage = allocator.pinPage(source.getPageNum());
+    try {
+      ByteBuffer sourceBuf = sourcePage.getByteBuffer();
+      int[] slots = new int[numRecordsOnPage(sourcePage)];
+      int numSlots = 0;
+      for (int slot = layout.nextLive(sourceBuf, 0); slot != -1; slot = layout.nextLive(sourceBuf, slot + 1)) {
+        slots[numSlots++] = slot;
+      }
+
+      int slotIndex = 0;
+      for (int i = 0; i < targets.size() && slotIndex < numSlots; ++i) {
+        Page targetPage = allocator.pinPage(targets.get(i));
+        try {
+          ByteBuffer targetBuf = targetPage.getByteBuffer();
+          while (slotIndex < numSlots && layout.hasRoom(targetBuf)) {
+            int slot = slots[slotIndex++];
+            Record record = layout.read(sourceBuf, slot);
+            int newSlot = layout.insert(targetBuf, record);
+            layout.delete(sourceBuf, slot);
+            addToZoneMap(targetPage.getPageNum(), record);
+            pageNumRecords.put(targetPage.getPageNum(), numRecordsOnPage(targetPage) + 1);
+            pageNumRecords.put(sourcePage.getPageNum(), numRecordsOnPage(sourcePage) - 1);
+            updateFreePageNums(targetPage.getPageNum(), targetBuf);
+
+            listener.recordMoved(record,
+                                 new RecordId(sourcePage.getPageNum(), (short) slot),
+                                 new RecordId(targetPage.getPageNum(), (short) newSlot));
+          }
+        } finally {
+          allocator.unpinPage(targetPage);
+        }
+      }
+      updateFreePageNums(sourcePage.getPageNum(), sourceBuf);
+      return slotIndex == numSlots;
+    } finally {
+      allocator.unpinPage(sourcePage);
+    }
+  }
+
+  /**
+   * Returns the data page, which must hold no records, to the allocator,
+   * unless it is pinned.
+   *
+   * @return whether the page was freed
+   */
+  private boolean freeDataPage(Page page) {
+    if (page.isPinned()) {
+      return false;
+    }
+    markModified();
+    freePageNums.remove(page.getPageNum());
+    pageNumRecords.remove(page.getPageNum());
+    if (zoneMap != null) {
+      zoneMap.clear(page.getPageNum());
+    }
+    return allocator.freePage(page);
+  }
+
+  private void addToZoneMap(int pageNum, Record record) {
+    if (zoneMap != null) {
+      zoneMap.add(pageNum, record);
+    }
+  }
+
+  private void addToBloomFilters(Record record) {
+    for (int i = 0; i < bloomFilters.length; ++i) {
+      if (bloomFilters[i] != null) {
+        bloomFilters[i].add(record.getValues().get(i));
+      }
+    }
+  }
+
+  /**
+   * Replaces the Bloom filters of columns with new ones, sized for twice the
+   * records of the table, built from the data pages.
+   */
+  private void buildBloomFilters(int[] columns) {
+    BloomFilter[] filters = new BloomFilter[columns.length];
+    boolean[] mask = new boolean[bloomFilters.length];
+    for (int i = 0; i < columns.length; ++i) {
+      filters[i] = new BloomFilter(schema.getFieldTypes().get(columns[i]), 2 * numRecords);
+      mask[columns[i]] = true;
+    }
+    Iterator<Page> iter = this.allocator.iterator();
+    iter.next(); // Skip the header page.
+    while (iter.hasNext()) {
+      Page page = allocator.pinPage(iter.next().getPageNum());
+      try {
+        ByteBuffer buf = page.getReadOnlyByteBuffer();
+        if (isOverflowPage(buf)) {
+          continue;
+        }
+        for (int slot = layout.nextLive(buf, 0); slot != -1; slot = layout.nextLive(buf, slot + 1)) {
+          List<DataBox> values = layout.read(buf, slot, mask).getValues();
+          for (int i = 0; i < columns.length; ++i) {
+            filters[i].add(values.get(columns[i]));
+          }
+        }
+      } finally {
+        allocator.unpinPage(page);
+      }
+    }
+    for (int i = 0; i < columns.length; ++i) {
+      bloomFilters[columns[i]] = filters[i];
+    }
+  }
+
+  /**
+   * Loads the Bloom filters whose files exist. A filter that was not written
+   * when the table was last closed cleanly is rebuilt from the data pages.
+   */
+  private void loadBloomFilters() {
+    this.bloomFilters = new BloomFilter[schema.getFieldNames().size()];
+    int numStale = 0;
+    int[] stale = new int[bloomFilters.length];
+    for (int i = 0; i < bloomFilters.length; ++i) {
+      String filterFilename = bloomFilterFilename(i);
+      if (!BloomFilter.exists(filterFilename)) {
+        continue;
+      }
+      if (metadataClean) {
+        bloomFilters[i] = BloomFilter.read(filterFilename, schema.getFieldTypes().get(i), numRecords);
+      }
+      if (bloomFilters[i] == null) {
+        stale[numStale++] = i;
+      }
+    }
+    if (numStale > 0) {
+      buildBloomFilters(Arrays.copyOf(stale, numStale));
+    }
+  }
+
+  /**
+   * @return the file of the Bloom filter of column: the name of the table's
+   * file without its extension, a comma, the name of the column, and
+   * BLOOM_FILTER_EXTENSION, like the files of the indices of a Database
+   */
+  private String bloomFilterFilename(int column) {
+    String base = filename.endsWith(FILENAME_EXTENSION)
+                  ? filename.substring(0, filename.length() - FILENAME_EXTENSION.length())
+                  : filename;
+    return base + "," + schema.getFieldNames().get(column) + BLOOM_FILTER_EXTENSION;
+  }
+
+  /**
+   * @return the zone map, which is first built from the data pages if the
+   * table was loaded without one
+   */
+  private synchronized ZoneMap zoneMap() {
+    if (zoneMap == null) {
+      scanDataPages(false);
+    }
+    return zoneMap;
+  }
+
+  /**
+   * Closes the table. If the table was modified since it was opened, every
+   * page is written back and forced first, and only then is the metadata
+   * block rewritten and marked clean, so that a clean block never describes
+   * data pages that did not reach the disk. The Bloom filters that changed
+   * are written before the metadata block, for the same reason.
+   */
+  public synchronized void close() {
+    for (int i = 0; i < bloomFilters.length; ++i) {
+      if (bloomFilters[i] != null && bloomFilters[i].isDirty()) {
+        bloomFilters[i].write(bloomFilterFilename(i), numRecords);
+      }
+    }
+    if (!metadataClean && metadataOffset != -1) {
+      allocator.sync();
+      writeMetadata();
+    }
     allocator.close();
   }
 
   // Helpers ///////////////////////////////////////////////////////////////////
   private static Schema readSchemaFromHeaderPage(PageAllocator allocator) {
-    Page headerPage = allocator.fetchPage(0);
-    ByteBuffer buf = headerPage.getByteBuffer();
-    return Schema.fromBytes(buf);
+    return Schema.fromBytes(readHeaderPage(allocator));
+  }
+
+  /**
+   * @return a copy of the bytes of the header page, which is pinned while it
+   * is copied so that its buffer is not recycled by a concurrent eviction
+   */
+  private static ByteBuffer readHeaderPage(PageAllocator allocator) {
+    Page headerPage = allocator.pinPage(0);
+    try {
+      ByteBuffer copy = ByteBuffer.allocate(allocator.getPageSize());
+      copy.put(headerPage.getReadOnlyByteBuffer());
+      copy.clear();
+      return copy;
+    } finally {
+      allocator.unpinPage(headerPage);
+    }
   }
 
   private static void writeSchemaToHeaderPage(PageAllocator allocator, Schema schema) {
     Page headerPage = allocator.fetchPage(allocator.allocPage());
     assert(0 == headerPage.getPageNum());
-    ByteBuffer buf = headerPage.getByteBuffer();
-    buf.put(schema.toBytes());
+    byte[] bytes = schema.toBytes();
+    headerPage.writeBytes(0, bytes.length, bytes);
+  }
+
+  private static int computeMetadataOffset(int pageSize, Schema schema) {
+    int offset = schema.toBytes().length;
+    return offset + METADATA_HEADER_SIZE <= pageSize ? offset : -1;
+  }
+
+  /**
+   * Writes numRecords, freePageNums, and the zone map to the metadata block,
+   * marked clean. If not every free page number fits on the header page, only
+   * the first ones are stored there and the rest are written to a chain of
+   * overflow pages, which reaches the disk before the block does. The zone map
+   * takes the space left after the free page numbers, merging its zones as
+   * needed to fit.
+   */
+  private void writeMetadata() {
+    if (metadataOffset == -1) {
+      return;
+    }
+    int pageSize = allocator.getPageSize();
+    int capacity = (pageSize - metadataOffset - METADATA_HEADER_SIZE) / Integer.BYTES;
+    int numStored = Math.min(capacity, freePageNums.size());
+    Iterator<Integer> iter = freePageNums.iterator();
+    for (int i = 0; i < numStored; ++i) {
+      iter.next();
+    }
+    int firstOverflowPage = -1;
+    if (iter.hasNext()) {
+      firstOverflowPage = writeOverflowPages(iter);
+      allocator.sync();
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate(pageSize - metadataOffset);
+    buf.putInt(METADATA_MAGIC);
+    buf.put((byte) format.ordinal());
+    buf.put((byte) 1);
+    buf.putLong(numRecords);
+    buf.putInt(freePageNums.size());
+    buf.putInt(numStored);
+    buf.putInt(firstOverflowPage);
+    iter = freePageNums.iterator();
+    for (int i = 0; i < numStored; ++i) {
+      buf.putInt(iter.next());
+    }
+    if (zoneMap == null || !zoneMap.write(buf, buf.remaining())) {
+      if (buf.remaining() >= Integer.BYTES) {
+        buf.putInt(0);
+      }
+    }
+    allocator.fetchPage(0).writeBytes(metadataOffset, buf.position(), buf.array());
+    metadataClean = true;
+  }
+
+  /**
+   * Writes the free page numbers left in iter to newly allocated overflow
+   * pages, chained in the order they are written.
+   *
+   * @return the page number of the first overflow page
+   */
+  private int writeOverflowPages(Iterator<Integer> iter) {
+    int pageSize = allocator.getPageSize();
+    int capacity = (pageSize - OVERFLOW_PAGE_HEADER_SIZE - OVERFLOW_PAGE_CHECKSUM_SIZE) / Integer.BYTES;
+    List<Page> overflowPages = new ArrayList<Page>();
+    List<ByteBuffer> contents = new ArrayList<ByteBuffer>();
+    while (iter.hasNext()) {
+      overflowPages.add(allocator.fetchPage(allocator.allocPage()));
+      ByteBuffer buf = ByteBuffer.allocate(pageSize);
+      buf.putInt(OVERFLOW_PAGE_MAGIC);
+      buf.putInt(-1);
+      buf.putInt(0);
+      int count = 0;
+      for (; count < capacity && iter.hasNext(); ++count) {
+        buf.putInt(iter.next());
+      }
+      buf.putInt(8, count);
+      contents.add(buf);
+    }
+    for (int i = 0; i < overflowPages.size(); ++i) {
+      ByteBuffer buf = contents.get(i);
+      if (i + 1 < overflowPages.size()) {
+        buf.putInt(4, overflowPages.get(i + 1).getPageNum());
+      }
+      buf.putInt(pageSize - OVERFLOW_PAGE_CHECKSUM_SIZE, overflowPageChecksum(buf));
+      overflowPages.get(i).writeBytes(0, pageSize, buf.array());
+    }
+    return overflowPages.get(0).getPageNum();
+  }
+
+  /**
+   * @return the CRC-32 of the bytes of the overflow page buf before its
+   * checksum
+   */
+  private static int overflowPageChecksum(ByteBuffer buf) {
+    CRC32 crc = new CRC32();
+    ByteBuffer bytes = buf.duplicate();
+    bytes.position(0);
+    bytes.limit(buf.capacity() - OVERFLOW_PAGE_CHECKSUM_SIZE);
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * @return whether the page buf is an overflow page written by
+   * writeOverflowPages, i.e. starts with OVERFLOW_PAGE_MAGIC and ends with the
+   * checksum of its bytes. A data page passes both checks only by a chance of
+   * about one in 2^64.
+   */
+  private static boolean isOverflowPage(ByteBuffer buf) {
+    return buf.getInt(0) == OVERFLOW_PAGE_MAGIC &&
+           buf.getInt(buf.capacity() - OVERFLOW_PAGE_CHECKSUM_SIZE) == overflowPageChecksum(buf);
+  }
+
+  /**
+   * Adds the free page numbers on the chain of overflow pages starting at
+   * pageNum to freePageNums, and frees the overflow pages, last first. If the
+   * table was loaded once before but stopped while freeing them, the chain
+   * ends early at a page that is no longer allocated.
+   *
+   * @return whether the chain held all numExpected page numbers
+   */
+  private boolean readOverflowPages(int pageNum, int numExpected) {
+    List<Integer> overflowPageNums = new ArrayList<Integer>();
+    int numRead = 0;
+    while (pageNum != -1 && !overflowPageNums.contains(pageNum)) {
+      ByteBuffer buf;
+      try {
+        Page page = allocator.pinPage(pageNum);
+        try {
+          buf = ByteBuffer.allocate(allocator.getPageSize());
+          buf.put(page.getReadOnlyByteBuffer());
+          buf.clear();
+        } finally {
+          allocator.unpinPage(page);
+        }
+      } catch (PageException e) {
+        break;
+      }
+      if (!isOverflowPage(buf)) {
+        break;
+      }
+      buf.getInt(); // The magic.
+      overflowPageNums.add(pageNum);
+      pageNum = buf.getInt();
+      int count = buf.getInt();
+      for (int i = 0; i < count; ++i) {
+        freePageNums.add(buf.getInt());
+      }
+      numRead += count;
+    }
+    // The block must stop pointing at the chain once its pages may be
+    // allocated again, so it is marked modified after they are freed.
+    for (int i = overflowPageNums.size() - 1; i >= 0; --i) {
+      allocator.freePage(overflowPageNums.get(i));
+    }
+    if (!overflowPageNums.isEmpty()) {
+      markModified();
+    }
+    return numRead == numExpected;
   }
 
   /**
-   * Recall that every data page contains an m-byte bitmap followed by n
-   * records. The following three functions computes m and n such that n is
-   * maximized. To simplify things, we round n down to the nearest multiple of
-   * 8 if necessary. m and n are stored in bitmapSizeInBytes and
-   * numRecordsPerPage respectively.
+   * Loads numRecords, freePageNums, and the zone map from the metadata block,
+   * and frees the overflow pages of freePageNums, if any.
+   *
+   * @return false if there is no clean metadata block, e.g. because the table
+   * was not closed or was written before tables kept one
+   */
+  private boolean readMetadata() {
+    if (metadataOffset == -1) {
+      return false;
+    }
+    ByteBuffer buf = readHeaderPage(allocator);
+    buf.position(metadataOffset);
+    if (buf.getInt() != METADATA_MAGIC) {
+      return false;
+    }
+    buf.get(); // The page format; see readPageFormat.
+    if (buf.get() != 1) {
+      return false;
+    }
+    numRecords = buf.getLong();
+    int numFreePages = buf.getInt();
+    int numStored = buf.getInt();
+    int firstOverflowPage = buf.getInt();
+    for (int i = 0; i < numStored; ++i) {
+      freePageNums.add(buf.getInt());
+    }
+    zoneMap = ZoneMap.read(schema, buf);
+    metadataClean = true;
+    if (numStored < numFreePages &&
+        !readOverflowPages(firstOverflowPage, numFreePages - numStored)) {
+      // The chain is incomplete, so the free pages are found from the data
+      // pages, which no longer include any overflow page.
+      freePageNums.clear();
+      scanDataPages(false);
+    }
+    return true;
+  }
+
+  /**
+   * @return the page format in the metadata block, or BITMAP if the table was
+   * written before tables kept one
+   */
+  private PageFormat readPageFormat() throws DatabaseException {
+    if (metadataOffset == -1) {
+      return PageFormat.BITMAP;
+    }
+    ByteBuffer buf = readHeaderPage(allocator);
+    buf.position(metadataOffset);
+    if (buf.getInt() != METADATA_MAGIC) {
+      return PageFormat.BITMAP;
+    }
+    int ordinal = buf.get();
+    if (ordinal < 0 || ordinal >= PageFormat.values().length) {
+      throw new DatabaseException("Unknown page format " + ordinal + " in " + filename);
+    }
+    return PageFormat.values()[ordinal];
+  }
+
+  /**
+   * Recomputes freePageNums, numRecords if countRecords is true, and the zone
+   * map if it is null, from the data pages, and frees any overflow pages.
+   */
+  private void scanDataPages(boolean countRecords) {
+    boolean buildZoneMap = zoneMap == null;
+    ZoneMap zones = new ZoneMap(schema);
+    List<Integer> overflowPageNums = new ArrayList<>();
+    Iterator<Page> iter = this.allocator.iterator();
+    iter.next(); // Skip the header page.
+    while (iter.hasNext()) {
+      Page page = allocator.pinPage(iter.next().getPageNum());
+      try {
+        ByteBuffer buf = page.getReadOnlyByteBuffer();
+        if (isOverflowPage(buf)) {
+          overflowPageNums.add(page.getPageNum());
+          continue;
+        }
+        int numRecordsOnPage = numRecordsOnPage(page);
+        if (countRecords) {
+          numRecords += numRecordsOnPage;
+        }
+        if (layout.hasRoom(buf)) {
+          freePageNums.add(page.getPageNum());
+        }
+        if (buildZoneMap) {
+          for (int slot = layout.nextLive(buf, 0); slot != -1; slot = layout.nextLive(buf, slot + 1)) {
+            zones.add(page.getPageNum(), layout.read(buf, slot));
+          }
+        }
+      } finally {
+        allocator.unpinPage(page);
+      }
+    }
+    // Overflow pages left by a close that did not finish hold no records.
+    for (int pageNum : overflowPageNums) {
+      allocator.freePage(pageNum);
+    }
+    if (buildZoneMap) {
+      zoneMap = zones;
+    }
+  }
+
+  /**
+   * Marks the metadata block on disk as not clean before the table is first
+   * modified after being opened.
+   */
+  private void markModified() {
+    if (metadataClean) {
+      Page headerPage = allocator.fetchPage(0);
+      headerPage.writeByte(metadataOffset + METADATA_CLEAN_OFFSET, (byte) 0);
+      headerPage.flush();
+      metadataClean = false;
+    }
+  }
+
+  /**
+   * Recall that every data page in the BITMAP format contains an m-byte
+   * bitmap followed by n records. The following three functions computes m
+   * and n such that n is maximized. To simplify things, we round n down to the
+   * nearest multiple of 8 if necessary. BitmapPageLayout keeps m and n in
+   * bitmapSizeInBytes and numRecordsPerPage respectively.
    *
    * Some examples:
    *
@@ -404,14 +1378,22 @@ public class Table implements Iterable<Record>, Closeable {
   }
 
   private int numRecordsOnPage(Page page) {
-    byte[] bitmap = getBitMap(page);
-    int numRecords = 0;
-    for (int i = 0; i < numRecordsPerPage; ++i) {
-      if (Bits.getBit(bitmap, i) == Bits.Bit.ONE) {
-        numRecords++;
-      }
+    return numRecordsOnPage(page.getPageNum());
+  }
+
+  private int numRecordsOnPage(int pageNum) {
+    Integer cached = pageNumRecords.get(pageNum);
+    if (cached != null) {
+      return cached;
+    }
+    Page pinned = allocator.pinPage(pageNum);
+    try {
+      int numRecords = layout.countRecords(pinned.getReadOnlyByteBuffer());
+      pageNumRecords.put(pageNum, numRecords);
+      return numRecords;
+    } finally {
+      allocator.unpinPage(pinned);
     }
-    return numRecords;
   }
 
   private void validateRecordId(RecordId rid) throws DatabaseException {
@@ -427,10 +1409,10 @@ public class Table implements Iterable<Record>, Closeable {
       throw new DatabaseException(msg);
     }
 
-    if (e >= numRecordsPerPage) {
+    if (e >= layout.getMaxSlots()) {
       String msg = String.format(
           "There are only %d records per page, but record %d was requested.",
-          numRecordsPerPage, e);
+          layout.getMaxSlots(), e);
       throw new DatabaseException(msg);
     }
   }
@@ -444,6 +1426,117 @@ public class Table implements Iterable<Record>, Closeable {
       return new RecordIterator(this, ridIterator());
   }
 
+  /**
+   * @return an iterator over the records of the table projected onto columns;
+   * see getRecord(RecordId, int[])
+   */
+  public RecordIterator iterator(int[] columns) {
+      return new RecordIterator(this, ridIterator(), columnMask(columns));
+  }
+
+  /**
+   * Returns an iterator over the records of the table that satisfy every one
+   * of predicates, projected onto columns. Predicates are evaluated on the
+   * bytes of the table's pages, and only the records that satisfy all of them
+   * are decoded, and then only their given columns. Pages whose ranges in the
+   * zone map (see ZoneMap) rule out a predicate on an int or float column are
+   * not read at all.
+   *
+   * @param predicates the conjuncts of the filter, which may be empty
+   * @param columns the columns to read, or null to read every column
+   */
+  public Iterator<Record> iterator(List<ScanPredicate> predicates, int[] columns) {
+      checkPredicates(predicates);
+      predicates = new ArrayList<ScanPredicate>(predicates);
+      RecordViewIterator views = new TableViewIterator(columns == null ? null : columnMask(columns), predicates);
+      return new FilterIterator(views, predicates);
+  }
+
+  /**
+   * Returns an iterator over the records of the table that satisfy every one
+   * of predicates, in RecordBatches of up to RecordBatch.DEFAULT_CAPACITY
+   * records holding the given columns. Values go straight from the pages into
+   * the vectors of the batches. Every call to next returns a new batch, so
+   * callers may keep the batches they are given.
+   *
+   * @param predicates the conjuncts of the filter, which may be empty
+   * @param columns the columns the batches hold, or null to hold every column
+   */
+  public Iterator<RecordBatch> batchIterator(List<ScanPredicate> predicates, int[] columns) {
+      checkPredicates(predicates);
+      boolean[] mask = columns == null ? null : columnMask(columns);
+      predicates = new ArrayList<ScanPredicate>(predicates);
+      RecordViewIterator views = new TableViewIterator(mask, predicates);
+      return new BatchIterator(views, predicates, schema, mask);
+  }
+
+  /**
+   * @return whether some record of the table has value in column. If the
+   * column has a Bloom filter that rules value out, no page is read;
+   * otherwise the table is scanned like iterator(List, int[]) until the first
+   * match.
+   */
+  public boolean containsValue(int column, DataBox value) {
+    List<ScanPredicate> predicates =
+        Collections.singletonList(new ScanPredicate(column, PredicateOperator.EQUALS, value));
+    checkPredicates(predicates);
+    if (!mightContain(column, value)) {
+      return false;
+    }
+    TableViewIterator views = new TableViewIterator(columnMask(new int[] {column}), predicates);
+    try {
+      while (views.hasNext()) {
+        if (matchesAll(predicates, views.next())) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      views.close();
+    }
+  }
+
+  /**
+   * @return an iterator over the records of the table as RecordViews, which
+   * decode values from the table's pages only when they are asked for
+   */
+  public RecordViewIterator viewIterator() {
+      return new TableViewIterator(null);
+  }
+
+  /**
+   * @return an iterator over the records of the table as RecordViews whose
+   * toRecord is projected onto columns; see getRecord(RecordId, int[])
+   */
+  public RecordViewIterator viewIterator(int[] columns) {
+      return new TableViewIterator(columnMask(columns));
+  }
+
+  private void checkPredicates(List<ScanPredicate> predicates) {
+    for (ScanPredicate predicate : predicates) {
+      if (predicate.getColumn() < 0 || predicate.getColumn() >= schema.getFieldNames().size()) {
+        String msg = String.format("Predicate on column %d out of range [0, %d).",
+            predicate.getColumn(), schema.getFieldNames().size());
+        throw new IllegalArgumentException(msg);
+      }
+    }
+  }
+
+  /**
+   * @return whether each column of the schema is one of columns
+   */
+  private boolean[] columnMask(int[] columns) {
+    boolean[] mask = new boolean[schema.getFieldNames().size()];
+    for (int column : columns) {
+      if (column < 0 || column >= mask.length) {
+        String msg = String.format("Column %d out of range [0, %d).", column, mask.length);
+        throw new IllegalArgumentException(msg);
+      }
+      mask[column] = true;
+    }
+    return mask;
+  }
+
 
   /**
    * Helper function to create a BacktrackingIterator from an Iterator of
@@ -475,17 +1568,19 @@ public class Table implements Iterable<Record>, Closeable {
     return iter;
   }
 
-    /** An iterator over the record ids of a table. */
+  /** An iterator over the record ids of a table. */
   private class TableIterator implements Iterator<RecordId> {
     private Iterator<Page> iter;
-    private Page page = null;
-    private byte[] bitmap = null;
-    private int entryNum;
+    private int pageNum;
+    // The slots of page pageNum that hold a record, collected when the
+    // iterator reaches the page, and the index of the next one to return.
+    private int[] slots = new int[Table.this.layout.getMaxSlots()];
+    private int numSlots = 0;
+    private int slotIndex = 0;
     private long numRecordsReturned = 0;
 
     public TableIterator() {
       this.iter = Table.this.allocator.iterator();
-      this.entryNum = Table.this.numRecordsPerPage;
       iter.next(); // Skip the header page.
     }
 
@@ -498,19 +1593,252 @@ public class Table implements Iterable<Record>, Closeable {
         throw new NoSuchElementException();
       }
 
-      while (true) {
-        entryNum++;
-        if (entryNum >= Table.this.numRecordsPerPage) {
-          page = iter.next();
-          bitmap = Table.this.getBitMap(page);
-          entryNum = 0;
+      while (slotIndex == numSlots) {
+        Page page = Table.this.allocator.pinPage(iter.next().getPageNum());
+        try {
+          ByteBuffer buf = page.getReadOnlyByteBuffer();
+          numSlots = 0;
+          for (int slot = layout.nextLive(buf, 0); slot != -1; slot = layout.nextLive(buf, slot + 1)) {
+            slots[numSlots++] = slot;
+          }
+          pageNum = page.getPageNum();
+          slotIndex = 0;
+        } finally {
+          Table.this.allocator.unpinPage(page);
         }
+      }
 
-        if (Bits.getBit(bitmap, entryNum) == Bits.Bit.ONE) {
-          numRecordsReturned++;
-          return new RecordId(page.getPageNum(), (short) entryNum);
+      numRecordsReturned++;
+      return new RecordId(pageNum, (short) slots[slotIndex++]);
+    }
+  }
+
+  /**
+   * An iterator over the records of a table as views. Like TableIterator, it
+   * visits the data pages in order, pinning each page only while it copies
+   * the page's bytes, and returns views of the records of the copy. No page
+   * stays pinned between calls, so an iterator that is abandoned before it
+   * runs out holds no pins. This costs one copy of each page visited; see
+   * RecordViewIterator.
+   *
+   * Given predicates, the iterator skips the zones of pages that the zone map
+   * rules out without fetching them. It then cannot tell from numRecords
+   * whether records are left, so hasNext looks ahead to the next record,
+   * copying its page into a second buffer so that the last view returned
+   * stays valid.
+   */
+  private class TableViewIterator implements RecordViewIterator {
+    private RecordView view;
+    private ZoneMap zones;
+    private List<ScanPredicate> predicates;
+    // The copy of the page the iterator is on, or null, and its page number.
+    private ByteBuffer buf;
+    private int bufPageNum = -1;
+    // The slot of the last view returned from buf, or -1.
+    private int slot = -1;
+    // The copy of the page of the next record and its slot, if hasNext has
+    // found it. nextBuf is either buf or spare.
+    private ByteBuffer nextBuf;
+    private int nextPageNum = -1;
+    private int nextSlot = -1;
+    // The buffer the next page is copied into, which is never buf.
+    private ByteBuffer spare;
+    // The last page number the iterator has looked at.
+    private int pageNum = 0;
+    private long numRecordsReturned = 0;
+    private boolean closed = false;
+
+    public TableViewIterator(boolean[] columns) {
+      this(columns, null);
+    }
+
+    public TableViewIterator(boolean[] columns, List<ScanPredicate> predicates) {
+      this.view = new RecordView(Table.this.layout, Table.this.schema, columns);
+      if (predicates != null && !predicates.isEmpty()) {
+        this.zones = Table.this.zoneMap();
+        this.predicates = predicates;
+      }
+    }
+
+    public boolean hasNext() {
+      if (closed) {
+        return false;
+      }
+      if (nextSlot == -1 && (numRecordsReturned >= Table.this.numRecords || !findNext())) {
+        close();
+      }
+      return !closed;
+    }
+
+    /**
+     * Finds the next record, on the page the iterator is on or a later page.
+     *
+     * @return false if there is none
+     */
+    private boolean findNext() {
+      if (buf != null) {
+        int next = layout.nextLive(buf, slot + 1);
+        if (next != -1) {
+          nextBuf = buf;
+          nextPageNum = bufPageNum;
+          nextSlot = next;
+          return true;
         }
       }
+      while ((pageNum = allocator.nextAllocatedPage(pageNum + 1)) != -1) {
+        if (zones != null && !zones.mayMatch(pageNum, predicates)) {
+          pageNum = zones.lastPageOfZone(pageNum);
+          continue;
+        }
+        ByteBuffer copy = copyPage(pageNum);
+        int next = layout.nextLive(copy, 0);
+        if (next != -1) {
+          nextBuf = copy;
+          nextPageNum = pageNum;
+          nextSlot = next;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return spare, holding the bytes of page pageNum
+     */
+    private ByteBuffer copyPage(int pageNum) {
+      if (spare == null) {
+        spare = ByteBuffer.allocate(allocator.getPageSize());
+      }
+      Page p = allocator.pinPage(pageNum);
+      try {
+        spare.clear();
+        spare.put(p.getReadOnlyByteBuffer());
+        spare.clear();
+      } finally {
+        allocator.unpinPage(p);
+      }
+      return spare;
+    }
+
+    public RecordView next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      if (nextBuf != buf) {
+        spare = buf;
+        buf = nextBuf;
+        bufPageNum = nextPageNum;
+      }
+      slot = nextSlot;
+      nextBuf = null;
+      nextSlot = -1;
+      numRecordsReturned++;
+      view.moveTo(buf, bufPageNum, slot);
+      return view;
+    }
+
+    public void close() {
+      nextBuf = null;
+      nextSlot = -1;
+      buf = null;
+      spare = null;
+      closed = true;
+    }
+  }
+
+  /** An iterator over the records of a table that satisfy some predicates. */
+  private static class FilterIterator implements Iterator<Record> {
+    private RecordViewIterator views;
+    private List<ScanPredicate> predicates;
+    private Record nextRecord = null;
+
+    public FilterIterator(RecordViewIterator views, List<ScanPredicate> predicates) {
+      this.views = views;
+      this.predicates = predicates;
+    }
+
+    public boolean hasNext() {
+      if (nextRecord != null) {
+        return true;
+      }
+      while (views.hasNext()) {
+        RecordView view = views.next();
+        if (matchesAll(view)) {
+          nextRecord = view.toRecord();
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean matchesAll(RecordView view) {
+      return Table.matchesAll(predicates, view);
+    }
+
+    public Record next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Record record = nextRecord;
+      nextRecord = null;
+      return record;
+    }
+  }
+
+  private static boolean matchesAll(List<ScanPredicate> predicates, RecordView view) {
+    for (ScanPredicate predicate : predicates) {
+      if (!predicate.matches(view)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** An iterator over the records of a table that satisfy some predicates, in batches. */
+  private static class BatchIterator implements Iterator<RecordBatch> {
+    private RecordViewIterator views;
+    private List<ScanPredicate> predicates;
+    private Schema schema;
+    // The columns the batches hold, or null for every column.
+    private boolean[] mask;
+    // The batch being filled or returned next, or null.
+    private RecordBatch batch;
+    // Whether batch holds records that next has not returned yet.
+    private boolean filled = false;
+
+    public BatchIterator(RecordViewIterator views, List<ScanPredicate> predicates,
+                         Schema schema, boolean[] mask) {
+      this.views = views;
+      this.predicates = predicates;
+      this.schema = schema;
+      this.mask = mask;
+    }
+
+    public boolean hasNext() {
+      if (filled) {
+        return true;
+      }
+      if (batch == null) {
+        batch = new RecordBatch(schema, RecordBatch.DEFAULT_CAPACITY, mask);
+      }
+      while (!batch.isFull() && views.hasNext()) {
+        RecordView view = views.next();
+        if (matchesAll(predicates, view)) {
+          batch.add(view);
+        }
+      }
+      filled = batch.getNumRows() > 0;
+      return filled;
+    }
+
+    public RecordBatch next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      filled = false;
+      RecordBatch result = batch;
+      batch = null;
+      return result;
     }
   }
 }
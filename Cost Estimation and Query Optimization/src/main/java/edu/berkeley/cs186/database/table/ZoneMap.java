@@ -0,0 +1,292 @@
+package edu.berkeley.cs186.database.table;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+
+/**
+ * A ZoneMap keeps the smallest and largest value of every int and float
+ * column of a table for each zone of its data pages, where a zone is a run of
+ * getPagesPerZone() consecutive page numbers. A scan with a range predicate
+ * on such a column skips the zones whose range cannot satisfy it without
+ * reading their pages (see Table#iterator(List, int[])).
+ *
+ * The ranges only ever grow: adding a record to a page widens the range of
+ * its zone, but deleting one does not narrow it. A range therefore covers
+ * every value in its zone, but possibly more. Values are compared like
+ * Float#compare and Integer#compare, which is the order of DataBox#compareTo.
+ *
+ * Zones start out a page each. When there would be more than MAX_ZONES of
+ * them, or they do not fit into the metadata block of the table, neighboring
+ * zones are merged, so that the map stays small at the cost of precision.
+ *
+ * A zone map is serialized as follows:
+ *
+ *   | magic (4) | pagesPerZone (4) | numZones (4) |
+ *   | for each zone, for each mapped column: min (4) | max (4) |
+ *
+ * where the bounds are ints or floats like the column. The bounds of a zone
+ * that never held a record are the largest and smallest value of the type.
+ */
+class ZoneMap {
+  private static final int MAGIC = 0x20E3A9B5;
+  private static final int HEADER_SIZE = 4 + 4 + 4;
+  private static final int MAX_ZONES = 1 << 16;
+
+  private final Schema schema;
+  // The mapped columns of the schema, and the index of each column of the
+  // schema among them, or -1.
+  private final int[] columns;
+  private final int[] mapIndex;
+  private int pagesPerZone;
+  private int numZones = 0;
+  // The bounds of mapped column i in zone z are mins[i][z] and maxs[i][z].
+  private double[][] mins;
+  private double[][] maxs;
+
+  ZoneMap(Schema schema) {
+    this.schema = schema;
+    List<Type> types = schema.getFieldTypes();
+    this.mapIndex = new int[types.size()];
+    int n = 0;
+    for (int i = 0; i < types.size(); ++i) {
+      TypeId t = types.get(i).getTypeId();
+      mapIndex[i] = t == TypeId.INT || t == TypeId.FLOAT ? n++ : -1;
+    }
+    this.columns = new int[n];
+    for (int i = 0; i < types.size(); ++i) {
+      if (mapIndex[i] != -1) {
+        columns[mapIndex[i]] = i;
+      }
+    }
+    this.pagesPerZone = 1;
+    this.mins = new double[n][16];
+    this.maxs = new double[n][16];
+  }
+
+  int getPagesPerZone() {
+    return pagesPerZone;
+  }
+
+  /**
+   * @return the largest page number in the zone of pageNum
+   */
+  synchronized int lastPageOfZone(int pageNum) {
+    return (pageNum / pagesPerZone + 1) * pagesPerZone - 1;
+  }
+
+  /**
+   * Widens the ranges of the zone of pageNum to cover record.
+   */
+  synchronized void add(int pageNum, Record record) {
+    if (columns.length == 0) {
+      return;
+    }
+    int zone = zoneOf(pageNum);
+    List<DataBox> values = record.getValues();
+    for (int i = 0; i < columns.length; ++i) {
+      double v = valueOf(values.get(columns[i]));
+      if (Double.compare(v, mins[i][zone]) < 0) {
+        mins[i][zone] = v;
+      }
+      if (Double.compare(v, maxs[i][zone]) > 0) {
+        maxs[i][zone] = v;
+      }
+    }
+  }
+
+  /**
+   * Forgets the ranges of the zone of pageNum, which must hold no records, if
+   * the zone is that page alone.
+   */
+  synchronized void clear(int pageNum) {
+    if (pagesPerZone == 1 && pageNum < numZones) {
+      for (int i = 0; i < columns.length; ++i) {
+        mins[i][pageNum] = Double.POSITIVE_INFINITY;
+        maxs[i][pageNum] = Double.NEGATIVE_INFINITY;
+      }
+    }
+  }
+
+  /**
+   * @return false if no record on page pageNum can satisfy all of predicates
+   */
+  synchronized boolean mayMatch(int pageNum, List<ScanPredicate> predicates) {
+    int zone = pageNum / pagesPerZone;
+    if (zone >= numZones) {
+      // No record was ever added to the zone.
+      return columns.length == 0;
+    }
+    for (ScanPredicate predicate : predicates) {
+      int i = mapIndex[predicate.getColumn()];
+      if (i != -1 && !mayMatch(i, zone, predicate)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean mayMatch(int i, int zone, ScanPredicate predicate) {
+    double min = mins[i][zone];
+    double max = maxs[i][zone];
+    if (Double.compare(min, max) > 0) {
+      return false;
+    }
+    DataBox value = predicate.getValue();
+    if (value.type().getTypeId() != schema.getFieldTypes().get(columns[i]).getTypeId()) {
+      return true;
+    }
+    double v = valueOf(value);
+    boolean isFloat = value.type().getTypeId() == TypeId.FLOAT;
+    switch (predicate.getOperator()) {
+      case EQUALS:
+        // FloatDataBox#equals uses ==, under which -0.0 equals 0.0 and NaN
+        // equals nothing, unlike the order of the bounds.
+        if (isFloat && (v == 0 || Double.isNaN(v))) {
+          return true;
+        }
+        return Double.compare(min, v) <= 0 && Double.compare(max, v) >= 0;
+      case NOT_EQUALS:
+        if (isFloat && (v == 0 || Double.isNaN(v))) {
+          return true;
+        }
+        return Double.compare(min, v) != 0 || Double.compare(max, v) != 0;
+      case LESS_THAN:
+        return Double.compare(min, v) < 0;
+      case LESS_THAN_EQUALS:
+        return Double.compare(min, v) <= 0;
+      case GREATER_THAN:
+        return Double.compare(max, v) > 0;
+      case GREATER_THAN_EQUALS:
+        return Double.compare(max, v) >= 0;
+      default:
+        return true;
+    }
+  }
+
+  private static double valueOf(DataBox d) {
+    return d.type().getTypeId() == TypeId.INT ? d.getInt() : d.getFloat();
+  }
+
+  private int zoneOf(int pageNum) {
+    while (pageNum / pagesPerZone >= MAX_ZONES) {
+      merge(2);
+    }
+    int zone = pageNum / pagesPerZone;
+    if (zone >= numZones) {
+      if (zone >= mins[0].length) {
+        int capacity = Math.max(2 * mins[0].length, zone + 1);
+        for (int i = 0; i < columns.length; ++i) {
+          mins[i] = Arrays.copyOf(mins[i], capacity);
+          maxs[i] = Arrays.copyOf(maxs[i], capacity);
+        }
+      }
+      for (int i = 0; i < columns.length; ++i) {
+        Arrays.fill(mins[i], numZones, zone + 1, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxs[i], numZones, zone + 1, Double.NEGATIVE_INFINITY);
+      }
+      numZones = zone + 1;
+    }
+    return zone;
+  }
+
+  /**
+   * Merges every factor consecutive zones into one.
+   */
+  private void merge(int factor) {
+    int n = (numZones + factor - 1) / factor;
+    for (int i = 0; i < columns.length; ++i) {
+      for (int z = 0; z < n; ++z) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int j = z * factor; j < Math.min(numZones, (z + 1) * factor); ++j) {
+          if (Double.compare(mins[i][j], min) < 0) {
+            min = mins[i][j];
+          }
+          if (Double.compare(maxs[i][j], max) > 0) {
+            max = maxs[i][j];
+          }
+        }
+        mins[i][z] = min;
+        maxs[i][z] = max;
+      }
+    }
+    numZones = n;
+    pagesPerZone *= factor;
+  }
+
+  /**
+   * Writes the zone map to buf, merging zones first if it would take more
+   * than maxBytes.
+   *
+   * @return false, leaving buf unchanged, if not even one zone fits
+   */
+  synchronized boolean write(ByteBuffer buf, int maxBytes) {
+    int zoneSize = 2 * 4 * columns.length;
+    if (maxBytes < HEADER_SIZE + zoneSize) {
+      return false;
+    }
+    if (zoneSize > 0) {
+      int maxZones = (maxBytes - HEADER_SIZE) / zoneSize;
+      if (numZones > maxZones) {
+        merge((numZones + maxZones - 1) / maxZones);
+      }
+    }
+    buf.putInt(MAGIC);
+    buf.putInt(pagesPerZone);
+    buf.putInt(numZones);
+    for (int z = 0; z < numZones; ++z) {
+      for (int i = 0; i < columns.length; ++i) {
+        boolean empty = Double.compare(mins[i][z], maxs[i][z]) > 0;
+        if (schema.getFieldTypes().get(columns[i]).getTypeId() == TypeId.INT) {
+          buf.putInt(empty ? Integer.MAX_VALUE : (int) mins[i][z]);
+          buf.putInt(empty ? Integer.MIN_VALUE : (int) maxs[i][z]);
+        } else {
+          buf.putFloat((float) mins[i][z]);
+          buf.putFloat((float) maxs[i][z]);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads a zone map written by write from buf.
+   *
+   * @return the zone map, or null if buf does not hold one
+   */
+  static ZoneMap read(Schema schema, ByteBuffer buf) {
+    if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+      return null;
+    }
+    ZoneMap map = new ZoneMap(schema);
+    map.pagesPerZone = buf.getInt();
+    int numZones = buf.getInt();
+    if (map.pagesPerZone <= 0 || numZones < 0 || numZones > MAX_ZONES) {
+      return null;
+    }
+    if (numZones > 0 && map.columns.length > 0) {
+      map.zoneOf(numZones * map.pagesPerZone - 1);
+    }
+    for (int z = 0; z < numZones; ++z) {
+      for (int i = 0; i < map.columns.length; ++i) {
+        if (schema.getFieldTypes().get(map.columns[i]).getTypeId() == TypeId.INT) {
+          int min = buf.getInt();
+          int max = buf.getInt();
+          if (min <= max) {
+            map.mins[i][z] = min;
+            map.maxs[i][z] = max;
+          }
+        } else {
+          map.mins[i][z] = buf.getFloat();
+          map.maxs[i][z] = buf.getFloat();
+        }
+      }
+    }
+    return map;
+  }
+}
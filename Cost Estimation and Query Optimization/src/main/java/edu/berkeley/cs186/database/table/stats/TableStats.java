@@ -47,20 +47,47 @@ import edu.berkeley.cs186.database.table.Table;
  */
 public class TableStats {
   private Schema tableSchema;
+  // The number of records that fit on a data page of the table.
+  private int numRecordsPerPage;
   private int numRecords;
   private List<Histogram> histograms;
 
   /** Construct a TableStats for an empty table with schema `tableSchema`. */
   public TableStats(Schema tableSchema) {
+    this(tableSchema, Page.pageSize);
+  }
 
-    this.tableSchema = tableSchema;
-    this.numRecords = 0;
-    this.histograms = new ArrayList<Histogram>();
+  /**
+   * Construct a TableStats for an empty table with schema `tableSchema` whose
+   * pages are `pageSize` bytes in the BITMAP format.
+   */
+  public TableStats(Schema tableSchema, int pageSize) {
+    this(tableSchema, Table.PageFormat.BITMAP, pageSize, 0);
+  }
 
+  /**
+   * Construct a TableStats for a table with schema `tableSchema` and pages of
+   * `pageSize` bytes in the BITMAP format which already holds `numRecords`
+   * records.
+   */
+  public TableStats(Schema tableSchema, int pageSize, int numRecords) {
+    this(tableSchema, Table.PageFormat.BITMAP, pageSize, numRecords);
   }
 
-  private TableStats(Schema tableSchema, int numRecords, List<Histogram> histograms) {
+  /**
+   * Construct a TableStats for a table with schema `tableSchema` and pages of
+   * `pageSize` bytes in the page format `format` which already holds
+   * `numRecords` records.
+   */
+  public TableStats(Schema tableSchema, Table.PageFormat format, int pageSize, int numRecords) {
+    this(tableSchema, Math.max(format.getCapacity(tableSchema, pageSize), 1), numRecords,
+         new ArrayList<Histogram>());
+  }
+
+  private TableStats(Schema tableSchema, int numRecordsPerPage, int numRecords,
+                     List<Histogram> histograms) {
     this.tableSchema = tableSchema;
+    this.numRecordsPerPage = numRecordsPerPage;
     this.numRecords = numRecords;
     this.histograms = histograms;
   }
@@ -92,6 +119,14 @@ public class TableStats {
     numRecords = Math.max(numRecords - 1, 0);
   }
 
+  /**
+   * Sets the number of records that fit on a data page, e.g. to the average
+   * number of records per page of a table whose records vary in length.
+   */
+  public void setNumRecordsPerPage(int numRecordsPerPage) {
+    this.numRecordsPerPage = Math.max(numRecordsPerPage, 1);
+  }
+
   // Accessors /////////////////////////////////////////////////////////////////
   public Schema getSchema() {
     return tableSchema;
@@ -103,10 +138,10 @@ public class TableStats {
 
   /**
    * Calculates the number of data pages required to store `numRecords` records
-   * assuming that all records are stored as densely as possible in the pages.
+   * assuming that all records are stored as densely as possible in the pages,
+   * as many per page as are guaranteed to fit in the table's page format.
    */
   public int getNumPages() {
-    int numRecordsPerPage = Table.computeNumRecordsPerPage(Page.pageSize, tableSchema);
     if (numRecords % numRecordsPerPage == 0) {
       return numRecords / numRecordsPerPage;
     } else {
@@ -174,7 +209,7 @@ public class TableStats {
 
     Histogram qhistogram = histograms.get(column);
     int numRecords = qhistogram.getCount();
-    return new TableStats(this.tableSchema, numRecords, copyHistograms);
+    return new TableStats(this.tableSchema, this.numRecordsPerPage, numRecords, copyHistograms);
   }
 
   /**
@@ -246,6 +281,10 @@ public class TableStats {
 
     int outputSize = (int)(reductionFactor*inputSize);
 
-    return new TableStats(joinedSchema, outputSize, copyHistograms);
+    // Joins are materialized into temporary tables, which have the default
+    // page size.
+    int numRecordsPerPage = Math.max(
+        Table.PageFormat.BITMAP.getCapacity(joinedSchema, Page.pageSize), 1);
+    return new TableStats(joinedSchema, numRecordsPerPage, outputSize, copyHistograms);
   }
 }